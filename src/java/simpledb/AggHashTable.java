@@ -0,0 +1,361 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * AggHashTable maps group keys to aggregate states without boxing. Groups are
+ * numbered 0, 1, ... in the order they are first seen, and the keys and the
+ * states of every group live in parallel primitive arrays; the hash table
+ * itself is an open-addressing array of group numbers, probed linearly.
+ * <p>
+ * A key made of one INT_TYPE field is stored as an int. Any other key is
+ * encoded into an append-only byte array -- four bytes per int field, and a
+ * length byte plus the characters per string field -- and compared as bytes.
+ * With no key fields at all there is a single group and no hashing.
+ * <p>
+ * Each group holds one state per aggregate: a running value (the sum, min or
+ * max) and a count, both longs.
+ */
+public class AggHashTable {
+
+    private static final int INITIAL_GROUPS = 16;
+
+    private final Type[] keyTypes;
+    private final Aggregator.Op[] ops;
+    private final int numAggs;
+    private final boolean intKey;
+
+    // group number + 1 per slot, 0 if the slot is empty
+    private int[] slots;
+    private int mask;
+    private int groups;
+
+    private int[] hashes;
+    private int[] intKeys;
+    private int[] keyOff;
+    private int[] keyLen;
+    private byte[] keyData;
+    private int keyDataLen;
+    private byte[] scratch;
+
+    private long[] acc;
+    private long[] cnt;
+
+    /**
+     * Constructor.
+     *
+     * @param keyTypes
+     *            the types of the group key fields; empty if there is no
+     *            grouping
+     * @param ops
+     *            the aggregates each group keeps a state for
+     */
+    public AggHashTable(Type[] keyTypes, Aggregator.Op[] ops) {
+        this.keyTypes = keyTypes.clone();
+        this.ops = ops.clone();
+        this.numAggs = ops.length;
+        this.intKey = keyTypes.length == 1 && keyTypes[0] == Type.INT_TYPE;
+        this.slots = new int[2 * INITIAL_GROUPS];
+        this.mask = slots.length - 1;
+        this.hashes = new int[INITIAL_GROUPS];
+        if (intKey) {
+            intKeys = new int[INITIAL_GROUPS];
+        } else if (keyTypes.length > 0) {
+            keyOff = new int[INITIAL_GROUPS];
+            keyLen = new int[INITIAL_GROUPS];
+            keyData = new byte[64 * INITIAL_GROUPS];
+            int w = 0;
+            for (Type t : keyTypes)
+                w += t == Type.INT_TYPE ? 4 : Type.STRING_LEN + 1;
+            scratch = new byte[w];
+        }
+        this.acc = new long[INITIAL_GROUPS * numAggs];
+        this.cnt = new long[INITIAL_GROUPS * numAggs];
+    }
+
+    /**
+     * @return the number of groups
+     */
+    public int size() {
+        return groups;
+    }
+
+    /**
+     * @return the approximate number of bytes this table holds
+     */
+    public long memoryBytes() {
+        long b = 4L * slots.length + 4L * hashes.length + 16L * acc.length;
+        if (intKey)
+            b += 4L * intKeys.length;
+        else if (keyData != null)
+            b += 8L * keyOff.length + keyData.length;
+        return b;
+    }
+
+    /**
+     * @return the group number of the group t belongs to, creating the group
+     *         if it is new
+     * @param keyFields
+     *            the fields of t that make up the key, of the types given to
+     *            the constructor
+     */
+    public int group(Tuple t, int[] keyFields) {
+        return lookup(t, keyFields, true);
+    }
+
+    /**
+     * @return the group number of the group t belongs to, or -1 if there is
+     *         no such group yet
+     */
+    public int find(Tuple t, int[] keyFields) {
+        return lookup(t, keyFields, false);
+    }
+
+    private int lookup(Tuple t, int[] keyFields, boolean create) {
+        if (keyTypes.length == 0) {
+            if (groups == 0) {
+                if (!create)
+                    return -1;
+                newGroup(0);
+            }
+            return 0;
+        }
+        if (intKey)
+            return groupInt(t.getInt(keyFields[0]), create);
+        int len = 0;
+        for (int i = 0; i < keyFields.length; i++) {
+            if (keyTypes[i] == Type.INT_TYPE) {
+                CompactTuple.writeInt(scratch, len, t.getInt(keyFields[i]));
+                len += 4;
+            } else {
+                StringField f = (StringField) t.getField(keyFields[i]);
+                scratch[len++] = (byte) f.byteLength();
+                f.copyBytes(scratch, len);
+                len += f.byteLength();
+            }
+        }
+        return groupBytes(scratch, len, create);
+    }
+
+    private static int hashInt(int k) {
+        int h = k * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int groupInt(int k, boolean create) {
+        reserve();
+        int h = hashInt(k);
+        for (int s = h & mask;; s = (s + 1) & mask) {
+            int g = slots[s] - 1;
+            if (g < 0) {
+                if (!create)
+                    return -1;
+                g = newGroup(h);
+                intKeys[g] = k;
+                slots[s] = g + 1;
+                return g;
+            }
+            if (intKeys[g] == k)
+                return g;
+        }
+    }
+
+    private int groupBytes(byte[] key, int len, boolean create) {
+        int h = 0;
+        for (int i = 0; i < len; i++)
+            h = 31 * h + (key[i] & 0xff);
+        h = hashInt(h);
+        reserve();
+        for (int s = h & mask;; s = (s + 1) & mask) {
+            int g = slots[s] - 1;
+            if (g < 0) {
+                if (!create)
+                    return -1;
+                g = newGroup(h);
+                if (keyDataLen + len > keyData.length)
+                    keyData = Arrays.copyOf(keyData,
+                            Math.max(2 * keyData.length, keyDataLen + len));
+                System.arraycopy(key, 0, keyData, keyDataLen, len);
+                keyOff[g] = keyDataLen;
+                keyLen[g] = len;
+                keyDataLen += len;
+                slots[s] = g + 1;
+                return g;
+            }
+            if (hashes[g] == h && keyEquals(g, key, len))
+                return g;
+        }
+    }
+
+    private boolean keyEquals(int g, byte[] key, int len) {
+        if (keyLen[g] != len)
+            return false;
+        int off = keyOff[g];
+        for (int i = 0; i < len; i++) {
+            if (keyData[off + i] != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Allocate the next group number, growing the arrays as needed, and
+     * initialize its states. The caller fills in the key and the slot.
+     */
+    private int newGroup(int hash) {
+        int g = groups;
+        if (g == hashes.length) {
+            int n = 2 * g;
+            hashes = Arrays.copyOf(hashes, n);
+            if (intKeys != null)
+                intKeys = Arrays.copyOf(intKeys, n);
+            if (keyOff != null) {
+                keyOff = Arrays.copyOf(keyOff, n);
+                keyLen = Arrays.copyOf(keyLen, n);
+            }
+            acc = Arrays.copyOf(acc, n * numAggs);
+            cnt = Arrays.copyOf(cnt, n * numAggs);
+        }
+        hashes[g] = hash;
+        for (int a = 0; a < numAggs; a++) {
+            if (ops[a] == Aggregator.Op.MIN)
+                acc[g * numAggs + a] = Integer.MAX_VALUE;
+            else if (ops[a] == Aggregator.Op.MAX)
+                acc[g * numAggs + a] = Integer.MIN_VALUE;
+        }
+        groups++;
+        return g;
+    }
+
+    /**
+     * Make sure there is room for one more group while keeping the table at
+     * most half full; called before probing, as it moves the slots.
+     */
+    private void reserve() {
+        if (2 * (groups + 1) <= slots.length)
+            return;
+        slots = new int[2 * slots.length];
+        mask = slots.length - 1;
+        for (int g = 0; g < groups; g++) {
+            int s = hashes[g] & mask;
+            while (slots[s] != 0)
+                s = (s + 1) & mask;
+            slots[s] = g + 1;
+        }
+    }
+
+    /**
+     * Add the value v to the state of aggregate agg in group g.
+     */
+    public void add(int g, int agg, int v) {
+        int i = g * numAggs + agg;
+        switch (ops[agg]) {
+        case MIN:
+            if (v < acc[i])
+                acc[i] = v;
+            break;
+        case MAX:
+            if (v > acc[i])
+                acc[i] = v;
+            break;
+        case SUM:
+        case AVG:
+            acc[i] += v;
+            break;
+        default:
+            break;
+        }
+        cnt[i]++;
+    }
+
+    /**
+     * Count a row in the state of aggregate agg in group g, without a value;
+     * only meaningful for COUNT.
+     */
+    public void count(int g, int agg) {
+        cnt[g * numAggs + agg]++;
+    }
+
+    /**
+     * @return the value of aggregate agg in group g
+     */
+    public int result(int g, int agg) {
+        int i = g * numAggs + agg;
+        switch (ops[agg]) {
+        case COUNT:
+            return (int) cnt[i];
+        case AVG:
+            return (int) (acc[i] / cnt[i]);
+        default:
+            return (int) acc[i];
+        }
+    }
+
+    /**
+     * Fold the groups of other, a table with the same key types and
+     * aggregates, into this one: groups new to this table are created, and
+     * the states of groups in both are combined as if this table had seen
+     * the tuples of other too.
+     *
+     * @throws IllegalArgumentException
+     *             if other keeps different keys or aggregates
+     */
+    public void merge(AggHashTable other) {
+        if (!Arrays.equals(keyTypes, other.keyTypes) || !Arrays.equals(ops, other.ops))
+            throw new IllegalArgumentException("cannot merge tables of different aggregates");
+        for (int og = 0; og < other.groups; og++) {
+            int g;
+            if (keyTypes.length == 0) {
+                if (groups == 0)
+                    newGroup(0);
+                g = 0;
+            } else if (intKey) {
+                g = groupInt(other.intKeys[og], true);
+            } else {
+                int len = other.keyLen[og];
+                System.arraycopy(other.keyData, other.keyOff[og], scratch, 0, len);
+                g = groupBytes(scratch, len, true);
+            }
+            for (int a = 0; a < numAggs; a++) {
+                int i = g * numAggs + a, oi = og * numAggs + a;
+                switch (ops[a]) {
+                case MIN:
+                    acc[i] = Math.min(acc[i], other.acc[oi]);
+                    break;
+                case MAX:
+                    acc[i] = Math.max(acc[i], other.acc[oi]);
+                    break;
+                case SUM:
+                case AVG:
+                    acc[i] += other.acc[oi];
+                    break;
+                default:
+                    break;
+                }
+                cnt[i] += other.cnt[oi];
+            }
+        }
+    }
+
+    /**
+     * Set the key fields of group g in t, starting at field off.
+     */
+    public void writeKey(int g, Tuple t, int off) {
+        if (intKey) {
+            t.setField(off, new IntField(intKeys[g]));
+            return;
+        }
+        int p = keyOff == null ? 0 : keyOff[g];
+        for (int i = 0; i < keyTypes.length; i++) {
+            if (keyTypes[i] == Type.INT_TYPE) {
+                t.setField(off + i, new IntField(CompactTuple.readInt(keyData, p)));
+                p += 4;
+            } else {
+                int len = keyData[p++] & 0xff;
+                // keyData is only ever appended to, so the slice never changes
+                t.setField(off + i, new StringField(keyData, p, len, Type.STRING_LEN));
+                p += len;
+            }
+        }
+    }
+}
@@ -3,9 +3,29 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates, grouped by any number of columns, are
+ * computed in a single pass over the child; see {@link GroupAggregator}.
+ * <p>
+ * At most maxGroups groups are held in memory. Once that many exist, tuples of
+ * the existing groups are still aggregated in memory, but tuples of new groups
+ * are split by hash into NUM_PARTITIONS spill files. After the in-memory
+ * groups are returned, each partition is aggregated on its own, and is split
+ * again, on different bits of the hash, if it has too many groups as well.
+ * <p>
+ * With several workers (see {@link #setWorkers}) the child is instead dealt
+ * out round-robin to worker threads, and each worker aggregates its tuples
+ * into aggregators of its own, one per partition of the group hash, without
+ * any locking. The partial aggregators of each partition are then merged by
+ * one worker (see {@link Aggregator#merge}), and the merged partitions are
+ * returned one after another. Every worker holds a state for each group it
+ * has seen, so this mode suits aggregates with few groups, and the planner
+ * repartitions the input by group instead when it expects many. Should the
+ * estimate be wrong, a worker whose partials reach its share of maxGroups
+ * spills the tuples of new groups into NUM_PARTITIONS files shared by all
+ * workers. After the merge, the spilled tuples of groups some other worker
+ * held are folded into the merged groups, and the rest are aggregated
+ * partition by partition as above.
  */
 public class Aggregate extends Operator {
 
@@ -15,21 +35,44 @@ public class Aggregate extends Operator {
     private int afield;
     private int gfield;
     private Aggregator.Op aop;
+    // all the aggregates and group fields; the ones above are the first
+    private int[] afields;
+    private int[] gfields;
+    private Aggregator.Op[] aops;
     // schema of the tuples fed by DbIterator
     private TupleDesc td;
     
-    // to construct an IntAggregator or StringAggregator
+    // holds the groups and their aggregate states
     private Aggregator aggregator;
     // Iterator for the aggregator
     private DbIterator aIterator;
+
+    /** Default number of groups held in memory at once. */
+    public final static int MAX_GROUPS = 100000;
+    /** Number of partitions the input is split into once the groups no
+     * longer fit in memory. */
+    public final static int NUM_PARTITIONS = 32;
+    // partitions are split again at most this many times; the hash has
+    // only so many bits
+    private final static int MAX_LEVEL = 3;
+
+    private int maxGroups = MAX_GROUPS;
+    // the partitions tuples of new groups go to once the aggregator is
+    // full, or null while it is not
+    transient private TupleSpillFile[] parts;
+    // spilled partitions waiting to be aggregated, and their levels
+    transient private LinkedList<TupleSpillFile> pending;
+    transient private LinkedList<Integer> pendingLevels;
+    // true if the input did not fit in memory, so a rewind reads it again
+    transient private boolean spilled;
+
+    private int workers = 1;
+    // the merged partitions of a parallel aggregation, returned in turn
+    transient private Aggregator[] merged;
+    transient private int nextMerged;
     
     /**
-     * Constructor.
-     * 
-     * Implementation hint: depending on the type of afield, you will want to
-     * construct an {@link IntAggregator} or {@link StringAggregator} to help
-     * you with your implementation of readNext().
-     * 
+     * Constructor for a single aggregate.
      * 
      * @param child
      *            The DbIterator that is feeding us tuples.
@@ -43,26 +86,67 @@ public class Aggregate extends Operator {
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
     	// some code goes here
+    	this(child, new int[] { afield }, new Aggregator.Op[] { aop },
+    			gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield });
+    }
+
+    /**
+     * Constructor for several aggregates grouped by several columns.
+     * 
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            The column of each aggregate.
+     * @param aops
+     *            The aggregation operator of each aggregate.
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @throws IllegalArgumentException
+     *             if there are no aggregates, or an aggregate over a string
+     *             column is not a COUNT
+     */
+    public Aggregate(DbIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields) {
+    	if(afields.length == 0 || afields.length != aops.length)
+    		throw new IllegalArgumentException("need one operator per aggregate field");
     	this.child = child;
     	td = child.getTupleDesc();
-    	this.afield = afield;
-    	this.gfield = gfield;
-    	this.aop = aop;
-    	
-    	// construct aggregator
-    	Type gbfieldtype; // the type of the group by field
-    	if(gfield == Aggregator.NO_GROUPING)
-    		gbfieldtype = null; // null if there is no grouping
-    	else
-    		gbfieldtype = td.getFieldType(gfield);
-    	
-    	Type afieldtype = td.getFieldType(afield);
-    	if(afieldtype == Type.INT_TYPE)
-    		// construct an IntAggregator
-    		aggregator = new IntegerAggregator(gfield, gbfieldtype, afield, aop);
-    	else 
-    		// construct a StringAggregator
-    		aggregator = new StringAggregator(gfield, gbfieldtype, afield, aop);
+    	this.afields = afields.clone();
+    	this.aops = aops.clone();
+    	this.gfields = gfields.clone();
+    	this.afield = afields[0];
+    	this.aop = aops[0];
+    	this.gfield = gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+    	this.aggregator = newAggregator();
+    }
+
+    private Aggregator newAggregator() {
+    	return new GroupAggregator(td, gfields, afields, aops);
+    }
+
+    /**
+     * Set the number of groups this operator may keep in memory; beyond that
+     * it partitions its input to disk. Must be called before open().
+     */
+    public void setMaxGroups(int groups) {
+    	this.maxGroups = Math.max(1, groups);
+    }
+
+    /**
+     * Set the number of worker threads to aggregate with; with more than one
+     * the aggregation runs in two phases, thread-local then merged, and
+     * spills only once the workers hold maxGroups groups between them. Must
+     * be called before open().
+     */
+    public void setWorkers(int workers) {
+    	this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * @return the number of worker threads this aggregate runs on
+     */
+    public int getWorkers() {
+    	return workers;
     }
 
     /**
@@ -88,6 +172,24 @@ public class Aggregate extends Operator {
     		return td.getFieldName(gfield);
     }
 
+    /**
+     * @return the indexes of all the group by fields in the <b>INPUT</b>
+     *         tuples; empty if there is no grouping
+     */
+    public int[] groupFields() {
+    	return gfields.clone();
+    }
+
+    /**
+     * @return the names of all the group by fields
+     */
+    public String[] groupFieldNames() {
+    	String[] names = new String[gfields.length];
+    	for(int i = 0; i < gfields.length; i++)
+    		names[i] = td.getFieldName(gfields[i]);
+    	return names;
+    }
+
     /**
      * @return the aggregate field
      * */
@@ -113,6 +215,30 @@ public class Aggregate extends Operator {
     	return aop;
     }
 
+    /**
+     * @return the input column of each aggregate
+     */
+    public int[] aggregateFields() {
+    	return afields.clone();
+    }
+
+    /**
+     * @return the names of the input column of each aggregate
+     */
+    public String[] aggregateFieldNames() {
+    	String[] names = new String[afields.length];
+    	for(int i = 0; i < afields.length; i++)
+    		names[i] = td.getFieldName(afields[i]);
+    	return names;
+    }
+
+    /**
+     * @return the operator of each aggregate
+     */
+    public Aggregator.Op[] aggregateOps() {
+    	return aops.clone();
+    }
+
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
     	return aop.toString();
     }
@@ -120,41 +246,278 @@ public class Aggregate extends Operator {
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
     	// some code goes here
-    	child.open();
+    	if(workers > 1) {
+    		aggregateParallel();
+    	} else {
+    		child.open();
+    		aggregateChild();
+    	}
+    	super.open();
+    }
+
+    /**
+     * @return the partition of tup's group at the given level. Each level
+     *         uses different bits of the hash, so a partition that is split
+     *         again spreads over all the new partitions.
+     */
+    private int partitionOf(Tuple tup, int level) {
+    	int h = 0;
+    	for(int f : gfields)
+    		h = 31 * h + tup.getField(f).hashCode();
+    	h = Integer.rotateLeft(h * 0x9E3779B9, 5 * level);
+    	return (h >>> 16) % NUM_PARTITIONS;
+    }
+
+    /**
+     * @return the partition of tup's group among n merge partitions; mixed
+     *         unlike partitionOf, so the partitions of a parallel aggregate
+     *         stay even whatever the planner hashed its input on
+     */
+    private int mergePartitionOf(Tuple tup, int n) {
+    	int h = 0;
+    	for(int f : gfields)
+    		h = 31 * h + tup.getField(f).hashCode();
+    	h *= 0xC2B2AE35;
+    	return ((h ^ (h >>> 15)) & 0x7fffffff) % n;
+    }
+
+    /**
+     * Aggregate the child on workers threads: each worker into partial
+     * aggregators of its own, then each partition merged by one worker.
+     */
+    private void aggregateParallel() throws DbException, TransactionAbortedException {
+    	pending = new LinkedList<TupleSpillFile>();
+    	pendingLevels = new LinkedList<Integer>();
+    	spilled = false;
+    	final Exchange[] in = Exchange.roundRobin(Exchange.producersOf(child), workers);
+    	// without grouping every partial has the single group, so there is
+    	// nothing to spread over several partitions
+    	final int n = gfields.length == 0 ? 1 : workers;
+    	final Aggregator[][] partials = new Aggregator[workers][n];
+    	// each worker's share of the groups held in memory
+    	final int budget = Math.max(1, maxGroups / workers);
+    	WorkerPool.runOnWorkers(workers, new WorkerPool.Work() {
+    		public void run(int w) throws DbException, TransactionAbortedException {
+    			Aggregator[] mine = partials[w];
+    			for(int p = 0; p < n; p++)
+    				mine[p] = newAggregator();
+    			int held = 0;
+    			in[w].open();
+    			try {
+    				while(in[w].hasNext()) {
+    					Tuple tup = in[w].next();
+    					Aggregator a = mine[n == 1 ? 0 : mergePartitionOf(tup, n)];
+    					if(held >= budget && n > 1 && !a.hasGroup(tup)) {
+    						spillShared(tup);
+    						continue;
+    					}
+    					int before = a.numGroups();
+    					a.mergeTupleIntoGroup(tup);
+    					held += a.numGroups() - before;
+    				}
+    			} finally {
+    				in[w].close();
+    			}
+    		}
+    	});
+
+    	merged = new Aggregator[n];
+    	WorkerPool.runOnWorkers(Math.min(workers, n), new WorkerPool.Work() {
+    		public void run(int w) {
+    			for(int p = w; p < n; p += workers) {
+    				Aggregator all = partials[0][p];
+    				for(int from = 1; from < workers; from++) {
+    					all.merge(partials[from][p]);
+    					partials[from][p] = null;
+    				}
+    				merged[p] = all;
+    			}
+    		}
+    	});
+    	spilled = parts != null;
+    	if(spilled)
+    		foldSpilled();
+    	openMerged(0);
+    }
+
+    /**
+     * Add tup to the partitions shared by the workers of a parallel
+     * aggregation, creating them on first use.
+     */
+    private synchronized void spillShared(Tuple tup) throws DbException {
+    	if(parts == null) {
+    		parts = new TupleSpillFile[NUM_PARTITIONS];
+    		for(int i = 0; i < NUM_PARTITIONS; i++)
+    			parts[i] = new TupleSpillFile(td);
+    	}
+    	parts[partitionOf(tup, 0)].add(tup);
+    }
+
+    /**
+     * Fold the tuples the workers spilled into the merged groups they
+     * belong to, where some worker held that group; the others are left in
+     * pending partitions, whose groups no merged aggregator has.
+     */
+    private void foldSpilled() throws DbException, TransactionAbortedException {
+    	int n = merged.length;
+    	for(TupleSpillFile part : parts) {
+    		part.finish();
+    		TupleSpillFile rest = new TupleSpillFile(td);
+    		DbFileIterator it = part.iterator();
+    		it.open();
+    		while(it.hasNext()) {
+    			Tuple tup = it.next();
+    			Aggregator m = merged[mergePartitionOf(tup, n)];
+    			if(m.hasGroup(tup))
+    				m.mergeTupleIntoGroup(tup);
+    			else
+    				rest.add(tup);
+    		}
+    		it.close();
+    		part.delete();
+    		rest.finish();
+    		if(rest.size() == 0) {
+    			rest.delete();
+    		} else {
+    			pending.add(rest);
+    			pendingLevels.add(1);
+    		}
+    	}
+    	parts = null;
+    }
+
+    /**
+     * Start returning the merged partition p.
+     */
+    private void openMerged(int p) throws DbException, TransactionAbortedException {
+    	if(aIterator != null)
+    		aIterator.close();
+    	aIterator = merged[p].iterator();
+    	aIterator.open();
+    	nextMerged = p + 1;
+    }
+
+    private void aggregateChild() throws DbException, TransactionAbortedException {
+    	pending = new LinkedList<TupleSpillFile>();
+    	pendingLevels = new LinkedList<Integer>();
+    	startRound();
     	while(child.hasNext())
-    		aggregator.mergeTupleIntoGroup(child.next());
-    	
+    		consume(child.next(), 0);
+    	spilled = parts != null;
+    	finishRound(0);
+    }
+
+    private void aggregatePartition(TupleSpillFile part, int level)
+    		throws DbException, TransactionAbortedException {
+    	startRound();
+    	DbFileIterator it = part.iterator();
+    	it.open();
+    	while(it.hasNext())
+    		consume(it.next(), level);
+    	it.close();
+    	part.delete();
+    	finishRound(level);
+    }
+
+    private void startRound() {
+    	if(aIterator != null)
+    		aIterator.close();
+    	aIterator = null;
+    	aggregator = newAggregator();
+    }
+
+    /**
+     * Merge tup into its group, or spill it if its group is new and the
+     * aggregator is full.
+     */
+    private void consume(Tuple tup, int level) throws DbException {
+    	if(parts != null && !aggregator.hasGroup(tup)) {
+    		parts[partitionOf(tup, level)].add(tup);
+    		return;
+    	}
+    	aggregator.mergeTupleIntoGroup(tup);
+    	if(parts == null && aggregator.numGroups() >= maxGroups
+    			&& gfield != Aggregator.NO_GROUPING && level <= MAX_LEVEL) {
+    		parts = new TupleSpillFile[NUM_PARTITIONS];
+    		for(int i = 0; i < NUM_PARTITIONS; i++)
+    			parts[i] = new TupleSpillFile(td);
+    	}
+    }
+
+    private void finishRound(int level) throws DbException, TransactionAbortedException {
+    	if(parts != null) {
+    		for(TupleSpillFile part : parts) {
+    			part.finish();
+    			if(part.size() == 0) {
+    				part.delete();
+    			} else {
+    				pending.add(part);
+    				pendingLevels.add(level + 1);
+    			}
+    		}
+    		parts = null;
+    	}
     	aIterator = aggregator.iterator();
     	aIterator.open();
-    	super.open();
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate, If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Returns the next tuple: the values of the group by fields, if any,
+     * followed by the result of each aggregate. Should return null if there
+     * are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
     	// some code goes here
-    	if(aIterator.hasNext())
-    		return aIterator.next();
-    	else // no more tuples
-    		return null;
+    	while(true) {
+    		if(aIterator.hasNext())
+    			return aIterator.next();
+    		if(merged != null && nextMerged < merged.length) {
+    			openMerged(nextMerged);
+    			continue;
+    		}
+    		if(pending.isEmpty()) // no more tuples
+    			return null;
+    		aggregatePartition(pending.removeFirst(), pendingLevels.removeFirst());
+    	}
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
     	// some code goes here
+    	if(merged != null && !spilled) {
+    		openMerged(0);
+    		return;
+    	}
+    	if(!spilled) {
+    		aIterator.rewind();
+    		return;
+    	}
+    	// the spilled partitions are gone once aggregated
+    	deletePartitions();
+    	if(merged != null) {
+    		aggregateParallel();
+    		return;
+    	}
     	child.rewind();
-    	aIterator.rewind();
+    	aggregateChild();
+    }
+
+    private void deletePartitions() {
+    	if(parts != null) {
+    		for(TupleSpillFile part : parts)
+    			part.delete();
+    	}
+    	parts = null;
+    	if(pending != null) {
+    		for(TupleSpillFile part : pending)
+    			part.delete();
+    		pending.clear();
+    		pendingLevels.clear();
+    	}
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate: the group by fields, if any,
+     * followed by one column per aggregate.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -163,44 +526,19 @@ public class Aggregate extends Operator {
      */
     public TupleDesc getTupleDesc() {
     	// some code goes here
-    	Type[] typeAr;	// array of types of fields
-    	String[] fieldAr; // array of names of fields
-    	
-    	// if there is no group by field
-    	if(afield == Aggregator.NO_GROUPING) {
-    		// TupleDesc has one field: the aggregate column
-    		typeAr = new Type[1];
-    		fieldAr = new String[1];
-    		
-    		typeAr[0] = td.getFieldType(afield);
-    		// informative aggregate column name
-    		// aggName(aop) (child_td.getFieldName(afield))
-    		fieldAr[0] = aop.toString() + " (" + td.getFieldName(afield) + ")";
-    		
-    		return new TupleDesc(typeAr, fieldAr);
-    	}
-    	// if there is a group by field
-    	else {
-    		// TupleDesc has two fields: 
-    		// the first field will be the group by field, 
-    		// the second will be the aggregate value column
-    		typeAr = new Type[2];
-    		fieldAr = new String[2];
-    		
-    		typeAr[0] = td.getFieldType(gfield);
-    		fieldAr[0] = td.getFieldName(gfield);
-    		
-    		typeAr[1] = td.getFieldType(afield);
-    		fieldAr[1] = aop.toString() + " (" + td.getFieldName(afield) + ")";
-    		
-    		return new TupleDesc(typeAr, fieldAr);
-    	}
+    	return GroupAggregator.outputDesc(td, gfields, afields, aops);
     }
 
     public void close() {
     	// some code goes here
-    	child.close();
-    	aggregator.iterator().close();
+    	// in parallel the exchange opens and closes the child
+    	if(workers == 1)
+    		child.close();
+    	if(aIterator != null)
+    		aIterator.close();
+    	aIterator = null;
+    	merged = null;
+    	deletePartitions();
     	super.close();
     }
 
@@ -57,6 +57,27 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * @return the number of distinct groups merged so far
+     */
+    public int numGroups();
+
+    /**
+     * @return true if the group of tup has already been created, i.e. if
+     *         merging tup would not add a group
+     */
+    public boolean hasGroup(Tuple tup);
+
+    /**
+     * Fold the groups of partial, an aggregator of the same kind built over
+     * other tuples, into this one, as if this aggregator had merged those
+     * tuples itself. Afterwards partial must no longer be used.
+     *
+     * @throws IllegalArgumentException
+     *             if partial computes different aggregates
+     */
+    public void merge(Aggregator partial);
+
     /**
      * Create a DbIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
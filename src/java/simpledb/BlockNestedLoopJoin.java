@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BlockNestedLoopJoin is a nested loops join that reads the outer (left)
+ * relation a block of tuples at a time and compares every tuple of the inner
+ * relation against the whole block. The inner relation is rescanned once per
+ * block instead of once per outer tuple, which divides the inner-side I/O by
+ * the block size. Like {@link Join} it evaluates any predicate.
+ * <p>
+ * A block holds as many outer tuples as fit in the pages of the buffer pool
+ * (see {@link #blockSize}), unless setBlockSize says otherwise.
+ */
+public class BlockNestedLoopJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+
+    // outer tuples per block, or 0 to size blocks by the buffer pool
+    private int blockSize;
+    // the block size in effect while open
+    private transient int openBlockSize;
+    private transient ArrayList<Tuple> block;
+    // index of the next block tuple to compare against right
+    private transient int blockPos;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public BlockNestedLoopJoin(JoinPredicate p, DbIterator child1,
+            DbIterator child2) {
+        super(p, child1, child2);
+    }
+
+    /**
+     * Set the number of outer tuples read per block. Must be called before
+     * open().
+     */
+    public void setBlockSize(int tuples) {
+        this.blockSize = Math.max(1, tuples);
+    }
+
+    /**
+     * @return the number of outer tuples of tupleBytes bytes each that fit
+     *         in the pages of the buffer pool, and so make up a block
+     */
+    public static int blockSize(int tupleBytes) {
+        long bytes = (long) Database.getBufferPool().getNumPages() * BufferPool.PAGE_SIZE;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / Math.max(1, tupleBytes)));
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        openBlockSize = blockSize > 0 ? blockSize
+                : blockSize(child1.getTupleDesc().getSize());
+        block = new ArrayList<Tuple>();
+        loadBlock();
+    }
+
+    public void close() {
+        super.close();
+        block = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        loadBlock();
+    }
+
+    /**
+     * Read the next block of outer tuples.
+     *
+     * @return false if the outer relation is exhausted
+     */
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        while (block.size() < openBlockSize && child1.hasNext())
+            block.add(child1.next());
+        right = null;
+        blockPos = 0;
+        return !block.isEmpty();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Tuples come out grouped by block, and within a block by
+     * inner tuple.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (!block.isEmpty()) {
+            if (right != null) {
+                while (blockPos < block.size()) {
+                    left = block.get(blockPos++);
+                    if (this.compiled.filter(left, right))
+                        return Tuple.merge(getTupleDesc(), left, right);
+                }
+            }
+            if (child2.hasNext()) {
+                right = child2.next();
+                blockPos = 0;
+                continue;
+            }
+            // inner relation exhausted for this block: move to the next one
+            if (!loadBlock())
+                break;
+            child2.rewind();
+        }
+        return null;
+    }
+}
@@ -2,6 +2,8 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -54,11 +56,37 @@ public class BufferPool {
         addToHead(node);
     }
 
+    // guards the cache. A ReentrantLock rather than the object's monitor,
+    // so that a virtual thread waiting for it does not pin its carrier
+    // thread. LogFile takes it before its own lock.
+    final ReentrantLock lock = new ReentrantLock();
+    // pages being read from disk by getPage, which reads without the lock;
+    // other readers of such a page wait on loaded instead of reading it too
+    private final HashSet<PageId> loading = new HashSet<PageId>();
+    private final Condition loaded = lock.newCondition();
+
     private int capacity; //the capacity of the page
     private HashMap<PageId, DLinkedNode> map; //the LRU cache
     DLinkedNode head, tail;
     int count; //current number of pages in cache
 
+    // the dirty page table: for each dirty page, the LSN of the first
+    // logged change since it was last written; a written page stays in it
+    // until its file has been synced
+    private final HashMap<PageId, Long> recLsns = new HashMap<PageId, Long>();
+    // pages written since their file was last synced, each with the number
+    // of its latest write among all writes
+    private final HashMap<PageId, Long> written = new HashMap<PageId, Long>();
+    private long writes;
+
+    /** Pages the writer thread writes per turn of the lock. */
+    static final int WRITE_BATCH = 8;
+    // pages a checkpoint left dirty, for the writer thread to write
+    private final LinkedHashSet<PageId> writeBehind = new LinkedHashSet<PageId>();
+    private Thread writer;
+    // set once the pool is replaced; no writer thread starts after that
+    private boolean stopped;
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -74,6 +102,11 @@ public class BufferPool {
         tail.pre = head;
     }
 
+    /** @return the maximum number of pages in this buffer pool */
+    public int getNumPages() {
+        return capacity;
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -89,42 +122,58 @@ public class BufferPool {
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
      */
-    public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
-        if(map.containsKey(pid)){
-            DLinkedNode page = map.get(pid);
-            DLinkedNode p = head.next;
-            while(p!=null){
-                if(p.key.equals(pid)) break;
-                p = p.next;
+        DbFile file;
+        lock.lock();
+        try {
+            while(true){
+                DLinkedNode cached = map.get(pid);
+                if(cached!=null){
+                    moveToHead(cached);
+                    return cached.value;
+                }
+                if(!loading.contains(pid))
+                    break;
+                loaded.awaitUninterruptibly();
             }
-            moveToHead(p);
-            return page.value;
-        }else{
-            DLinkedNode node = new DLinkedNode();
-            Page page = null;
-            if(perm.toString().equals("READ_ONLY") || perm.toString().equals("READ_WRITE")){
-                Catalog catalog = Database.getCatalog();
-                if(catalog!=null){
-                    DbFile file = catalog.getDbFile(pid.getTableId());
-                    if(file!=null){
-                        page = file.readPage(pid);
-                        node.key = pid;
-                        node.value = page;
+            if(!perm.toString().equals("READ_ONLY") && !perm.toString().equals("READ_WRITE"))
+                throw new TransactionAbortedException();
+            Catalog catalog = Database.getCatalog();
+            if(catalog==null)
+                throw new TransactionAbortedException();
+            file = catalog.getDbFile(pid.getTableId());
+            if(file==null)
+                throw new TransactionAbortedException();
+            loading.add(pid);
+        } finally {
+            lock.unlock();
+        }
+
+        // read without the lock, so that hits and other misses go on
+        Page page = null;
+        try {
+            page = file.readPage(pid);
+        } finally {
+            lock.lock();
+            try {
+                loading.remove(pid);
+                loaded.signalAll();
+                if(page!=null){
+                    DLinkedNode cached = map.get(pid);
+                    if(cached!=null){
+                        // a newer version was cached while reading
+                        moveToHead(cached);
+                        page = cached.value;
+                    }else{
+                        cachePage(page);
                     }
-                    else throw new TransactionAbortedException();
-                }else throw new TransactionAbortedException();
-            }else throw new TransactionAbortedException();
-            
-            if(count<capacity){
-                count++;               
-            }else{
-                evictPage();
+                }
+            } finally {
+                lock.unlock();
             }
-            addToHead(node);
-            map.put(pid, node);
-            return page;
         }
+        return page;
     }
 
     /**
@@ -187,17 +236,22 @@ public class BufferPool {
      */
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-        HeapFile file = (HeapFile)Database.getCatalog().getDbFile(tableId);
-        ArrayList<Page> pages =  file.insertTuple(tid, t);
-        for(int i=0; i<pages.size(); i++){
-            Page p = pages.get(i);
-            p.markDirty(true, tid);
-            DLinkedNode node = new DLinkedNode();
-            node.key = p.getId();
-            node.value = p;
-            map.put(p.getId(), node);
-        }
+        lock.lock();
+        try {
+            HeapFile file = (HeapFile)Database.getCatalog().getDbFile(tableId);
+            ArrayList<Page> pages =  file.insertTuple(tid, t);
+            long lsn = Database.getLogFile().logInsert(tid, t);
+            for(int i=0; i<pages.size(); i++){
+                Page p = pages.get(i);
+                p.markDirty(true, tid);
+                if(p.getId().equals(t.getRecordId().getPageId()))
+                    stamp(p, lsn);
+                cachePage(p);
+            }
 
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -213,16 +267,224 @@ public class BufferPool {
      * @param tid the transaction adding the tuple.
      * @param t the tuple to add
      */
-    public  void deleteTuple(TransactionId tid, Tuple t)
+    public void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, TransactionAbortedException {
-        HeapFile file = (HeapFile)Database.getCatalog().getDbFile(t.getRecordId().getPageId().getTableId());
-        Page page = file.deleteTuple(tid, t);
-        page.markDirty(true, tid);
-        PageId pid = page.getId();
-        DLinkedNode node = new DLinkedNode();
-        node.key = pid;
+        lock.lock();
+        try {
+            HeapFile file = (HeapFile)Database.getCatalog().getDbFile(t.getRecordId().getPageId().getTableId());
+            long lsn;
+            try {
+                lsn = Database.getLogFile().logDelete(tid, t);
+            } catch (IOException e) {
+                throw new DbException("can't log delete: " + e.getMessage());
+            }
+            Page page = file.deleteTuple(tid, t);
+            page.markDirty(true, tid);
+            stamp(page, lsn);
+            cachePage(page);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stamp page with the LSN of a logged change to it, and enter it in the
+     * dirty page table if this is its first change since it was written.
+     * The caller holds the lock.
+     */
+    void stamp(Page page, long lsn) {
+        page.setLSN(lsn);
+        if(!recLsns.containsKey(page.getId()))
+            recLsns.put(page.getId(), lsn);
+    }
+
+    /**
+     * The dirty page table, for a checkpoint to record: every dirty page
+     * with the LSN of the first logged change since it was last written,
+     * and every written page whose file has not been synced since, with the
+     * LSN it had when it was last dirtied.  Dirty pages that no logged change
+     * accounts for are written now, so recovery need not know about them.
+     * The caller holds the lock.
+     */
+    Map<PageId, Long> dirtyPageTable() throws IOException {
+        HashMap<PageId, Long> table = new HashMap<PageId, Long>();
+        ArrayList<Page> unlogged = new ArrayList<Page>();
+        for(DLinkedNode node : map.values()){
+            if(node.value.isDirty()==null)
+                continue;
+            Long lsn = recLsns.get(node.key);
+            if(lsn==null)
+                unlogged.add(node.value);
+            else
+                table.put(node.key, lsn);
+        }
+        flushDirty(unlogged);
+        for(PageId pid : written.keySet()){
+            Long lsn = recLsns.get(pid);
+            if(lsn!=null && !table.containsKey(pid))
+                table.put(pid, lsn);
+        }
+        return table;
+    }
+
+    /**
+     * Sync the files of the pages written so far, and drop from the dirty
+     * page table those that have not been dirtied again since, so that a
+     * checkpoint lets the log be truncated past their changes. Takes the
+     * lock only to look at the tables, not while syncing.
+     */
+    void syncWritten() throws IOException {
+        HashMap<PageId, Long> synced;
+        lock.lock();
+        try {
+            if(written.isEmpty())
+                return;
+            synced = new HashMap<PageId, Long>(written);
+        } finally {
+            lock.unlock();
+        }
+        HashSet<Integer> tables = new HashSet<Integer>();
+        for(PageId pid : synced.keySet()){
+            if(tables.add(pid.getTableId())){
+                try {
+                    Database.getCatalog().getDbFile(pid.getTableId()).sync();
+                } catch (NoSuchElementException e) {
+                    // the table is gone, and its pages with it
+                }
+            }
+        }
+        lock.lock();
+        try {
+            for(Map.Entry<PageId, Long> e : synced.entrySet()){
+                PageId pid = e.getKey();
+                // written again while syncing: the later write may not be
+                // on disk yet
+                if(!e.getValue().equals(written.get(pid)))
+                    continue;
+                written.remove(pid);
+                DLinkedNode node = map.get(pid);
+                if(node==null || node.value.isDirty()==null)
+                    recLsns.remove(pid);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write the given pages, those still dirty and cached, on a background
+     * thread, WRITE_BATCH at a time, so that transactions run between the
+     * batches.  A checkpoint hands its dirty pages here rather than writing
+     * them itself; once they are written, the next checkpoint lets the log
+     * be truncated further.
+     */
+    public void writeBehind(Collection<PageId> pids) {
+        lock.lock();
+        try {
+            if(stopped)
+                return;
+            writeBehind.addAll(pids);
+            if(writer==null && !writeBehind.isEmpty()){
+                writer = new Thread(new Runnable() {
+                    public void run() {
+                        writeBatches();
+                    }
+                }, "simpledb-page-writer");
+                writer.setDaemon(true);
+                writer.start();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the writer thread, dropping the pages it has yet to write, and
+     * wait for it to exit, so that it writes nothing once this pool has
+     * been replaced by another.
+     */
+    void stopWriter() {
+        Thread w;
+        lock.lock();
+        try {
+            stopped = true;
+            writeBehind.clear();
+            w = writer;
+        } finally {
+            lock.unlock();
+        }
+        if(w==null || w==Thread.currentThread())
+            return;
+        boolean interrupted = false;
+        while(w.isAlive()){
+            try {
+                w.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /** Body of the writer thread; exits when it has nothing to write. */
+    private void writeBatches() {
+        while(true){
+            lock.lock();
+            try {
+                if(writeBehind.isEmpty()){
+                    writeBehind.clear();
+                    writer = null;
+                    return;
+                }
+                ArrayList<Page> batch = new ArrayList<Page>();
+                Iterator<PageId> it = writeBehind.iterator();
+                while(it.hasNext() && batch.size()<WRITE_BATCH){
+                    DLinkedNode node = map.get(it.next());
+                    it.remove();
+                    if(node!=null && node.value.isDirty()!=null)
+                        batch.add(node.value);
+                }
+                flushDirty(batch);
+            } catch (IOException e) {
+                // the pages stay dirty, and in the next checkpoint
+                e.printStackTrace();
+                writeBehind.clear();
+                writer = null;
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                syncWritten();
+            } catch (IOException e) {
+                // the pages stay in the dirty page table until a later sync
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Make page the cached version of its page id, reusing its LRU node if
+     * the page id is cached already. The caller holds the lock.
+     */
+    private void cachePage(Page page) throws DbException {
+        DLinkedNode node = map.get(page.getId());
+        if(node!=null){
+            node.value = page;
+            moveToHead(node);
+            return;
+        }
+        node = new DLinkedNode();
+        node.key = page.getId();
         node.value = page;
-        map.put(pid, node);
+        if(count<capacity){
+            count++;
+        }else{
+            evictPage();
+        }
+        addToHead(node);
+        map.put(node.key, node);
     }
 
     /**
@@ -230,9 +492,17 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
-        for(PageId p : map.keySet()){
-            flushPage(p);
+    public void flushAllPages() throws IOException {
+        lock.lock();
+        try {
+            ArrayList<Page> dirty = new ArrayList<Page>();
+            for(DLinkedNode node : map.values()){
+                if(node.value.isDirty()!=null)
+                    dirty.add(node.value);
+            }
+            flushDirty(dirty);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -241,41 +511,85 @@ public class BufferPool {
         buffer pool doesn't keep a rolled back page in its
         cache.
     */
-    public synchronized void discardPage(PageId pid) {
-        // some code goes here
-	// not necessary for proj1
+    public void discardPage(PageId pid) {
+        lock.lock();
+        try {
+            DLinkedNode node = map.remove(pid);
+            if(node!=null){
+                rmNode(node);
+                count--;
+            }
+            if(!written.containsKey(pid))
+                recLsns.remove(pid);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk; the caller holds the lock.
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         Page page = map.get(pid).value;
-        HeapFile file = (HeapFile)Database.getCatalog().getDbFile(pid.getTableId());
-        if(((HeapPage)page).isDirty()!=null){
-            file.writePage(page);
-            ((HeapPage)page).markDirty(false, null);
-        }   
+        if(page.isDirty()!=null){
+            Database.getLogFile().force(page.getLSN());
+            writePage(page);
+        }
+    }
+
+    /**
+     * Flushes dirty pages to disk: forces the log once, up to the last of
+     * their LSNs, as write-ahead logging requires, and then writes them.
+     * insertTuple and deleteTuple have logged every change to them already.
+     * The caller holds the lock.
+     */
+    private void flushDirty(List<Page> dirty) throws IOException {
+        if(dirty.isEmpty())
+            return;
+        long lsn = 0;
+        for(Page p : dirty){
+            lsn = Math.max(lsn, p.getLSN());
+        }
+        Database.getLogFile().force(lsn);
+        for(Page p : dirty){
+            writePage(p);
+        }
+    }
+
+    private void writePage(Page page) throws IOException {
+        DbFile file = Database.getCatalog().getDbFile(page.getId().getTableId());
+        file.writePage(page);
+        page.markDirty(false, null);
+        // stays in the dirty page table until syncWritten
+        written.put(page.getId(), ++writes);
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
-        for(DLinkedNode node : map.values()){
-            Page p = node.value;
-            TransactionId tdid = p.isDirty();
-            if(tdid!=null && tdid.equals(tid)){
-                flushPage(p.getId());
+    public void flushPages(TransactionId tid) throws IOException {
+        lock.lock();
+        try {
+            ArrayList<Page> dirty = new ArrayList<Page>();
+            for(DLinkedNode node : map.values()){
+                Page p = node.value;
+                TransactionId tdid = p.isDirty();
+                if(tdid!=null && tdid.equals(tid)){
+                    dirty.add(p);
+                }
             }
+            flushDirty(dirty);
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The caller holds the lock.
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         DLinkedNode tail = rmTail();
         PageId pid = tail.key;
         try{
@@ -284,6 +598,8 @@ public class BufferPool {
             e.printStackTrace();
         }
         map.remove(pid);
+        if(!written.containsKey(pid))
+            recLsns.remove(pid);
     }
 
 }
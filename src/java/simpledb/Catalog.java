@@ -143,6 +143,7 @@ public class Catalog {
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
                 String primaryKey = "";
+                int indexField = -1;
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -157,6 +158,8 @@ public class Catalog {
                     if (els2.length == 3) {
                         if (els2[2].trim().equals("pk"))
                             primaryKey = els2[0].trim();
+                        else if (els2[2].trim().equals("index"))
+                            indexField = names.size() - 1;
                         else {
                             System.out.println("Unknown annotation " + els2[2]);
                             System.exit(0);
@@ -166,7 +169,9 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                File f = new File(baseFolder+"/"+name + ".dat");
+                HeapFile tabHf = indexField < 0 ? new HeapFile(f, t)
+                        : new IndexedHeapFile(f, t, indexField);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
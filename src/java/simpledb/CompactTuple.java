@@ -0,0 +1,176 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * CompactTuple is a Tuple that keeps its fields packed in a single byte array,
+ * laid out exactly as the tuple is stored on a HeapPage (see
+ * {@link TupleDesc#getFieldOffset}). Integer fields are read straight out of
+ * the array by {@link #getInt}, and Field objects are only created when a
+ * caller asks for one through {@link #getField}.
+ * <p>
+ * HeapPage hands out CompactTuples, and operators that only combine or
+ * reorder fields (joins, projections) keep the packed form, so a scan-join-
+ * aggregate pipeline over integer columns does not allocate one object per
+ * field per row.
+ * <p>
+ * StringFields from {@link #getField} and the array from {@link #getData}
+ * share the tuple's bytes, so {@link #setField} copies them before its first
+ * write once any were handed out; a field handed out earlier keeps its
+ * value, and its hash, as hash keys need.
+ */
+public class CompactTuple extends Tuple {
+
+    private static final long serialVersionUID = 1L;
+
+    private byte[] data;
+    // whether anyone else may hold data; setField copies it first if so
+    private boolean shared;
+
+    /**
+     * Create a new, zero-filled packed tuple with the specified schema.
+     *
+     * @param td
+     *            the schema of this tuple. It must be a valid TupleDesc
+     *            instance with at least one field.
+     */
+    public CompactTuple(TupleDesc td) {
+        this(td, new byte[td.getSize()], false);
+    }
+
+    /**
+     * Create a packed tuple over the specified bytes. The array is used as
+     * is, not copied, and setField copies it before writing.
+     *
+     * @param td
+     *            the schema of this tuple
+     * @param data
+     *            the serialized fields of the tuple; must be td.getSize()
+     *            bytes long
+     */
+    public CompactTuple(TupleDesc td, byte[] data) {
+        this(td, data, true);
+    }
+
+    private CompactTuple(TupleDesc td, byte[] data, boolean shared) {
+        super(td, null);
+        if(data.length != td.getSize())
+            throw new IllegalArgumentException("tuple data does not match TupleDesc size");
+        this.data = data;
+        this.shared = shared;
+    }
+
+    /**
+     * @return the packed bytes backing this tuple. Callers must not modify
+     *         the returned array.
+     */
+    public byte[] getData() {
+        shared = true;
+        return this.data;
+    }
+
+    public void setField(int i, Field f) {
+        TupleDesc td = getTupleDesc();
+        if(i<0 || i>=td.numFields()){
+            /*invalid index, do something*/
+            return;
+        }
+        int off = td.getFieldOffset(i);
+        if(shared){
+            data = data.clone();
+            shared = false;
+        }
+        if(f instanceof IntField){
+            writeInt(data, off, ((IntField) f).getValue());
+            return;
+        }
+        if(f instanceof StringField){
+            ((StringField) f).serialize(data, off);
+            return;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(f.getType().getLen());
+        try {
+            f.serialize(new DataOutputStream(baos));
+        } catch (IOException e) {
+            // writing to memory, this really shouldn't happen
+            throw new RuntimeException(e);
+        }
+        System.arraycopy(baos.toByteArray(), 0, data, off, f.getType().getLen());
+    }
+
+    public Field getField(int i) {
+        TupleDesc td = getTupleDesc();
+        if(i<0 || i>=td.numFields()) throw new NoSuchElementException();
+        if(td.getFieldType(i) != Type.INT_TYPE)
+            shared = true;
+        return td.getFieldType(i).parse(data, td.getFieldOffset(i));
+    }
+
+    /**
+     * @return the int at byte offset off, without handing out the array
+     */
+    int intAt(int off) {
+        return readInt(data, off);
+    }
+
+    public int getInt(int i) {
+        TupleDesc td = getTupleDesc();
+        if(td.getFieldType(i) != Type.INT_TYPE) throw new ClassCastException("field " + i + " is not an int");
+        return readInt(data, td.getFieldOffset(i));
+    }
+
+    public void serialize(DataOutputStream dos) throws IOException {
+        dos.write(data);
+    }
+
+    public Tuple project(TupleDesc td, int[] fieldIds) {
+        TupleDesc mine = getTupleDesc();
+        byte[] out = new byte[td.getSize()];
+        int pos = 0;
+        for(int i=0; i<fieldIds.length; i++){
+            int len = mine.getFieldType(fieldIds[i]).getLen();
+            System.arraycopy(data, mine.getFieldOffset(fieldIds[i]), out, pos, len);
+            pos += len;
+        }
+        return new CompactTuple(td, out, false);
+    }
+
+    public Iterator<Field> fields() {
+        int n = getTupleDesc().numFields();
+        ArrayList<Field> list = new ArrayList<Field>(n);
+        for(int i=0; i<n; i++){
+            list.add(getField(i));
+        }
+        return list.iterator();
+    }
+
+    /**
+     * Concatenate two packed tuples into a new packed tuple with schema td.
+     */
+    static CompactTuple merge(TupleDesc td, CompactTuple t1, CompactTuple t2) {
+        byte[] out = new byte[t1.data.length + t2.data.length];
+        System.arraycopy(t1.data, 0, out, 0, t1.data.length);
+        System.arraycopy(t2.data, 0, out, t1.data.length, t2.data.length);
+        return new CompactTuple(td, out, false);
+    }
+
+    /**
+     * Read a big-endian int (the format written by DataOutputStream) from
+     * data[off..off+3].
+     */
+    static int readInt(byte[] data, int off) {
+        return ((data[off] & 0xff) << 24) | ((data[off+1] & 0xff) << 16)
+                | ((data[off+2] & 0xff) << 8) | (data[off+3] & 0xff);
+    }
+
+    /**
+     * Write v as a big-endian int to data[off..off+3].
+     */
+    static void writeInt(byte[] data, int off, int v) {
+        data[off] = (byte) (v >>> 24);
+        data[off+1] = (byte) (v >>> 16);
+        data[off+2] = (byte) (v >>> 8);
+        data[off+3] = (byte) v;
+    }
+}
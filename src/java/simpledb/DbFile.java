@@ -28,6 +28,14 @@ public interface DbFile extends Serializable {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Force the pages written so far to the disk, so that they survive a
+     * crash of the operating system.
+     *
+     * @throws IOException if the force fails
+     */
+    public void sync() throws IOException;
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
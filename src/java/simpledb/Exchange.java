@@ -0,0 +1,429 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exchange moves tuples between threads, Volcano style. An exchange has one
+ * or more producers -- arbitrary subplans, each run to completion on its own
+ * worker thread -- and one or more consumers, each an Exchange operator that
+ * reads its share of the producers' output on whatever thread drives it. The
+ * operators above and below an exchange need not know about threads at all.
+ * <p>
+ * A gather exchange has a single consumer that reads everything. A
+ * repartitioning exchange has several consumers and routes each tuple to one
+ * of them, either by a hash of some of its fields, so that equal keys always
+ * meet in the same consumer, or round-robin. Tuples travel in batches
+ * through one bounded lock-free {@link SpscQueue} per producer and consumer
+ * pair; a producer that gets ahead of its consumer waits.
+ * <p>
+ * The producers start when the first consumer is opened and are stopped,
+ * and their subplans closed, once every consumer has been closed. An error
+ * in a producer, such as a TransactionAbortedException, stops all producers
+ * and is rethrown by every consumer.
+ */
+public class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Tuples per batch sent through the queues. */
+    static final int BATCH_SIZE = 256;
+    /** Batches each queue holds. */
+    static final int QUEUE_BATCHES = 16;
+    // how long a side that cannot make progress waits before retrying
+    private static final long PARK_NANOS = 100000;
+    // marks the end of one producer's output
+    private static final Tuple[] DONE = new Tuple[0];
+
+    private final Channel channel;
+    private final int index;
+
+    // set once this consumer has been opened or closed in the current pass
+    private boolean seen;
+    private volatile boolean closed;
+    // the thread waiting for this consumer's queues to fill, if any
+    private volatile Thread waiter;
+
+    private transient Tuple[] batch;
+    private transient int pos;
+    private transient boolean[] finished;
+    private transient int remaining;
+    private transient int nextProducer;
+
+    private Exchange(Channel channel, int index) {
+        this.channel = channel;
+        this.index = index;
+    }
+
+    /**
+     * @return a single consumer reading the output of all the producers, in
+     *         no particular order
+     */
+    public static Exchange gather(DbIterator... producers) {
+        return new Channel(producers, 1, null).consumers[0];
+    }
+
+    /**
+     * @return consumers consumers that each read the tuples of the producers
+     *         whose fields hash to it; tuples with equal fields go to the
+     *         same consumer
+     */
+    public static Exchange[] hash(DbIterator[] producers, int consumers, int[] fields) {
+        return new Channel(producers, consumers, fields.clone()).consumers.clone();
+    }
+
+    /**
+     * @return consumers consumers that receive the tuples of the producers in
+     *         turn
+     */
+    public static Exchange[] roundRobin(DbIterator[] producers, int consumers) {
+        return new Channel(producers, consumers, null).consumers.clone();
+    }
+
+    /**
+     * @return the subplans to repartition plan from: the producers of plan if
+     *         it merely gathers them, else plan itself
+     */
+    public static DbIterator[] producersOf(DbIterator plan) {
+        if (plan instanceof Exchange && ((Exchange) plan).isGather())
+            return ((Exchange) plan).getProducers();
+        return new DbIterator[] { plan };
+    }
+
+    /**
+     * @return true if this is the only consumer of its exchange
+     */
+    public boolean isGather() {
+        return channel.consumers.length == 1;
+    }
+
+    /**
+     * @return the subplans that feed this exchange
+     */
+    public DbIterator[] getProducers() {
+        return channel.producers.clone();
+    }
+
+    /**
+     * @return a short description of this exchange for query plans
+     */
+    public String getName() {
+        int n = channel.producers.length;
+        if (isGather())
+            return "gather(" + n + ")";
+        String ways = n + "->" + channel.consumers.length;
+        if (channel.fields == null)
+            return "round robin(" + ways + ")";
+        TupleDesc td = getTupleDesc();
+        String fields = "";
+        for (int f : channel.fields)
+            fields += (fields.length() == 0 ? "" : ",") + td.getFieldName(f);
+        return "hash(" + fields + "," + ways + ")";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return channel.producers[0].getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        channel.open(this);
+        reset();
+        super.open();
+    }
+
+    private void reset() {
+        batch = null;
+        pos = 0;
+        finished = new boolean[channel.producers.length];
+        remaining = finished.length;
+        nextProducer = 0;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (batch == null || pos == batch.length) {
+            if (remaining == 0) {
+                // a failed producer still says DONE
+                Throwable e = channel.error.get();
+                if (e != null)
+                    WorkerPool.rethrow(e);
+                return null;
+            }
+            batch = take();
+            pos = 0;
+        }
+        return batch[pos++];
+    }
+
+    /**
+     * Wait for the next batch from any producer that is not finished yet.
+     *
+     * @return the batch, or DONE once every producer is finished
+     */
+    private Tuple[] take() throws DbException, TransactionAbortedException {
+        int n = finished.length;
+        boolean parked = false;
+        while (true) {
+            Throwable e = channel.error.get();
+            if (e != null)
+                WorkerPool.rethrow(e);
+            for (int k = 0; k < n; k++) {
+                int p = (nextProducer + k) % n;
+                if (finished[p])
+                    continue;
+                Tuple[] b = channel.queues[p][index].poll();
+                if (b == null)
+                    continue;
+                waiter = null;
+                nextProducer = p + 1;
+                if (b == DONE) {
+                    finished[p] = true;
+                    if (--remaining == 0)
+                        return DONE;
+                    continue;
+                }
+                return b;
+            }
+            if (!parked) {
+                // look once more after announcing ourselves, so a producer
+                // that published in between is not missed
+                waiter = Thread.currentThread();
+                parked = true;
+                continue;
+            }
+            LockSupport.parkNanos(this, PARK_NANOS * 10);
+            if (Thread.interrupted())
+                throw new DbException("interrupted while waiting for an exchange");
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (!isGather())
+            throw new DbException("cannot rewind one consumer of a repartitioning exchange");
+        channel.close(this);
+        channel.open(this);
+        reset();
+    }
+
+    public void close() {
+        super.close();
+        channel.close(this);
+        batch = null;
+    }
+
+    /**
+     * @return the first producer, so that plans show one representative
+     *         subplan below the exchange
+     */
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { channel.producers[0] };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        channel.producers[0] = children[0];
+    }
+
+    /**
+     * The state shared by the producers and consumers of one exchange.
+     */
+    private static class Channel {
+        final DbIterator[] producers;
+        final Exchange[] consumers;
+        // the fields to hash on, or null for round-robin
+        final int[] fields;
+        // queues[p][c] carries batches from producer p to consumer c
+        SpscQueue<Tuple[]>[][] queues;
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        volatile boolean cancelled;
+
+        // producer tasks of the current pass, null if none is running
+        private Future<?>[] tasks;
+        // consumers opened and not yet closed in the current pass
+        private int active;
+        // guards tasks and active; a lock rather than a monitor, since
+        // stop() waits for the producers and may run on a virtual thread
+        private final ReentrantLock lock = new ReentrantLock();
+
+        Channel(DbIterator[] producers, int consumers, int[] fields) {
+            if (producers.length == 0)
+                throw new IllegalArgumentException("an exchange needs a producer");
+            if (consumers < 1)
+                throw new IllegalArgumentException("an exchange needs a consumer");
+            this.producers = producers.clone();
+            this.fields = fields;
+            this.consumers = new Exchange[consumers];
+            for (int c = 0; c < consumers; c++)
+                this.consumers[c] = new Exchange(this, c);
+        }
+
+        void open(Exchange c) throws DbException {
+            lock.lock();
+            try {
+                if (tasks != null && c.seen) {
+                    // a consumer is read again; only possible once all of
+                    // them are done with the current pass
+                    if (active > 0)
+                        throw new DbException("exchange consumer reopened while others are reading");
+                    stop();
+                }
+                if (tasks == null)
+                    start();
+                c.seen = true;
+                c.closed = false;
+                active++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close(Exchange c) {
+            lock.lock();
+            try {
+                if (tasks == null || c.closed)
+                    return;
+                if (c.seen)
+                    active--;
+                c.seen = true;
+                c.closed = true;
+                // let producers stuck on this consumer's full queue move on
+                c.waiter = null;
+                if (active > 0)
+                    return;
+                for (Exchange other : consumers) {
+                    if (!other.seen)
+                        return;
+                }
+                stop();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private void start() {
+            queues = new SpscQueue[producers.length][consumers.length];
+            for (int p = 0; p < producers.length; p++) {
+                for (int c = 0; c < consumers.length; c++)
+                    queues[p][c] = new SpscQueue<Tuple[]>(QUEUE_BATCHES);
+            }
+            for (Exchange c : consumers) {
+                c.seen = false;
+                c.closed = false;
+            }
+            error.set(null);
+            cancelled = false;
+            active = 0;
+            tasks = new Future<?>[producers.length];
+            for (int p = 0; p < producers.length; p++) {
+                final int producer = p;
+                tasks[p] = WorkerPool.submit(new Runnable() {
+                    public void run() {
+                        produce(producer);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Cancel the producers and wait until they have closed their
+         * subplans.
+         */
+        private void stop() {
+            cancelled = true;
+            boolean interrupted = false;
+            for (Future<?> task : tasks) {
+                while (true) {
+                    try {
+                        task.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        // produce() records its own errors
+                        break;
+                    }
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            tasks = null;
+        }
+
+        /**
+         * Body of producer p: run its subplan and route every tuple.
+         */
+        private void produce(int p) {
+            DbIterator child = producers[p];
+            int n = consumers.length;
+            Tuple[][] out = new Tuple[n][];
+            int[] fill = new int[n];
+            int turn = p;
+            try {
+                child.open();
+                try {
+                    while (!cancelled && child.hasNext()) {
+                        Tuple t = child.next();
+                        int c = fields == null ? turn++ % n : route(t);
+                        if (out[c] == null)
+                            out[c] = new Tuple[BATCH_SIZE];
+                        out[c][fill[c]++] = t;
+                        if (fill[c] == BATCH_SIZE) {
+                            send(p, c, out[c]);
+                            out[c] = null;
+                            fill[c] = 0;
+                        }
+                    }
+                    for (int c = 0; c < n; c++) {
+                        if (fill[c] > 0)
+                            send(p, c, Arrays.copyOf(out[c], fill[c]));
+                    }
+                } finally {
+                    child.close();
+                }
+            } catch (Throwable e) {
+                if (error.compareAndSet(null, e))
+                    cancelled = true;
+            } finally {
+                for (int c = 0; c < n; c++)
+                    send(p, c, DONE);
+            }
+        }
+
+        /**
+         * @return the consumer t hashes to. The hash is mixed differently
+         *         from the partitioning hashes of the operators, so a
+         *         consumer's share still spreads over their partitions.
+         */
+        private int route(Tuple t) {
+            int h = 0;
+            for (int f : fields)
+                h = 31 * h + t.getField(f).hashCode();
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            return (h & 0x7fffffff) % consumers.length;
+        }
+
+        /**
+         * Queue batch for consumer c, waiting while its queue is full. Gives
+         * up if the exchange is cancelled or c has been closed.
+         */
+        private void send(int p, int c, Tuple[] batch) {
+            Exchange dst = consumers[c];
+            SpscQueue<Tuple[]> q = queues[p][c];
+            while (!q.offer(batch)) {
+                if (cancelled || dst.closed)
+                    return;
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            Thread w = dst.waiter;
+            if (w != null)
+                LockSupport.unpark(w);
+        }
+    }
+}
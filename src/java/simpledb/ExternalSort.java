@@ -0,0 +1,302 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ExternalSort sorts the tuples of a child operator within a bounded amount
+ * of memory. It reads the child maxInMemory tuples at a time, sorts each
+ * chunk and, unless the whole input fits in one chunk, writes the chunks out
+ * as sorted runs in {@link TupleSpillFile}s. The runs are then merged with a
+ * loser tree: each step of the k-way merge costs log2(k) comparisons, and
+ * only one tuple per run is held in memory. Given a {@link TupleSorter},
+ * chunks are sorted on normalized keys, in parallel when they are large.
+ * <p>
+ * The last run is never written out, and at most MERGE_FAN_IN runs are merged
+ * at once; when there are more, groups of them are first merged into longer
+ * runs. The final merge is done lazily, so the first tuples are returned as
+ * soon as it starts.
+ */
+public class ExternalSort implements DbFileIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of tuples sorted in memory before spilling a run. */
+    public final static int DEFAULT_MAX_IN_MEMORY = 50000;
+
+    /** Maximum number of runs merged in one pass. */
+    final static int MERGE_FAN_IN = 64;
+
+    private final DbIterator child;
+    private final Comparator<Tuple> order;
+    private final TupleSorter sorter;
+    private final int maxInMemory;
+
+    // sorted runs on disk, and the last run, which stays in memory
+    private transient ArrayList<TupleSpillFile> runs;
+    private transient ArrayList<Tuple> memRun;
+    private transient LoserTree merge;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            the tuples to sort; must be open before {@link #open} is
+     *            called
+     * @param order
+     *            the order to sort the tuples in
+     * @param maxInMemory
+     *            the number of tuples held in memory while producing runs
+     */
+    public ExternalSort(DbIterator child, Comparator<Tuple> order,
+            int maxInMemory) {
+        this(child, order, null, maxInMemory);
+    }
+
+    /**
+     * Constructor for a sort whose chunks are sorted by sorter.
+     *
+     * @param child
+     *            the tuples to sort; must be open before {@link #open} is
+     *            called
+     * @param sorter
+     *            the order to sort the tuples in
+     * @param maxInMemory
+     *            the number of tuples held in memory while producing runs
+     */
+    public ExternalSort(DbIterator child, TupleSorter sorter, int maxInMemory) {
+        this(child, sorter.comparator(), sorter, maxInMemory);
+    }
+
+    private ExternalSort(DbIterator child, Comparator<Tuple> order,
+            TupleSorter sorter, int maxInMemory) {
+        this.child = child;
+        this.order = order;
+        this.sorter = sorter;
+        this.maxInMemory = Math.max(1, maxInMemory);
+    }
+
+    private void sortChunk(ArrayList<Tuple> chunk) {
+        if (sorter != null)
+            sorter.sort(chunk);
+        else
+            Collections.sort(chunk, order);
+    }
+
+    /**
+     * Read the child into sorted runs and start merging them.
+     */
+    public void open() throws DbException, TransactionAbortedException {
+        close();
+        runs = new ArrayList<TupleSpillFile>();
+        TupleDesc td = child.getTupleDesc();
+        ArrayList<Tuple> chunk = new ArrayList<Tuple>();
+        while (child.hasNext()) {
+            if (chunk.size() == maxInMemory) {
+                sortChunk(chunk);
+                TupleSpillFile run = new TupleSpillFile(td);
+                for (int i = 0; i < chunk.size(); i++)
+                    run.add(chunk.get(i));
+                run.finish();
+                runs.add(run);
+                chunk.clear();
+            }
+            chunk.add(child.next());
+        }
+        sortChunk(chunk);
+        memRun = chunk;
+
+        // leave room in the final merge for the in-memory run
+        while (runs.size() + 1 > MERGE_FAN_IN) {
+            ArrayList<TupleSpillFile> merged = new ArrayList<TupleSpillFile>();
+            for (int i = 0; i < runs.size(); i += MERGE_FAN_IN) {
+                List<TupleSpillFile> group = runs.subList(i,
+                        Math.min(runs.size(), i + MERGE_FAN_IN));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                LoserTree tree = new LoserTree(iterators(group, null), order);
+                TupleSpillFile run = new TupleSpillFile(td);
+                while (tree.hasNext())
+                    run.add(tree.next());
+                run.finish();
+                tree.close();
+                for (TupleSpillFile f : group)
+                    f.delete();
+                merged.add(run);
+            }
+            runs = merged;
+        }
+        rewind();
+    }
+
+    /**
+     * @return the number of runs being merged, 1 if the input was sorted in
+     *         memory
+     */
+    int numRuns() {
+        return runs == null ? 0 : runs.size() + 1;
+    }
+
+    private static DbFileIterator[] iterators(List<TupleSpillFile> files,
+            List<Tuple> mem) throws DbException {
+        DbFileIterator[] its = new DbFileIterator[files.size()
+                + (mem == null ? 0 : 1)];
+        for (int i = 0; i < files.size(); i++)
+            its[i] = files.get(i).iterator();
+        if (mem != null)
+            its[files.size()] = new ListIterator(mem);
+        return its;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        return merge != null && merge.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return merge.next();
+    }
+
+    /**
+     * Restart the merge from the beginning of the runs.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (runs == null)
+            throw new IllegalStateException("sort not open");
+        if (merge != null)
+            merge.close();
+        merge = new LoserTree(iterators(runs, memRun), order);
+    }
+
+    /**
+     * Stop merging and delete the runs.
+     */
+    public void close() {
+        if (merge != null)
+            merge.close();
+        merge = null;
+        if (runs != null) {
+            for (TupleSpillFile f : runs)
+                f.delete();
+        }
+        runs = null;
+        memRun = null;
+    }
+
+    /** A sorted run held in memory. */
+    private static class ListIterator implements DbFileIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Tuple> tuples;
+        private int pos = -1;
+
+        ListIterator(List<Tuple> tuples) {
+            this.tuples = tuples;
+        }
+
+        public void open() {
+            pos = 0;
+        }
+
+        public boolean hasNext() {
+            return pos >= 0 && pos < tuples.size();
+        }
+
+        public Tuple next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return tuples.get(pos++);
+        }
+
+        public void rewind() {
+            pos = 0;
+        }
+
+        public void close() {
+            pos = -1;
+        }
+    }
+
+    /**
+     * A loser tree over k sorted sources. Internal node i holds the source
+     * that lost the match played there, and tree[0] the overall winner, so
+     * after the winner's next tuple is read only the matches on its path to
+     * the root are replayed. Ties go to the lower numbered source, which
+     * keeps the merge stable.
+     */
+    private static class LoserTree {
+
+        private final DbFileIterator[] sources;
+        private final Comparator<Tuple> order;
+        // the current tuple of each source, null once it is exhausted
+        private final Tuple[] heads;
+        private final int[] tree;
+        private final int k;
+
+        LoserTree(DbFileIterator[] sources, Comparator<Tuple> order)
+                throws DbException, TransactionAbortedException {
+            this.sources = sources;
+            this.order = order;
+            this.k = sources.length;
+            this.heads = new Tuple[k];
+            this.tree = new int[Math.max(1, k)];
+            Arrays.fill(tree, -1);
+            for (int i = 0; i < k; i++) {
+                sources[i].open();
+                heads[i] = sources[i].hasNext() ? sources[i].next() : null;
+            }
+            for (int i = k - 1; i >= 0; i--)
+                replay(i);
+        }
+
+        /** @return true if source a's head comes before source b's */
+        private boolean beats(int a, int b) {
+            if (heads[b] == null)
+                return heads[a] != null || a < b;
+            if (heads[a] == null)
+                return false;
+            int c = order.compare(heads[a], heads[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        /**
+         * Replay the matches from source s's leaf up to the root.
+         */
+        private void replay(int s) {
+            for (int t = (s + k) >> 1; t > 0; t >>= 1) {
+                if (tree[t] == -1) {
+                    // still building: wait here for the other subtree
+                    tree[t] = s;
+                    return;
+                }
+                if (beats(tree[t], s)) {
+                    int winner = tree[t];
+                    tree[t] = s;
+                    s = winner;
+                }
+            }
+            tree[0] = s;
+        }
+
+        boolean hasNext() {
+            return k > 0 && heads[tree[0]] != null;
+        }
+
+        Tuple next() throws DbException, TransactionAbortedException {
+            int w = tree[0];
+            Tuple t = heads[w];
+            heads[w] = sources[w].hasNext() ? sources[w].next() : null;
+            replay(w);
+            return t;
+        }
+
+        void close() {
+            for (DbFileIterator it : sources)
+                it.close();
+        }
+    }
+}
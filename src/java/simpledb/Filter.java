@@ -11,6 +11,8 @@ public class Filter extends Operator {
 
     Predicate p;
     DbIterator child;
+    // p specialized for the child's schema, built in open()
+    transient PredicateCompiler.TupleFilter compiled;
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -37,6 +39,7 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         this.child.open();
+        this.compiled = PredicateCompiler.compile(this.p, this.child.getTupleDesc());
         super.open();
     }
 
@@ -62,7 +65,7 @@ public class Filter extends Operator {
             TransactionAbortedException, DbException {
         while(this.child.hasNext()){
             Tuple t = this.child.next();
-            if(this.p.filter(t)){
+            if(this.compiled.filter(t)){
                 return t;
             }
         }
@@ -0,0 +1,128 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Computes any number of aggregates at once, grouped by any number of fields.
+ * All the aggregate states of a group live in the same {@link AggHashTable}
+ * entry, so every input tuple costs one lookup however many aggregates there
+ * are. Aggregates over INT_TYPE fields support every operator; aggregates
+ * over STRING_TYPE fields only COUNT.
+ * <p>
+ * Output tuples hold the group fields, in the order given, followed by the
+ * aggregates, in the order given.
+ */
+public class GroupAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] gfields;
+    private final int[] afields;
+    private final Op[] ops;
+    // true for aggregates that only count their tuples
+    private final boolean[] countOnly;
+    private final TupleDesc td;
+    private final AggHashTable table;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param childTd
+     *            the schema of the input tuples
+     * @param gfields
+     *            the 0-based indexes of the group-by fields; empty if there
+     *            is no grouping
+     * @param afields
+     *            the 0-based index of the field of each aggregate
+     * @param ops
+     *            the aggregation operator of each aggregate
+     * @throws IllegalArgumentException
+     *             if an aggregate over a string field is not a COUNT
+     */
+    public GroupAggregator(TupleDesc childTd, int[] gfields, int[] afields,
+            Op[] ops) {
+        if (afields.length != ops.length)
+            throw new IllegalArgumentException("need one operator per aggregate field");
+        this.gfields = gfields.clone();
+        this.afields = afields.clone();
+        this.ops = ops.clone();
+        this.countOnly = new boolean[ops.length];
+        for (int a = 0; a < ops.length; a++) {
+            if (childTd.getFieldType(afields[a]) != Type.INT_TYPE) {
+                if (ops[a] != Op.COUNT)
+                    throw new IllegalArgumentException("only COUNT is supported over "
+                            + childTd.getFieldName(afields[a]));
+                countOnly[a] = true;
+            }
+        }
+        Type[] keyTypes = new Type[gfields.length];
+        for (int i = 0; i < gfields.length; i++)
+            keyTypes[i] = childTd.getFieldType(gfields[i]);
+        this.table = new AggHashTable(keyTypes, ops);
+        this.td = outputDesc(childTd, gfields, afields, ops);
+    }
+
+    /**
+     * @return the schema of the output tuples: the group fields, named as in
+     *         childTd, then one INT_TYPE field per aggregate, named
+     *         "aggName(aop) (child_td.getFieldName(afield))"
+     */
+    public static TupleDesc outputDesc(TupleDesc childTd, int[] gfields,
+            int[] afields, Op[] ops) {
+        Type[] typeAr = new Type[gfields.length + afields.length];
+        String[] fieldAr = new String[typeAr.length];
+        for (int i = 0; i < gfields.length; i++) {
+            typeAr[i] = childTd.getFieldType(gfields[i]);
+            fieldAr[i] = childTd.getFieldName(gfields[i]);
+        }
+        for (int a = 0; a < afields.length; a++) {
+            typeAr[gfields.length + a] = Type.INT_TYPE;
+            fieldAr[gfields.length + a] = ops[a].toString() + " ("
+                    + childTd.getFieldName(afields[a]) + ")";
+        }
+        return new TupleDesc(typeAr, fieldAr);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void mergeTupleIntoGroup(Tuple tup) {
+        int group = table.group(tup, gfields);
+        for (int a = 0; a < afields.length; a++) {
+            if (countOnly[a])
+                table.count(group, a);
+            else
+                table.add(group, a, tup.getInt(afields[a]));
+        }
+    }
+
+    public int numGroups() {
+        return table.size();
+    }
+
+    public boolean hasGroup(Tuple tup) {
+        return table.find(tup, gfields) >= 0;
+    }
+
+    public void merge(Aggregator partial) {
+        if (!(partial instanceof GroupAggregator)
+                || !Arrays.equals(gfields, ((GroupAggregator) partial).gfields)
+                || !Arrays.equals(afields, ((GroupAggregator) partial).afields)
+                || !Arrays.equals(ops, ((GroupAggregator) partial).ops))
+            throw new IllegalArgumentException("cannot merge a different aggregator");
+        table.merge(((GroupAggregator) partial).table);
+    }
+
+    public DbIterator iterator() {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int group = 0; group < table.size(); group++) {
+            Tuple tuple = new Tuple(td);
+            table.writeKey(group, tuple, 0);
+            for (int a = 0; a < afields.length; a++)
+                tuple.setField(gfields.length + a, new IntField(table.result(group, a)));
+            tuples.add(tuple);
+        }
+        return new TupleIterator(td, tuples);
+    }
+}
@@ -51,32 +51,213 @@ public class HashEquiJoin extends Operator {
     }
     
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
+    /** Default number of build tuples held in memory at once. */
     public final static int MAP_SIZE = 20000;
+    /** Number of partitions the inputs are split into once the build side
+     * no longer fits in memory. */
+    public final static int NUM_PARTITIONS = 32;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
+    private int maxInMemory = MAP_SIZE;
+    private int inMemory;
+
+    // null until the build side overflows memory; then one spill file per
+    // partition for each input
+    transient private TupleSpillFile[] buildParts;
+    transient private TupleSpillFile[] probeParts;
+    // the partition kept in memory while the inputs are read, or -1 if it
+    // overflowed as well and was spilled
+    private int resident;
+    // the spilled partition being joined, or -1 while still reading child2
+    private int current;
+    transient private DbFileIterator buildIt;
+    transient private DbFileIterator probeIt;
+
+    /**
+     * Set the number of build tuples this join may keep in memory; beyond
+     * that it partitions both inputs to disk. Must be called before open().
+     */
+    public void setMaxInMemory(int tuples) {
+        this.maxInMemory = Math.max(1, tuples);
+    }
+
+    /**
+     * @return the partition of the join key f. Uses different bits of the
+     *         hash than HashMap does, so a partition still spreads over the
+     *         whole table.
+     */
+    private static int partitionOf(Field f) {
+        int h = f.hashCode() * 0x9E3779B9;
+        return (h >>> 16) % NUM_PARTITIONS;
+    }
+
+    private void addToMap(Field key, Tuple t) {
+        ArrayList<Tuple> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<Tuple>();
+            map.put(key, list);
+        }
+        list.add(t);
+        inMemory++;
+    }
+
+    /**
+     * Read child1 into the hash table. If it doesn't fit, switch to hybrid
+     * mode: keep partition 0 in memory and write every other partition to
+     * its own spill file, and if partition 0 alone overflows, spill it too.
+     */
+    private void build() throws DbException, TransactionAbortedException {
         map.clear();
+        inMemory = 0;
+        resident = 0;
+        current = -1;
+        int f1 = pred.getField1();
         while (child1.hasNext()) {
             t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+            Field key = t1.getField(f1);
+            if (buildParts == null) {
+                addToMap(key, t1);
+                if (inMemory > maxInMemory)
+                    partition();
+                continue;
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            int p = partitionOf(key);
+            if (p == resident) {
+                addToMap(key, t1);
+                if (inMemory > maxInMemory)
+                    spillResident();
+            } else {
+                buildParts[p].add(t1);
+            }
+        }
+        t1 = null;
+    }
+
+    /** Move every build tuple outside the resident partition to disk. */
+    private void partition() throws DbException {
+        TupleDesc td1 = child1.getTupleDesc();
+        TupleDesc td2 = child2.getTupleDesc();
+        buildParts = new TupleSpillFile[NUM_PARTITIONS];
+        probeParts = new TupleSpillFile[NUM_PARTITIONS];
+        for (int i = 0; i < NUM_PARTITIONS; i++) {
+            buildParts[i] = new TupleSpillFile(td1);
+            probeParts[i] = new TupleSpillFile(td2);
+        }
+        Iterator<Map.Entry<Object, ArrayList<Tuple>>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Object, ArrayList<Tuple>> e = it.next();
+            int p = partitionOf((Field) e.getKey());
+            if (p == resident)
+                continue;
+            for (Tuple t : e.getValue())
+                buildParts[p].add(t);
+            inMemory -= e.getValue().size();
+            it.remove();
+        }
+        if (inMemory > maxInMemory)
+            spillResident();
+    }
+
+    /** Write the resident partition to disk too. */
+    private void spillResident() throws DbException {
+        for (ArrayList<Tuple> list : map.values())
+            for (Tuple t : list)
+                buildParts[resident].add(t);
+        map.clear();
+        inMemory = 0;
+        resident = -1;
+    }
+
+    /**
+     * @return the next probe tuple whose partition is in memory, or null
+     *         when the current probe input is exhausted. While reading child2,
+     *         tuples of spilled partitions are written to their probe file.
+     */
+    private Tuple nextProbe() throws DbException, TransactionAbortedException {
+        if (current >= 0)
+            return probeIt.hasNext() ? probeIt.next() : null;
+        int f2 = pred.getField2();
+        while (child2.hasNext()) {
+            Tuple t = child2.next();
+            if (buildParts == null)
+                return t;
+            int p = partitionOf(t.getField(f2));
+            if (p == resident)
+                return t;
+            if (buildParts[p].size() > 0)
+                probeParts[p].add(t);
+        }
+        return null;
+    }
+
+    /**
+     * Move on to the next piece of work once the probe input is exhausted:
+     * the next chunk of an oversized build partition, or the next spilled
+     * partition pair.
+     * 
+     * @return false if the join is complete
+     */
+    private boolean advance() throws DbException, TransactionAbortedException {
+        if (buildParts == null)
+            return false;
+        if (current >= 0 && buildIt.hasNext()) {
+            // the build partition didn't fit either: join it chunk by chunk
+            loadChunk();
+            probeIt.rewind();
+            return true;
+        }
+        closePartition();
+        while (++current < NUM_PARTITIONS) {
+            if (current == resident || buildParts[current].size() == 0
+                    || probeParts[current].size() == 0)
+                continue;
+            buildIt = buildParts[current].iterator();
+            buildIt.open();
+            probeIt = probeParts[current].iterator();
+            probeIt.open();
+            loadChunk();
+            return true;
+        }
+        return false;
+    }
+
+    /** Load up to maxInMemory tuples of the current build partition. */
+    private void loadChunk() throws DbException, TransactionAbortedException {
+        map.clear();
+        inMemory = 0;
+        int f1 = pred.getField1();
+        while (inMemory < maxInMemory && buildIt.hasNext()) {
+            Tuple t = buildIt.next();
+            addToMap(t.getField(f1), t);
         }
-        return cnt > 0;
+    }
 
+    private void closePartition() {
+        if (buildIt != null)
+            buildIt.close();
+        if (probeIt != null)
+            probeIt.close();
+        buildIt = null;
+        probeIt = null;
     }
 
+    private void deletePartitions() {
+        closePartition();
+        if (buildParts != null) {
+            for (int i = 0; i < NUM_PARTITIONS; i++) {
+                buildParts[i].delete();
+                probeParts[i].delete();
+            }
+        }
+        buildParts = null;
+        probeParts = null;
+    }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        build();
+        super.open();
     }
 
     public void close() {
@@ -87,11 +268,19 @@ public class HashEquiJoin extends Operator {
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        deletePartitions();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        child1.rewind();
+        this.listIt = null;
         child2.rewind();
+        if (buildParts == null) {
+            // everything fit in memory; the hash table is still valid
+            return;
+        }
+        deletePartitions();
+        child1.rewind();
+        build();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -99,8 +288,14 @@ public class HashEquiJoin extends Operator {
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * satisfies the join predicate.
+     * <p>
+     * If child1 fits in memory this is a plain in-memory hash join. Otherwise
+     * it is a hybrid hash join: both inputs are split into NUM_PARTITIONS
+     * partitions by the join key, the first partition is joined while the
+     * inputs are read, and each spilled pair of partitions is joined
+     * afterwards, so each input is read once and each spilled tuple is
+     * written and read back once.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -114,50 +309,26 @@ public class HashEquiJoin extends Operator {
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
-
-    }
-
-
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+        int f2 = pred.getField2();
+        while (true) {
+            if (listIt != null && listIt.hasNext()) {
+                t1 = listIt.next();
+                // combined tuple holding the fields of both inputs
+                return Tuple.merge(comboTD, t1, t2);
+            }
+            listIt = null;
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+            t2 = nextProbe();
+            if (t2 == null) {
+                if (!advance())
+                    return null;
                 continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+            }
+            ArrayList<Tuple> l = map.get(t2.getField(f2));
+            if (l != null)
+                listIt = l.iterator();
         }
-
-        return null;
     }
 
     @Override
@@ -88,13 +88,21 @@ public class HeapFile implements DbFile {
         HeapPage hp = (HeapPage)page;
         HeapPageId hpid = hp.getId(); 
         byte[] pageData = hp.getPageData();
+        RandomAccessFile file = new RandomAccessFile(this.file, "rw");
         try{
-            BufferedOutputStream stream = new BufferedOutputStream(new FileOutputStream(this.file));
-            int offset = hpid.pageNumber() * BufferPool.PAGE_SIZE;
-            stream.write(pageData, offset, BufferPool.PAGE_SIZE);
-            stream.close();
-        }catch(Exception e){
-            e.printStackTrace();
+            file.seek((long)hpid.pageNumber() * BufferPool.PAGE_SIZE);
+            file.write(pageData, 0, BufferPool.PAGE_SIZE);
+        }finally{
+            file.close();
+        }
+    }
+
+    public void sync() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(this.file, "rw");
+        try{
+            file.getChannel().force(false);
+        }finally{
+            file.close();
         }
     }
 
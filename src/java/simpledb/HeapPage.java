@@ -22,6 +22,8 @@ public class HeapPage implements Page {
     byte[] oldData;
 
     TransactionId dId = null;
+    // in memory only; see Page.getLSN
+    long lsn = 0;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -125,19 +127,17 @@ public class HeapPage implements Page {
             return null;
         }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
+        // read fields in the tuple; they stay packed in a CompactTuple and
+        // are only parsed into Field objects on demand
+        byte[] data = new byte[td.getSize()];
         try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            dis.readFully(data);
+        } catch (IOException e) {
+            throw new NoSuchElementException("error reading tuple");
         }
+        Tuple t = new CompactTuple(td, data);
+        RecordId rid = new RecordId(pid, slotId);
+        t.setRecordId(rid);
 
         return t;
     }
@@ -185,14 +185,10 @@ public class HeapPage implements Page {
             }
 
             // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            try {
+                tuples[i].serialize(dos);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
 
@@ -282,6 +278,22 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * Puts t in the given slot, or empties the slot if t is null, whatever it
+     * held before. Recovery uses this to redo and undo logged inserts and
+     * deletes.
+     */
+    void setSlot(int slot, Tuple t) {
+        if(t==null){
+            markSlotUsed(slot, false);
+            tuples[slot] = null;
+            return;
+        }
+        t.setRecordId(new RecordId(this.getId(), slot));
+        tuples[slot] = t;
+        markSlotUsed(slot, true);
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -298,6 +310,14 @@ public class HeapPage implements Page {
         return this.dId;      
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
@@ -332,6 +352,13 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * @return the tuple in slot i, or null if the slot is empty
+     */
+    Tuple getTuple(int i) {
+        return isSlotUsed(i) ? tuples[i] : null;
+    }
+
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
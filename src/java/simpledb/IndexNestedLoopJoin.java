@@ -0,0 +1,167 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin evaluates a join by looking up, for every tuple of the
+ * outer (left) relation, the matching tuples of the inner relation in an
+ * index on the inner join field, instead of scanning the inner relation.
+ * <p>
+ * The inner child must be a {@link SeqScan} of an {@link IndexedDbFile} whose
+ * key is the inner join field, optionally under {@link Filter}s; the scan is
+ * replaced by index lookups and the filters are applied to the tuples they
+ * return (see {@link #canProbe}). EQUALS and the range predicates are
+ * supported.
+ */
+public class IndexNestedLoopJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Cost of finding the matching RecordIds in the index for one outer
+     * tuple, in the units of {@link TableStats#estimateScanCost}: about one
+     * page read.
+     */
+    public final static double PROBE_COST = TableStats.IOCOSTPERPAGE;
+
+    private transient IndexedDbFile file;
+    private transient TransactionId tid;
+    // filters between the join and the scan of the inner relation
+    private transient ArrayList<PredicateCompiler.TupleFilter> filters;
+    private transient DbFileIterator probe;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     * 
+     * @param p
+     *            The predicate to use to join the children; must be EQUALS or
+     *            a range predicate
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join; see
+     *            {@link #canProbe}
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1,
+            DbIterator child2) {
+        super(p, child1, child2);
+        if (keyOp(p.getOperator()) == null)
+            throw new IllegalArgumentException("index join can't evaluate "
+                    + p.getOperator());
+        if (!canProbe(child2, p.getField2()))
+            throw new IllegalArgumentException(
+                    "inner relation is not an indexed scan on the join field");
+    }
+
+    /**
+     * @return true if it, as the inner child of an index join on its field,
+     *         can be evaluated by index lookups: it is a SeqScan, possibly
+     *         under Filters, of an IndexedDbFile keyed on field
+     */
+    public static boolean canProbe(DbIterator it, int field) {
+        SeqScan scan = scanOf(it);
+        if (scan == null)
+            return false;
+        DbFile f = Database.getCatalog().getDbFile(scan.getTableId());
+        return f instanceof IndexedDbFile
+                && ((IndexedDbFile) f).keyField() == field;
+    }
+
+    private static SeqScan scanOf(DbIterator it) {
+        while (it instanceof Filter)
+            it = ((Filter) it).getChildren()[0];
+        return it instanceof SeqScan ? (SeqScan) it : null;
+    }
+
+    /**
+     * @return the operator op' such that (left op right) holds exactly when
+     *         (right op' left) does, or null if an index can't evaluate it
+     */
+    static Predicate.Op keyOp(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+            return Predicate.Op.EQUALS;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        default:
+            return null;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        filters = new ArrayList<PredicateCompiler.TupleFilter>();
+        DbIterator it = child2;
+        while (it instanceof Filter) {
+            Filter f = (Filter) it;
+            filters.add(PredicateCompiler.compile(f.getPredicate(),
+                    f.getTupleDesc()));
+            it = f.getChildren()[0];
+        }
+        SeqScan scan = (SeqScan) it;
+        file = (IndexedDbFile) Database.getCatalog().getDbFile(
+                scan.getTableId());
+        tid = scan.getTransactionId();
+        left = null;
+        probe = null;
+    }
+
+    public void close() {
+        super.close();
+        if (probe != null)
+            probe.close();
+        probe = null;
+        filters = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        if (probe != null)
+            probe.close();
+        probe = null;
+        left = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Tuples come out in the order of the outer relation.
+     * 
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (probe != null) {
+                while (probe.hasNext()) {
+                    right = probe.next();
+                    if (passesFilters(right))
+                        return Tuple.merge(getTupleDesc(), left, right);
+                }
+                probe.close();
+                probe = null;
+            }
+            if (!child1.hasNext())
+                return null;
+            left = child1.next();
+            probe = file.indexIterator(tid, new IndexPredicate(
+                    keyOp(p.getOperator()), left.getField(p.getField1())));
+            probe.open();
+        }
+    }
+
+    private boolean passesFilters(Tuple t) {
+        for (int i = 0; i < filters.size(); i++) {
+            if (!filters.get(i).filter(t))
+                return false;
+        }
+        return true;
+    }
+}
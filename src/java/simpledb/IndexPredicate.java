@@ -0,0 +1,48 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * IndexPredicate compares the key field of an {@link IndexedDbFile} against a
+ * constant value; it is what an index lookup is asked to find.
+ */
+public class IndexPredicate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private Predicate.Op op;
+    private Field fieldvalue;
+
+    /**
+     * Constructor.
+     * 
+     * @param op
+     *            the operation to apply, as defined in Predicate.Op; the key
+     *            of a matching tuple satisfies (key op fvalue)
+     * @param fvalue
+     *            the value that the key field is compared against
+     */
+    public IndexPredicate(Predicate.Op op, Field fvalue) {
+        this.op = op;
+        this.fieldvalue = fvalue;
+    }
+
+    public Field getField() {
+        return fieldvalue;
+    }
+
+    public Predicate.Op getOp() {
+        return op;
+    }
+
+    /**
+     * @return true if key satisfies this predicate
+     */
+    public boolean matches(Field key) {
+        return key.compare(op, fieldvalue);
+    }
+
+    public String toString() {
+        return "key " + op + " " + fieldvalue;
+    }
+}
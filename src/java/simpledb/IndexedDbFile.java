@@ -0,0 +1,30 @@
+package simpledb;
+
+/**
+ * A DbFile with an index on one of its fields. Besides the full scan of
+ * {@link DbFile#iterator}, it can return just the tuples whose key satisfies
+ * an equality or range predicate, without reading the rest of the file. Like
+ * the full scan, index lookups must read pages through the
+ * {@link BufferPool}.
+ */
+public interface IndexedDbFile extends DbFile {
+
+    /**
+     * @return the index, in this file's TupleDesc, of the indexed field
+     */
+    public int keyField();
+
+    /**
+     * Returns an iterator over the tuples whose key field satisfies ipred.
+     * The operator of ipred is EQUALS, GREATER_THAN, GREATER_THAN_OR_EQ,
+     * LESS_THAN or LESS_THAN_OR_EQ.
+     * 
+     * @param tid
+     *            the transaction performing the lookup
+     * @param ipred
+     *            the predicate on the key field
+     * @return an iterator over the matching tuples; it must be opened before
+     *         use
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred);
+}
@@ -0,0 +1,236 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * IndexedHeapFile is a HeapFile with a secondary index on one field. The
+ * index is an ordered map from key to the RecordIds of the tuples holding
+ * that key; it lives in memory, is built by scanning the file the first time
+ * it is used, and is kept up to date by {@link #insertTuple}.
+ * <p>
+ * Deletes don't remove index entries, since the deleting transaction may
+ * still abort. Instead every tuple found through the index is re-read from
+ * its page and checked against the lookup predicate, so the index only needs
+ * to hold a superset of the matching RecordIds.
+ */
+public class IndexedHeapFile extends HeapFile implements IndexedDbFile {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int keyField;
+    private transient TreeMap<Field, ArrayList<RecordId>> index;
+    // guards index; not a monitor, so building it from disk on a virtual
+    // thread does not pin the carrier
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Constructs an indexed heap file backed by the specified file.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param td
+     *            the schema of the tuples in the file
+     * @param keyField
+     *            the index of the field to build the index on
+     */
+    public IndexedHeapFile(File f, TupleDesc td, int keyField) {
+        super(f, td);
+        if (keyField < 0 || keyField >= td.numFields())
+            throw new IllegalArgumentException("no such field " + keyField);
+        this.keyField = keyField;
+    }
+
+    public int keyField() {
+        return keyField;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Page> pages = super.insertTuple(tid, t);
+        lock.lock();
+        try {
+            if (index != null)
+                addEntry(t.getField(keyField), t.getRecordId());
+        } finally {
+            lock.unlock();
+        }
+        return pages;
+    }
+
+    // see IndexedDbFile.java for javadocs
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+        return new IndexIterator(tid, ipred);
+    }
+
+    private void addEntry(Field key, RecordId rid) {
+        ArrayList<RecordId> rids = index.get(key);
+        if (rids == null) {
+            rids = new ArrayList<RecordId>(1);
+            index.put(key, rids);
+        }
+        rids.add(rid);
+    }
+
+    /**
+     * Build the index, if needed, by scanning the file as part of tid.
+     */
+    private void buildIndex(TransactionId tid) throws DbException,
+            TransactionAbortedException {
+        lock.lock();
+        try {
+            if (index != null)
+                return;
+            index = new TreeMap<Field, ArrayList<RecordId>>(new FieldComparator());
+            DbFileIterator it = iterator(tid);
+            it.open();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                addEntry(t.getField(keyField), t.getRecordId());
+            }
+            it.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the RecordIds the index holds for keys that may satisfy ipred,
+     *         sorted by page and slot and without duplicates
+     */
+    private ArrayList<RecordId> lookup(IndexPredicate ipred) {
+        Field v = ipred.getField();
+        SortedMap<Field, ArrayList<RecordId>> range;
+        ArrayList<RecordId> rids = new ArrayList<RecordId>();
+        lock.lock();
+        try {
+            switch (ipred.getOp()) {
+            case EQUALS:
+                range = index.subMap(v, true, v, true);
+                break;
+            case GREATER_THAN:
+                range = index.tailMap(v, false);
+                break;
+            case GREATER_THAN_OR_EQ:
+                range = index.tailMap(v, true);
+                break;
+            case LESS_THAN:
+                range = index.headMap(v, false);
+                break;
+            case LESS_THAN_OR_EQ:
+                range = index.headMap(v, true);
+                break;
+            default:
+                throw new IllegalArgumentException("index can't evaluate "
+                        + ipred.getOp());
+            }
+            for (ArrayList<RecordId> l : range.values())
+                rids.addAll(l);
+        } finally {
+            lock.unlock();
+        }
+        // read each page once, and drop stale entries that point at a slot
+        // which has since been reused by a tuple with another matching key
+        Collections.sort(rids, new RecordIdComparator());
+        ArrayList<RecordId> unique = new ArrayList<RecordId>(rids.size());
+        for (RecordId rid : rids) {
+            if (unique.isEmpty() || !unique.get(unique.size() - 1).equals(rid))
+                unique.add(rid);
+        }
+        return unique;
+    }
+
+    /**
+     * Orders fields of the same type the way Field.compare does.
+     */
+    private static class FieldComparator implements Comparator<Field>,
+            Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public int compare(Field a, Field b) {
+            if (a instanceof IntField) {
+                int x = ((IntField) a).getValue();
+                int y = ((IntField) b).getValue();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+            if (a.compare(Predicate.Op.EQUALS, b))
+                return 0;
+            return a.compare(Predicate.Op.LESS_THAN, b) ? -1 : 1;
+        }
+    }
+
+    private static class RecordIdComparator implements Comparator<RecordId> {
+        public int compare(RecordId a, RecordId b) {
+            int pa = a.getPageId().pageNumber();
+            int pb = b.getPageId().pageNumber();
+            if (pa != pb)
+                return pa < pb ? -1 : 1;
+            return a.tupleno() < b.tupleno() ? -1
+                    : (a.tupleno() == b.tupleno() ? 0 : 1);
+        }
+    }
+
+    private class IndexIterator implements DbFileIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TransactionId tid;
+        private final IndexPredicate ipred;
+        private ArrayList<RecordId> rids;
+        private int pos;
+        private HeapPage page;
+        private Tuple next;
+
+        IndexIterator(TransactionId tid, IndexPredicate ipred) {
+            this.tid = tid;
+            this.ipred = ipred;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            buildIndex(tid);
+            rids = lookup(ipred);
+            pos = 0;
+            page = null;
+            next = null;
+        }
+
+        public boolean hasNext() throws DbException,
+                TransactionAbortedException {
+            if (rids == null)
+                return false;
+            while (next == null && pos < rids.size()) {
+                RecordId rid = rids.get(pos++);
+                if (page == null || !page.getId().equals(rid.getPageId()))
+                    page = (HeapPage) Database.getBufferPool().getPage(tid,
+                            rid.getPageId(), Permissions.READ_ONLY);
+                Tuple t = page.getTuple(rid.tupleno());
+                if (t != null && ipred.matches(t.getField(keyField)))
+                    next = t;
+            }
+            return next != null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException,
+                NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = next;
+            next = null;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            rids = null;
+            page = null;
+            next = null;
+        }
+    }
+}
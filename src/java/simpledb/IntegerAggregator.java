@@ -18,10 +18,10 @@ public class IntegerAggregator implements Aggregator {
     String gbfieldName = "";
     String tfieldName = "";
     
-    // each tuple in the result is a pair of the form (groupValue, aggrageteValue)
-    private HashMap<Field, Integer> groupbyResult;
-    // count the number of tuples in group
-    private HashMap<Field, Integer> groupbyCount;
+    // group keys and aggregate states, see AggHashTable
+    private AggHashTable table;
+    private int[] keyFields;
+    private boolean named = false;
     
     /**
      * Aggregate constructor
@@ -52,8 +52,13 @@ public class IntegerAggregator implements Aggregator {
     	this.afield = afield;
     	this.what = what;
     	
-    	groupbyResult = new HashMap<Field, Integer>();
-    	groupbyCount = new HashMap<Field, Integer>();
+    	if(grouping) {
+    		keyFields = new int[] { gbfield };
+    		table = new AggHashTable(new Type[] { gbfieldtype }, new Op[] { what });
+    	} else {
+    		keyFields = new int[0];
+    		table = new AggHashTable(new Type[0], new Op[] { what });
+    	}
     }
 
     /**
@@ -65,64 +70,39 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-    	Field groupbyField;
-    	int aggregateValue;
-    	int value;
-    	int count;
-    	tfieldName = tup.getTupleDesc().getFieldName(afield);
-    	
-    	if(!grouping)
-    		groupbyField = new IntField(Aggregator.NO_GROUPING);
-    	else {
-    		groupbyField = tup.getField(gbfield);
-    		gbfieldName = tup.getTupleDesc().getFieldName(gbfield);
+    	if(!named) {
+    		tfieldName = tup.getTupleDesc().getFieldName(afield);
+    		if(grouping)
+    			gbfieldName = tup.getTupleDesc().getFieldName(gbfield);
+    		named = true;
     	}
-    	aggregateValue = ((IntField)tup.getField(afield)).getValue();
     	
-    	// if group value has not been encountered
-    	if(!groupbyResult.containsKey(groupbyField)) {
-    		// create a new group aggregate result
-    		if(what == Op.COUNT || what == Op.SUM || what == Op.AVG)
-    			groupbyResult.put(groupbyField, 0);
-  
-    		else if(what == Op.MIN)
-    			groupbyResult.put(groupbyField, Integer.MAX_VALUE);
-    			
-    		else if(what == Op.MAX)
-    			groupbyResult.put(groupbyField, Integer.MIN_VALUE);
-    		
-    		groupbyCount.put(groupbyField, 0);
-    	}
-    	
-    	// get aggregate value and count
-    	value = groupbyResult.get(groupbyField);
-    	count = groupbyCount.get(groupbyField);
-    	
-    	// merge tuple to the corresponding aggregation operation
-    	if(what == Op.COUNT)
-    		value++;
-    		
-    	else if(what == Op.SUM)
-    		value += aggregateValue;
+    	// the group's state is created on first sight, starting from the
+    	// identity of the aggregation operation
+    	int group = table.group(tup, keyFields);
+    	table.add(group, 0, tup.getInt(afield));
+    }
 
-    	else if(what == Op.AVG) {
-    		count++;
-    		value += aggregateValue;
-    	}
-    	
-    	else if(what == Op.MIN) {
-    		if(aggregateValue < value)
-    			value = aggregateValue;
-    	}
-    	
-    	else if(what == Op.MAX) {
-    		if(aggregateValue > value)
-    			value = aggregateValue;
+    public int numGroups() {
+    	return table.size();
+    }
+
+    public boolean hasGroup(Tuple tup) {
+    	return table.find(tup, keyFields) >= 0;
+    }
+
+    public void merge(Aggregator partial) {
+    	if(!(partial instanceof IntegerAggregator))
+    		throw new IllegalArgumentException("cannot merge " + partial.getClass().getSimpleName());
+    	IntegerAggregator other = (IntegerAggregator) partial;
+    	if(other.gbfield != gbfield || other.afield != afield || other.what != what)
+    		throw new IllegalArgumentException("cannot merge a different aggregator");
+    	if(!named && other.named) {
+    		tfieldName = other.tfieldName;
+    		gbfieldName = other.gbfieldName;
+    		named = true;
     	}
-    	
-    	groupbyResult.put(groupbyField, value);
-    	groupbyCount.put(groupbyField, count);
-    		
+    	table.merge(other.table);
     }
 
     /**
@@ -164,20 +144,14 @@ public class IntegerAggregator implements Aggregator {
     	}
     	td = new TupleDesc(typeAr, fieldAr);
     	
-    	for(Field groupbyField : groupbyResult.keySet()) {
-    		int aggregateValue;
-    		if(what == Op.AVG)
-    			aggregateValue = groupbyResult.get(groupbyField) / groupbyCount.get(groupbyField);
-    		else
-    			aggregateValue = groupbyResult.get(groupbyField);
-    		
+    	for(int group = 0; group < table.size(); group++) {
     		Tuple tuple = new Tuple(td);
     		
     		if(grouping) {
-    			tuple.setField(0, groupbyField);
-    			tuple.setField(1, new IntField(aggregateValue));
+    			table.writeKey(group, tuple, 0);
+    			tuple.setField(1, new IntField(table.result(group, 0)));
     		} else {
-    			tuple.setField(0, new IntField(aggregateValue));
+    			tuple.setField(0, new IntField(table.result(group, 0)));
     		}
     		
     		tuples.add(tuple);
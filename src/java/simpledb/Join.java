@@ -14,6 +14,9 @@ public class Join extends Operator {
     DbIterator child2;
     Tuple left;
     Tuple right;
+    TupleDesc td;
+    // p specialized for the children's schemas, built in open()
+    transient PredicateCompiler.TupleJoinFilter compiled;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -63,9 +66,12 @@ public class Join extends Operator {
      *      implementation logic.
      */
     public TupleDesc getTupleDesc() {
-        TupleDesc td1 = child1.getTupleDesc();
-        TupleDesc td2 = child2.getTupleDesc();
-        return TupleDesc.merge(td1, td2);
+        if(this.td == null){
+            TupleDesc td1 = child1.getTupleDesc();
+            TupleDesc td2 = child2.getTupleDesc();
+            this.td = TupleDesc.merge(td1, td2);
+        }
+        return this.td;
     }
 
     public void open() throws DbException, NoSuchElementException,
@@ -73,6 +79,8 @@ public class Join extends Operator {
         super.open();
         this.child1.open();
         this.child2.open();
+        this.compiled = PredicateCompiler.compile(this.p,
+                child1.getTupleDesc(), child2.getTupleDesc());
     }
 
     public void close() {
@@ -111,22 +119,8 @@ public class Join extends Operator {
         while(left!=null){
             while(child2.hasNext()){
                 right = child2.next();
-                if(this.p.filter(left, right)){
-                    Tuple t = new Tuple(getTupleDesc());
-                    Iterator<Field> it1 = left.fields();
-                    Iterator<Field> it2 = right.fields();
-
-                    //set field values to new tuple
-                    int i=0;
-                    while(it1.hasNext()){
-                        t.setField(i, it1.next());
-                        i++;
-                    }
-                    while(it2.hasNext()){
-                        t.setField(i, it2.next());
-                        i++;
-                    }
-                    return t;
+                if(this.compiled.filter(left, right)){
+                    return Tuple.merge(getTupleDesc(), left, right);
                 }
             }
             if(child1.hasNext()) left = child1.next();
@@ -148,6 +142,7 @@ public class Join extends Operator {
     public void setChildren(DbIterator[] children) {
         if(children[0]!=null) this.child1 = children[0];
         if(children[1]!=null) this.child2 = children[1];
+        this.td = null;
     }
 
 }
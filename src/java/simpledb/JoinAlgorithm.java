@@ -0,0 +1,158 @@
+package simpledb;
+
+/**
+ * The physical join algorithms the {@link JoinOptimizer} can choose between
+ * for a {@link LogicalJoinNode}. Each algorithm knows which joins it can
+ * evaluate and how much it costs, in the same units as
+ * {@link JoinOptimizer#estimateJoinCost}: cost1 and cost2 are the costs of
+ * one full scan of the left and right input, and applying a predicate or
+ * hashing a tuple costs roughly 1.
+ * <p>
+ * The optimizer tracks which inputs are already sorted on their join field
+ * (the output of a sort-merge join is, see {@link SortMergeJoin}), and
+ * passes that to {@link #estimateCost}.
+ */
+public enum JoinAlgorithm {
+    /** Tuple-at-a-time nested loops; see {@link Join}. */
+    NESTED_LOOP() {
+        @Override
+        public boolean supports(LogicalJoinNode j) {
+            return true;
+        }
+
+        @Override
+        public double estimateCost(int card1, int card2, double cost1,
+                double cost2, boolean sorted1, boolean sorted2, int outCard,
+                int width1) {
+            // joincost(t1 join t2) = scancost(t1) + ntups(t1) x scancost(t2) IO cost
+            //                      + ntups(t1) x ntups(t2)  CPU cost
+            return (double) card1 * card2 + cost1 + card1 * cost2;
+        }
+    },
+
+    /**
+     * Nested loops that read the left input a block at a time, as many
+     * tuples as fit in the buffer pool, and rescan the right input once per
+     * block; see {@link BlockNestedLoopJoin}.
+     */
+    BLOCK_NESTED_LOOP() {
+        @Override
+        public boolean supports(LogicalJoinNode j) {
+            return !(j instanceof LogicalSubplanJoinNode);
+        }
+
+        @Override
+        public double estimateCost(int card1, int card2, double cost1,
+                double cost2, boolean sorted1, boolean sorted2, int outCard,
+                int width1) {
+            double blocks = Math.max(1, Math.ceil(card1
+                    / (double) BlockNestedLoopJoin.blockSize(width1)));
+            return (double) card1 * card2 + cost1 + blocks * cost2;
+        }
+    },
+
+    /**
+     * One index lookup on the right input per left tuple; see
+     * {@link IndexNestedLoopJoin}. Only usable when the right input is a
+     * base table with an index on the join field, which the optimizer checks
+     * separately.
+     */
+    INDEX_NESTED_LOOP() {
+        @Override
+        public boolean supports(LogicalJoinNode j) {
+            return IndexNestedLoopJoin.keyOp(j.p) != null
+                    && !(j instanceof LogicalSubplanJoinNode);
+        }
+
+        @Override
+        public double estimateCost(int card1, int card2, double cost1,
+                double cost2, boolean sorted1, boolean sorted2, int outCard,
+                int width1) {
+            // each probe descends the index, then reads the pages holding
+            // its matches -- at worst one page per match, and never more
+            // than the whole right input
+            double matches = card1 == 0 ? 0 : (double) outCard / card1;
+            double pages2 = cost2 / TableStats.IOCOSTPERPAGE;
+            double probe = IndexNestedLoopJoin.PROBE_COST
+                    + Math.min(matches, pages2) * TableStats.IOCOSTPERPAGE
+                    + matches;
+            return cost1 + card1 * probe;
+        }
+    },
+
+    /**
+     * Hybrid hash join that builds on the left input and probes with the
+     * right, partitioning both to disk when the left input has more than
+     * MAP_SIZE tuples; see {@link HashEquiJoin}.
+     */
+    HASH() {
+        @Override
+        public boolean supports(LogicalJoinNode j) {
+            return j.p == Predicate.Op.EQUALS
+                    && !(j instanceof LogicalSubplanJoinNode);
+        }
+
+        @Override
+        public double estimateCost(int card1, int card2, double cost1,
+                double cost2, boolean sorted1, boolean sorted2, int outCard,
+                int width1) {
+            // one pass over each input plus hashing every tuple; when the
+            // build side doesn't fit, all but one partition of each input
+            // is written out and read back once more
+            double cost = cost1 + cost2 + card1 + card2;
+            if (card1 > HashEquiJoin.MAP_SIZE) {
+                double spilled = 1.0 - 1.0 / HashEquiJoin.NUM_PARTITIONS;
+                cost += 2 * spilled * (cost1 + cost2);
+            }
+            return cost;
+        }
+    },
+
+    /**
+     * Sort both inputs on the join field, unless they are already sorted,
+     * and merge them; see {@link SortMergeJoin}. Works for every predicate
+     * but LIKE.
+     */
+    SORT_MERGE() {
+        @Override
+        public boolean supports(LogicalJoinNode j) {
+            return j.p != Predicate.Op.LIKE
+                    && !(j instanceof LogicalSubplanJoinNode);
+        }
+
+        @Override
+        public double estimateCost(int card1, int card2, double cost1,
+                double cost2, boolean sorted1, boolean sorted2, int outCard,
+                int width1) {
+            double cost = cost1 + cost2 + card1 + card2;
+            if (!sorted1)
+                cost += sortCost(card1);
+            if (!sorted2)
+                cost += sortCost(card2);
+            return cost;
+        }
+    };
+
+    /**
+     * @return the CPU cost of sorting card tuples, card * log2(card)
+     */
+    public static double sortCost(int card) {
+        return card < 2 ? card : card * (Math.log(card) / Math.log(2));
+    }
+
+    /**
+     * @return true if this algorithm can evaluate the join j
+     */
+    public abstract boolean supports(LogicalJoinNode j);
+
+    /**
+     * Estimate the cost of joining a left input with card1 tuples and scan
+     * cost cost1 to a right input with card2 tuples and scan cost cost2.
+     * sorted1 and sorted2 tell whether each input already arrives in
+     * ascending order of its join field, outCard is the estimated
+     * cardinality of the join, and width1 the size in bytes of a left tuple.
+     */
+    public abstract double estimateCost(int card1, int card2, double cost1,
+            double cost2, boolean sorted1, boolean sorted2, int outCard,
+            int width1);
+}
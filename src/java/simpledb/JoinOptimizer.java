@@ -44,6 +44,31 @@ public class JoinOptimizer {
      */
     public static DbIterator instantiateJoin(LogicalJoinNode lj,
             DbIterator plan1, DbIterator plan2) throws ParsingException {
+        return instantiateJoin(lj, plan1, plan2, 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * As {@link #instantiateJoin(LogicalJoinNode, DbIterator, DbIterator)},
+     * but hash joins run on the given number of worker threads if their
+     * build side fits in memory.  {@link ParallelHashJoin} never spills, so
+     * it is used only if buildCard tuples of plan1 fit in the buffer pool
+     * (see {@link #buildFits}); otherwise the join is a HashEquiJoin, which
+     * partitions its inputs to disk when they do not.
+     * <p>
+     * Children that are scan pipelines are scanned by a
+     * {@link ParallelSeqScan}, except the inner side of the nested-loop
+     * joins: that is probed through its index or rewound for every outer
+     * tuple or block, so it stays a plain scan.
+     *
+     * @param workers
+     *            The number of worker threads per parallel operator
+     * @param buildCard
+     *            The estimated cardinality of plan1, or Integer.MAX_VALUE
+     *            if it is unknown
+     */
+    public static DbIterator instantiateJoin(LogicalJoinNode lj,
+            DbIterator plan1, DbIterator plan2, int workers, int buildCard)
+            throws ParsingException {
 
         int t1id = 0, t2id = 0;
         DbIterator j;
@@ -68,20 +93,151 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        JoinAlgorithm algorithm = algorithmFor(lj);
+        if (algorithm == JoinAlgorithm.INDEX_NESTED_LOOP
+                && !IndexNestedLoopJoin.canProbe(plan2, t2id))
+            algorithm = defaultAlgorithm(lj);
+
+        plan1 = ParallelSeqScan.parallelize(plan1, workers);
+        if (algorithm == JoinAlgorithm.HASH || algorithm == JoinAlgorithm.SORT_MERGE)
+            plan2 = ParallelSeqScan.parallelize(plan2, workers);
+
+        switch (algorithm) {
+        case HASH:
+            if (workers > 1 && buildFits(buildCard, plan1.getTupleDesc()))
+                j = new ParallelHashJoin(p, plan1, plan2, workers);
+            else
+                j = new HashEquiJoin(p, plan1, plan2);
+            break;
+        case SORT_MERGE:
+            j = new SortMergeJoin(p, plan1, plan2);
+            break;
+        case BLOCK_NESTED_LOOP:
+            j = new BlockNestedLoopJoin(p, plan1, plan2);
+            break;
+        case INDEX_NESTED_LOOP:
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+            break;
+        default:
+            j = new Join(p, plan1, plan2);
+            break;
+        }
 
         return j;
 
     }
 
+    /**
+     * @return true if card tuples of td take no more bytes than the pages of
+     *         the buffer pool
+     */
+    static boolean buildFits(int card, TupleDesc td) {
+        return (long) card * td.getSize()
+                <= (long) Database.getBufferPool().getNumPages() * BufferPool.PAGE_SIZE;
+    }
+
+    /**
+     * Choose the cheapest physical algorithm for a join. Arguments are as for
+     * {@link #estimateJoinCost}.
+     * 
+     * @return the {@link JoinAlgorithm} that supports j with the lowest
+     *         estimated cost
+     */
+    public JoinAlgorithm chooseJoinAlgorithm(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2) {
+        return chooseJoinAlgorithm(j, card1, card2, cost1, cost2, false,
+                false, hasIndex(j), null, joinCardinality(j, card1, card2),
+                tupleWidth(j.t1Alias));
+    }
+
+    /**
+     * Choose the cheapest physical algorithm for a join, taking interesting
+     * orders into account.
+     * 
+     * @param sorted1
+     *            true if the left input is sorted on the join field
+     * @param sorted2
+     *            true if the right input is sorted on the join field
+     * @param indexed2
+     *            true if the right input is a base table with an index on
+     *            the join field
+     * @param order
+     *            the field the join output must end up sorted on (because
+     *            of an ORDER BY), or null
+     * @param outCard
+     *            estimated cardinality of the join output
+     * @param width1
+     *            the size in bytes of a tuple of the left input
+     */
+    private JoinAlgorithm chooseJoinAlgorithm(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2, boolean sorted1,
+            boolean sorted2, boolean indexed2, String order, int outCard,
+            int width1) {
+        JoinAlgorithm best = JoinAlgorithm.NESTED_LOOP;
+        double bestCost = Double.MAX_VALUE;
+        for (JoinAlgorithm a : JoinAlgorithm.values()) {
+            if (!a.supports(j))
+                continue;
+            if (a == JoinAlgorithm.INDEX_NESTED_LOOP && !indexed2)
+                continue;
+            double c = costOf(a, j, card1, card2, cost1, cost2, sorted1,
+                    sorted2, order, outCard, width1);
+            if (c < bestCost) {
+                best = a;
+                bestCost = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the cost of evaluating j with algorithm a, plus the cost of
+     *         sorting its output on order if a doesn't produce that order
+     */
+    private static double costOf(JoinAlgorithm a, LogicalJoinNode j,
+            int card1, int card2, double cost1, double cost2,
+            boolean sorted1, boolean sorted2, String order, int outCard,
+            int width1) {
+        double c = a.estimateCost(card1, card2, cost1, cost2, sorted1,
+                sorted2, outCard, width1);
+        if (order != null && !producesOrder(a, j, order))
+            c += JoinAlgorithm.sortCost(outCard);
+        return c;
+    }
+
+    /**
+     * @return true if joining j with algorithm a yields tuples sorted
+     *         ascending on the (quantified) field name
+     */
+    static boolean producesOrder(JoinAlgorithm a, LogicalJoinNode j,
+            String field) {
+        if (a != JoinAlgorithm.SORT_MERGE || field == null)
+            return false;
+        return field.equals(j.f1QuantifiedName)
+                || (j.p == Predicate.Op.EQUALS && field.equals(j.f2QuantifiedName));
+    }
+
+    /**
+     * @return true if the output of the left-deep plan is sorted ascending on
+     *         the (quantified) field name
+     */
+    private static boolean planProducesOrder(Vector<LogicalJoinNode> plan,
+            String field) {
+        if (plan.isEmpty())
+            return false;
+        LogicalJoinNode last = plan.lastElement();
+        return producesOrder(algorithmFor(last), last, field);
+    }
+
     /**
      * Estimate the cost of a join.
      * 
-     * The cost of the join should be calculated based on the join algorithm (or
-     * algorithms) that you implemented for Project 2. It should be a function of
-     * the amount of data that must be read over the course of the query, as
-     * well as the number of CPU opertions performed by your join. Assume that
-     * the cost of a single predicate application is roughly 1.
+     * The cost of the join is that of the cheapest {@link JoinAlgorithm}
+     * that can evaluate it (see {@link #chooseJoinAlgorithm}). It is a
+     * function of the amount of data that must be read over the course of
+     * the query, as well as the number of CPU opertions performed by the
+     * join. Assume that the cost of a single predicate application is
+     * roughly 1.
      * 
      * 
      * @param j
@@ -107,14 +263,25 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Project 3.
             return card1 + cost1 + cost2;
         } else {
-            //oincost(t1 join t2) = scancost(t1) + ntups(t1) x scancost(t2) IO cost
-            //                      + ntups(t1) x ntups(t2)  CPU cost
-            double totalcost = card1 * card2 + cost1 + card1 * cost2;
-           
-            return totalcost;
+            int outCard = joinCardinality(j, card1, card2);
+            return chooseJoinAlgorithm(j, card1, card2, cost1, cost2)
+                    .estimateCost(card1, card2, cost1, cost2, false, false,
+                            outCard, tupleWidth(j.t1Alias));
         }
     }
 
+    /**
+     * @return the cardinality of j, using what the catalog knows about
+     *         primary keys of the tables in the plan
+     */
+    private int joinCardinality(LogicalJoinNode j, int card1, int card2) {
+        if (j instanceof LogicalSubplanJoinNode)
+            return card1;
+        return estimateJoinCardinality(j, card1, card2,
+                knownPkey(j.t1Alias, j.f1PureName),
+                knownPkey(j.t2Alias, j.f2PureName), null);
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -157,7 +324,16 @@ public class JoinOptimizer {
         int card = 1;
         
         if(joinOp.equals(Predicate.Op.EQUALS)){
-            card = Math.max(card1, card2);
+            // a tuple matches at most one tuple of a table joined on its
+            // primary key
+            if (t1pkey && t2pkey)
+                card = Math.min(card1, card2);
+            else if (t1pkey)
+                card = card2;
+            else if (t2pkey)
+                card = card1;
+            else
+                card = Math.max(card1, card2);
         }
         
         else{
@@ -242,6 +418,10 @@ public class JoinOptimizer {
         11.return optjoin(j)
        */
 
+        // a single-table query has nothing to order
+        if (joins.isEmpty())
+            return joins;
+
         PlanCache optjoin = new PlanCache();
         Set<LogicalJoinNode> finalset = new HashSet<LogicalJoinNode>();
         finalset.addAll(joins);
@@ -267,6 +447,64 @@ public class JoinOptimizer {
 
     // ===================== Private Methods =================================
 
+    /**
+     * @return the algorithm {@link #instantiateJoin} will use for j: the one
+     *         chosen by the optimizer, or if none was, the default of
+     *         {@link #defaultAlgorithm}
+     */
+    static JoinAlgorithm algorithmFor(LogicalJoinNode j) {
+        if (j.algorithm != null && j.algorithm.supports(j))
+            return j.algorithm;
+        return defaultAlgorithm(j);
+    }
+
+    /**
+     * @return a hash join if j is an equi-join, else block nested loops, or
+     *         tuple-at-a-time nested loops for a subquery
+     */
+    private static JoinAlgorithm defaultAlgorithm(LogicalJoinNode j) {
+        if (JoinAlgorithm.HASH.supports(j))
+            return JoinAlgorithm.HASH;
+        if (JoinAlgorithm.BLOCK_NESTED_LOOP.supports(j))
+            return JoinAlgorithm.BLOCK_NESTED_LOOP;
+        return JoinAlgorithm.NESTED_LOOP;
+    }
+
+    /**
+     * @return true if the right table of j, as a base table, has an index
+     *         on the join field of j
+     */
+    private boolean hasIndex(LogicalJoinNode j) {
+        if (j instanceof LogicalSubplanJoinNode || j.t2Alias == null)
+            return false;
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return false;
+        DbFile f = Database.getCatalog().getDbFile(tableId);
+        if (!(f instanceof IndexedDbFile))
+            return false;
+        int key = ((IndexedDbFile) f).keyField();
+        return f.getTupleDesc().getFieldName(key).equals(j.f2PureName);
+    }
+
+    /**
+     * @return the name of the physical operator that will evaluate j
+     */
+    private static String describeAlgorithm(LogicalJoinNode j) {
+        switch (algorithmFor(j)) {
+        case HASH:
+            return "HashEquiJoin";
+        case SORT_MERGE:
+            return "SortMergeJoin";
+        case BLOCK_NESTED_LOOP:
+            return "BlockNestedLoopJoin";
+        case INDEX_NESTED_LOOP:
+            return "IndexNestedLoopJoin";
+        default:
+            return "Join";
+        }
+    }
+
     /**
      * This is a helper method that computes the cost and cardinality of joining
      * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
@@ -391,15 +629,60 @@ public class JoinOptimizer {
             }
         }
 
+        // interesting orders: an input coming out of a sort-merge join on
+        // this join's field need not be sorted again, and if this is the
+        // last join, producing the ORDER BY order saves the final sort
+        boolean t1sorted = !news.isEmpty() && doesJoin(prevBest, table1Alias)
+                && planProducesOrder(prevBest, j.f1QuantifiedName);
+        boolean t2sorted = !news.isEmpty() && !t1sorted
+                && doesJoin(prevBest, j.t2Alias)
+                && planProducesOrder(prevBest, j.f2QuantifiedName);
+        String order = news.size() + 1 == joins.size() ? p.getInterestingOrder() : null;
+        int outCard = estimateJoinCardinality(j, t1card, t2card, leftPkey,
+                rightPkey, stats);
+        // an index on the inner side can only be probed if it is a base table
+        boolean t2indexed = (news.isEmpty() || doesJoin(prevBest, table1Alias))
+                && hasIndex(j);
+        // the width of a tuple of each side, for the block size of block
+        // nested loops
+        boolean prevLeft = !news.isEmpty() && doesJoin(prevBest, table1Alias);
+        boolean prevRight = !news.isEmpty() && !prevLeft;
+        int t1width = prevLeft ? planWidth(prevBest) : tupleWidth(j.t1Alias);
+        int t2width = prevRight ? planWidth(prevBest) : tupleWidth(j.t2Alias);
+
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        JoinAlgorithm algorithm;
+        double cost1;
+        if (j instanceof LogicalSubplanJoinNode) {
+            algorithm = JoinAlgorithm.NESTED_LOOP;
+            cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        } else {
+            algorithm = chooseJoinAlgorithm(j, t1card, t2card, t1cost, t2cost,
+                    t1sorted, t2sorted, t2indexed, order, outCard, t1width);
+            cost1 = costOf(algorithm, j, t1card, t2card, t1cost, t2cost,
+                    t1sorted, t2sorted, order, outCard, t1width);
+        }
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        boolean t1indexed = (news.isEmpty() || doesJoin(prevBest, j.t2Alias))
+                && hasIndex(j2);
+        JoinAlgorithm algorithm2;
+        double cost2;
+        if (j2 instanceof LogicalSubplanJoinNode) {
+            algorithm2 = JoinAlgorithm.NESTED_LOOP;
+            cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        } else {
+            algorithm2 = chooseJoinAlgorithm(j2, t2card, t1card, t2cost,
+                    t1cost, t2sorted, t1sorted, t1indexed, order, outCard,
+                    t2width);
+            cost2 = costOf(algorithm2, j2, t2card, t1card, t2cost, t1cost,
+                    t2sorted, t1sorted, order, outCard, t2width);
+        }
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
             cost1 = cost2;
+            algorithm = algorithm2;
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
@@ -413,10 +696,36 @@ public class JoinOptimizer {
                 rightPkey, stats);
         cc.cost = cost1;
         cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
+        cc.plan.addElement(j.withAlgorithm(algorithm)); // prevbest is left -- add new join to end
         return cc;
     }
 
+    /**
+     * @return the size in bytes of a tuple of the table with the given alias,
+     *         or of an integer if the alias names no table of the query
+     */
+    private int tupleWidth(String alias) {
+        Integer id = alias == null ? null : p.getTableId(alias);
+        if (id == null)
+            return Type.INT_TYPE.getLen();
+        return Database.getCatalog().getTupleDesc(id).getSize();
+    }
+
+    /**
+     * @return the size in bytes of a tuple coming out of the joins of plan
+     */
+    private int planWidth(Vector<LogicalJoinNode> plan) {
+        HashSet<String> aliases = new HashSet<String>();
+        int width = 0;
+        for (LogicalJoinNode j : plan) {
+            if (aliases.add(j.t1Alias))
+                width += tupleWidth(j.t1Alias);
+            if (j.t2Alias != null && aliases.add(j.t2Alias))
+                width += tupleWidth(j.t2Alias);
+        }
+        return width;
+    }
+
     /**
      * Return true if the specified table is in the list of joins, false
      * otherwise
@@ -446,6 +755,14 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
+    /**
+     * Like {@link #isPkey}, but false for tables that aren't in the plan
+     */
+    private boolean knownPkey(String tableAlias, String field) {
+        return tableAlias != null && p.getTableId(tableAlias) != null
+                && isPkey(tableAlias, field);
+    }
+
     /**
      * Return true if a primary key field is joined by one of the joins in
      * joinlist
@@ -500,6 +817,11 @@ public class JoinOptimizer {
         boolean neither;
 
         System.out.println(js);
+        for (LogicalJoinNode j : js) {
+            System.out.println(describeAlgorithm(j) + " " + j.t1Alias + "."
+                    + j.f1PureName + " " + j.p + " "
+                    + (j.t2Alias == null ? "subplan" : j.t2Alias + "." + j.f2PureName));
+        }
         for (LogicalJoinNode j : js) {
             pathSoFar.add(j);
             System.out.println("PATH SO FAR = " + pathSoFar);
@@ -512,7 +834,7 @@ public class JoinOptimizer {
             // Double c = pc.getCost(pathSoFar);
             neither = true;
 
-            root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
+            root = new DefaultMutableTreeNode(describeAlgorithm(j) + " " + j + " (Cost ="
                     + pc.getCost(pathSoFar) + ", card = "
                     + pc.getCard(pathSoFar) + ")");
             DefaultMutableTreeNode n = m.get(j.t1Alias);
@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Limit implements LIMIT and OFFSET: it skips the first offset tuples of its
+ * child and returns at most limit of the ones that follow. As soon as the
+ * limit is reached the child is closed, so no more of it is read; latency
+ * then depends on the limit rather than on the size of the input.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final int limit;
+    private final int offset;
+    // tuples skipped and returned since open or rewind
+    private int skipped, returned;
+    private boolean childOpen;
+
+    /**
+     * Constructor.
+     * 
+     * @param limit
+     *            the maximum number of tuples to return, or -1 for no limit
+     * @param offset
+     *            the number of tuples to skip first
+     * @param child
+     *            the child operator
+     */
+    public Limit(int limit, int offset, DbIterator child) {
+        if (offset < 0)
+            throw new IllegalArgumentException("negative offset " + offset);
+        this.limit = limit;
+        this.offset = offset;
+        this.child = child;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        childOpen = true;
+        skipped = returned = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeChild();
+    }
+
+    private void closeChild() {
+        if (childOpen)
+            child.close();
+        childOpen = false;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (childOpen)
+            child.rewind();
+        else
+            child.open();
+        childOpen = true;
+        skipped = returned = 0;
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!childOpen)
+            return null;
+        if (limit >= 0 && returned >= limit) {
+            closeChild();
+            return null;
+        }
+        while (skipped < offset && child.hasNext()) {
+            child.next();
+            skipped++;
+        }
+        if (!child.hasNext()) {
+            closeChild();
+            return null;
+        }
+        returned++;
+        return child.next();
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+}
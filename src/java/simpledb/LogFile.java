@@ -3,7 +3,12 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -14,24 +19,80 @@ two-phase locking discipline are followed.  <p>
 <u> Locking note: </u>
 <p>
 
-Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
+Many of the methods here hold this log's lock (to prevent concurrent
+log writes from happening); many of the methods in BufferPool hold the
+buffer pool's lock (for similar reasons.)  Problem is that BufferPool
+writes log records (on page flushed) and the log file flushes BufferPool
 pages (on checkpoints and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+must take the buffer pool's lock before this log's, with a block like:
 
 <p>
 <pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
+    BufferPool pool = Database.getBufferPool();
+    pool.lock.lock();
+    lock.lock();
+    try {
 
        ..
 
-       }
+    } finally {
+        lock.unlock();
+        pool.lock.unlock();
     }
 </pre>
+
+Both are ReentrantLocks rather than monitors, so a virtual thread that
+blocks on the disk while holding them does not pin its carrier thread.
+
+<u> Group commit: </u>
+<p>
+
+logCommit appends its record and then waits, without holding the lock,
+for a flusher thread to force the log. The flusher forces once for all
+the commits that are waiting, so concurrent transactions share one
+fsync instead of each paying for their own. It starts a force when the
+commit window (see setGroupCommitWindow) has passed since the first
+commit of a batch, or as soon as the batch holds groupCommitSize
+commits. With the default window of zero it forces as soon as any
+commit waits. Commits that arrive during a force still join the next
+batch together.
+
+<u> Log buffer and LSNs: </u>
+<p>
+
+Records are not written to the file one field at a time. They are
+serialized into a ring of LOG_BUFFERS direct buffers, and the filled
+part of the ring goes to the file in one gathering write: when the ring
+is full, before a force, and before anything reads the file back.
+
+Every position in the log has a log sequence number (LSN) that never
+changes: its offset in the log as if no segment had ever been deleted,
+with the header at LSN 0. The LSN of a
+record is the LSN just past its end, so force(lsn) makes that record
+durable. logInsert, logDelete and logWrite return the LSN of their
+record. BufferPool stamps the page with it, and forces the log only
+that far before it writes the page. That force costs nothing when a group commit has already forced
+the log further.
+
+<u> Segments and checkpoints: </u>
+<p>
+
+The log is a series of segment files. The first is the log file itself,
+and each later one is named after it and the LSN it starts at, as in
+"log.16780004". A new segment starts once the last one holds
+segmentSize bytes. logTruncate deletes the segments that hold only
+records the last checkpoint no longer needs. It copies nothing, so no
+LSN changes.
+
+Checkpoints are fuzzy. A checkpoint writes no pages. Its record holds
+the active transactions and the buffer pool's dirty page table, and it
+holds the locks only while it appends that record. Then the buffer
+pool's writer thread writes the dirty pages in the background. Recovery
+redoes from the earliest change to a page that was dirty at the
+checkpoint, and skips the records before the checkpoint for pages that
+were clean. Shutdown writes every page first, so the next start has
+nothing to redo.
 */
 
 /**
@@ -39,7 +100,7 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
+<li> The first long integer of the file represents the LSN of the
 last written checkpoint, or -1 if there are no checkpoints
 
 <li> All additional data in the log consists of log records.  Log
@@ -48,24 +109,43 @@ records are variable length.
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing
+the position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, INSERT and DELETE
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  Each starts with the one-byte code of the page's PageCodec
+and the page id as two integers, so reading it back needs no
+reflection.
+
+<li> INSERT and DELETE records describe a change to one tuple: the
+table id, page number and slot of the tuple, an integer length and the
+tuple's bytes, as a HeapPage stores them.  They are only ever written
+for heap pages, the only pages BufferPool inserts tuples into and
+deletes them from, so they carry no PageCodec code.  An INSERT puts the tuple in
+the slot and a DELETE empties it, so both can be redone and undone any
+number of times.  They cost a few dozen bytes where an UPDATE record
+costs two whole pages, and BufferPool writes them as tuples change.
+
+<li> Rollback undoes a transaction's INSERT and DELETE records, newest
+first, and logs each undo as the opposite record.  So recovery can
+repeat history: it redoes every record in order, then undoes, the same
+way, the transactions that have neither committed nor aborted.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+as a long integer transaction id and a long integer first record LSN
+for each active transaction.  Then comes the dirty page table: an
+integer count of pages, and for each page the one-byte code of its
+PageCodec, its table id, its page number and the LSN of its first
+change since it was last written.
 
 </ul>
 
@@ -82,8 +162,15 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int INSERT_RECORD = 6;
+    static final int DELETE_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
+    static final long FLUSHER_IDLE_MS = 1000;
+    static final int LOG_BUFFER_SIZE = 64 * 1024;
+    static final int LOG_BUFFERS = 8;
+    static final long LOG_SEGMENT_SIZE = 16 * 1024 * 1024;
+
     static int INT_SIZE = 4;
     static int LONG_SIZE = 8;
 
@@ -93,6 +180,49 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // records not yet in the file: ring[0..filling] in order, buffered
+    // bytes in all. Records are serialized through out
+    private final ByteBuffer[] ring = new ByteBuffer[LOG_BUFFERS];
+    private int filling = 0;
+    private int buffered = 0;
+    // the LSN just past what has been written to the files
+    long fileEnd = 0;
+    // the segments, by the LSN each starts at; the first is logFile itself
+    private final TreeMap<Long,Segment> segments = new TreeMap<Long,Segment>();
+    // the first LSN logTruncate has kept
+    long logStart = LONG_SIZE;
+    // a new segment starts once the last one holds this many bytes
+    long segmentSize = LOG_SEGMENT_SIZE;
+    final DataOutputStream out = new DataOutputStream(new OutputStream() {
+        public void write(int b) throws IOException {
+            append(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            append(b, off, len);
+        }
+    });
+
+    // guards the file and the fields above; see the locking note
+    final ReentrantLock lock = new ReentrantLock();
+
+    // group commit: commit records are numbered in log order; durable is
+    // the number of the last one known to be on disk. Guarded by
+    // commitLock, except commitsWritten, which is guarded by lock
+    long commitsWritten = 0;
+    private long commitsRequested = 0;
+    private long durable = 0;
+    private long durableLsn = 0;
+    private IOException forceError;
+    private long groupCommitNanos = 0;
+    private int groupCommitSize = 64;
+    private long forces = 0;
+    private Thread flusher;
+    private boolean closed;
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Condition commitWaiting = commitLock.newCondition();
+    private final Condition commitDurable = commitLock.newCondition();
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -108,6 +238,7 @@ public class LogFile {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
+        openSegments();
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -127,11 +258,166 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
+            while (segments.size() > 1)
+                dropSegment(segments.lastEntry().getValue());
             raf.seek(0);
             raf.setLength(0);
             raf.writeLong(NO_CHECKPOINT_ID);
             raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            fileEnd = raf.getFilePointer();
+            currentOffset = fileEnd;
+            logStart = fileEnd;
+        }
+    }
+
+    /** A file holding the log from LSN start up to the start of the next
+        segment, or to the end of the log. */
+    private static class Segment {
+        final long start;
+        final File file;
+        final RandomAccessFile raf;
+
+        Segment(long start, File file, RandomAccessFile raf) {
+            this.start = start;
+            this.file = file;
+            this.raf = raf;
+        }
+    }
+
+    /** @return the file of the segment that starts at LSN start */
+    private File segmentFile(long start) {
+        return start == 0 ? logFile : new File(logFile.getPath() + "." + start);
+    }
+
+    /** Find the segments a previous run left next to logFile. */
+    private void openSegments() throws IOException {
+        segments.put(0L, new Segment(0, logFile, raf));
+        File dir = logFile.getAbsoluteFile().getParentFile();
+        String prefix = logFile.getName() + ".";
+        String[] names = dir.list();
+        for (int i = 0; names != null && i < names.length; i++) {
+            String name = names[i];
+            if (!name.startsWith(prefix) || name.length() == prefix.length())
+                continue;
+            long start;
+            try {
+                start = Long.parseLong(name.substring(prefix.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            File f = new File(dir, name);
+            segments.put(start, new Segment(start, f, new RandomAccessFile(f, "rw")));
+        }
+        // logTruncate leaves just the header in the first segment
+        if (segments.size() > 1 && raf.length() <= LONG_SIZE)
+            logStart = segments.higherKey(0L);
+    }
+
+    /** Start a new segment at LSN start, the end of the log.  The caller
+        holds the lock. */
+    private Segment newSegment(long start) throws IOException {
+        File f = segmentFile(start);
+        RandomAccessFile file = new RandomAccessFile(f, "rw");
+        file.setLength(0);
+        Segment seg = new Segment(start, f, file);
+        segments.put(start, seg);
+        return seg;
+    }
+
+    /** Delete a segment that holds no record anyone needs.  The first
+        segment keeps the header.  The caller holds the lock. */
+    private void dropSegment(Segment seg) throws IOException {
+        if (seg.start == 0) {
+            raf.setLength(LONG_SIZE);
+            return;
+        }
+        seg.raf.close();
+        seg.file.delete();
+        segments.remove(seg.start);
+    }
+
+    /** Read log bytes from LSN lsn on into buf, up to the end of the
+        segment that holds lsn.  The caller holds the lock.
+
+        @return the number of bytes read, or -1 at the end of the log
+    */
+    private int readLog(ByteBuffer buf, long lsn) throws IOException {
+        if (lsn < logStart)
+            throw new IOException("log record " + lsn + " was truncated");
+        if (lsn >= fileEnd)
+            return -1;
+        Map.Entry<Long,Segment> seg = segments.floorEntry(lsn);
+        Long next = segments.higherKey(lsn);
+        long end = next != null ? next : fileEnd;
+        if (end - lsn < buf.remaining())
+            buf.limit(buf.position() + (int) (end - lsn));
+        return seg.getValue().raf.getChannel().read(buf, lsn - seg.getKey());
+    }
+
+    /** Serialize len bytes of a record into the log buffer, writing the
+        ring out to the file when it fills up.  The caller holds the lock.
+    */
+    private void append(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ByteBuffer buf = ring[filling];
+            if (buf == null) {
+                buf = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE);
+                ring[filling] = buf;
+            } else if (!buf.hasRemaining()) {
+                if (filling == LOG_BUFFERS - 1)
+                    writeOut();
+                else
+                    filling++;
+                continue;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.put(b, off, n);
+            off += n;
+            len -= n;
+            buffered += n;
+        }
+    }
+
+    /** Write everything in the log buffer to the file, in one gathering
+        write, without forcing it.  The caller holds the lock.
+    */
+    void writeOut() throws IOException {
+        if (buffered == 0)
+            return;
+        Segment tail = segments.lastEntry().getValue();
+        if (fileEnd - tail.start >= segmentSize) {
+            // the flusher forces only the last segment
+            tail.raf.getChannel().force(true);
+            tail = newSegment(fileEnd);
+        }
+        for (int i = 0; i <= filling; i++)
+            ring[i].flip();
+        FileChannel ch = tail.raf.getChannel();
+        ch.position(fileEnd - tail.start);
+        long left = buffered;
+        while (left > 0)
+            left -= ch.write(ring, 0, filling + 1);
+        for (int i = 0; i <= filling; i++)
+            ring[i].clear();
+        fileEnd += buffered;
+        buffered = 0;
+        filling = 0;
+    }
+
+    /** @return the LSN just past the last record appended, whether or
+        not it is in the file yet.  The caller holds the lock.
+    */
+    long position() {
+        return fileEnd + buffered;
+    }
+
+    /** @return the LSN just past the last record appended */
+    public long getEndLSN() {
+        lock.lock();
+        try {
+            return position();
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -147,43 +433,192 @@ public class LogFile {
         // must have buffer pool lock before proceeding, since this
         // calls rollback
 
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+        BufferPool pool = Database.getBufferPool();
+        pool.lock.lock();
+        lock.lock();
+        try {
+            preAppend();
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
+
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
+
+            out.writeInt(ABORT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = position();
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
+        } finally {
+            lock.unlock();
+            pool.lock.unlock();
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and wait until the log has been forced to disk past it.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long commit;
+        lock.lock();
+        try {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = position();
+            tidToFirstLogRecord.remove(tid.getId());
+            commit = ++commitsWritten;
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(commit);
+    }
+
+    /** Set how long the flusher waits for more commits to join a batch
+        before it forces the log, and how many commits make it force at
+        once. A longer window means fewer forces and a higher commit
+        rate under load, and longer commits when there is little.
+
+        @param micros The window in microseconds; 0 forces as soon as a
+        commit waits
+        @param size The batch size that forces before the window closes
+    */
+    public void setGroupCommitWindow(long micros, int size) {
+        commitLock.lock();
+        try {
+            groupCommitNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, micros));
+            groupCommitSize = Math.max(1, size);
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /** @return the number of times the flusher has forced the log */
+    public long getForceCount() {
+        commitLock.lock();
+        try {
+            return forces;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /** Wait until commit record number commit is on disk, starting the
+        flusher if need be.
+    */
+    private void awaitDurable(long commit) throws IOException {
+        commitLock.lock();
+        try {
+            if (flusher == null) {
+                if (closed)
+                    throw new IOException("log is shut down");
+                flusher = new Thread(new Runnable() {
+                    public void run() {
+                        flushCommits();
+                    }
+                }, "simpledb-log-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            if (commit > commitsRequested) {
+                commitsRequested = commit;
+                commitWaiting.signal();
+            }
+            while (durable < commit) {
+                if (forceError != null)
+                    throw new IOException("log force failed", forceError);
+                if (closed)
+                    throw new IOException("log is shut down");
+                commitDurable.awaitUninterruptibly();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /** Body of the flusher thread: force the log once per batch of
+        waiting commits, then wake them. Exits once no commit has come
+        for FLUSHER_IDLE_MS, so that an unused log holds no thread.
+    */
+    private void flushCommits() {
+        while (true) {
+            commitLock.lock();
+            try {
+                long idle = TimeUnit.MILLISECONDS.toNanos(FLUSHER_IDLE_MS);
+                while (commitsRequested <= durable && !closed && idle > 0) {
+                    try {
+                        idle = commitWaiting.awaitNanos(idle);
+                    } catch (InterruptedException e) {
+                        idle = 0;
+                    }
+                }
+                if (closed || commitsRequested <= durable) {
+                    flusher = null;
+                    return;
+                }
+                // give more commits a chance to join the batch
+                long deadline = System.nanoTime() + groupCommitNanos;
+                while (commitsRequested - durable < groupCommitSize && !closed) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0)
+                        break;
+                    try {
+                        commitWaiting.awaitNanos(left);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            } finally {
+                commitLock.unlock();
+            }
+
+            // write the buffer out; then every commit numbered up to
+            // target, and the log up to targetLsn, is in the last segment
+            // or, forced already, in an earlier one
+            long target = 0, targetLsn = 0;
+            RandomAccessFile file = null;
+            IOException error = null;
+            lock.lock();
+            try {
+                writeOut();
+                target = commitsWritten;
+                targetLsn = fileEnd;
+                file = segments.lastEntry().getValue().raf;
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                lock.unlock();
+            }
+            if (error == null) {
+                try {
+                    file.getChannel().force(true);
+                } catch (ClosedChannelException e) {
+                    // shutdown closed the log
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+
+            if (error == null) {
+                forced(target, targetLsn);
+            } else {
+                commitLock.lock();
+                try {
+                    forceError = error;
+                    commitDurable.signalAll();
+                } finally {
+                    commitLock.unlock();
+                }
+            }
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -192,265 +627,396 @@ public class LogFile {
         @param before The before image of the page
         @param after The after image of the page
 
+        @return The LSN of the record, to stamp the page with
+
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
+    public long logWrite(TransactionId tid, Page before, Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
-        /* update record conists of
+        lock.lock();
+        try {
+            Debug.log("WRITE, offset = " + position());
+            preAppend();
+            /* update record conists of
+
+               record type
+               transaction id
+               before page data (see writePageData)
+               after page data
+               start offset
+            */
+            out.writeInt(UPDATE_RECORD);
+            out.writeLong(tid.getId());
+
+            writePageData(out,before);
+            writePageData(out,after);
+            out.writeLong(currentOffset);
+            currentOffset = position();
+
+            Debug.log("WRITE OFFSET = " + currentOffset);
+            return currentOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Write an INSERT record for tuple t, which tid has just inserted;
+        t's RecordId tells where.
 
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        @return The LSN of the record, to stamp the page with
+    */
+    public long logInsert(TransactionId tid, Tuple t) throws IOException {
+        return logTuple(INSERT_RECORD, tid, t.getRecordId(), t);
+    }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+    /** Write a DELETE record for tuple t, which tid is about to delete
+        from where its RecordId says.
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+        @return The LSN of the record, to stamp the page with
+    */
+    public long logDelete(TransactionId tid, Tuple t) throws IOException {
+        return logTuple(DELETE_RECORD, tid, t.getRecordId(), t);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    private long logTuple(int type, TransactionId tid, RecordId rid, Tuple t)
+        throws IOException {
+        lock.lock();
+        try {
+            preAppend();
+            out.writeInt(type);
+            out.writeLong(tid.getId());
+            PageId pid = rid.getPageId();
+            out.writeInt(pid.getTableId());
+            out.writeInt(pid.pageNumber());
+            out.writeInt(rid.tupleno());
+            out.writeInt(t.getTupleDesc().getSize());
+            t.serialize(out);
+            out.writeLong(currentOffset);
+            currentOffset = position();
+            return currentOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /** The body of an INSERT or DELETE record, which only heap pages
+        have. */
+    static class TupleRecord {
+        final HeapPageId pid;
+        final int slot;
+        final byte[] tuple;
+
+        TupleRecord(HeapPageId pid, int slot, byte[] tuple) {
+            this.pid = pid;
+            this.slot = slot;
+            this.tuple = tuple;
+        }
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    static TupleRecord readTupleRecord(DataInput in) throws IOException {
+        HeapPageId pid = new HeapPageId(in.readInt(), in.readInt());
+        int slot = in.readInt();
+        byte[] tuple = new byte[in.readInt()];
+        in.readFully(tuple);
+        return new TupleRecord(pid, slot, tuple);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    static void writeTupleRecord(DataOutput out, TupleRecord r) throws IOException {
+        out.writeInt(r.pid.getTableId());
+        out.writeInt(r.pid.pageNumber());
+        out.writeInt(r.slot);
+        out.writeInt(r.tuple.length);
+        out.write(r.tuple);
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+    /** Reads the log forward from an LSN, across segments, through a
+        buffer of LOG_BUFFER_SIZE bytes, so a scan costs a read call per
+        buffer rather than per field.  It reads at explicit offsets,
+        leaving the channel's position, which appends use, alone.  The
+        caller holds the lock while it reads.
+    */
+    static class LogInput extends DataInputStream {
+        LogInput(LogFile log, long lsn) {
+            super(new ChannelInput(log, lsn));
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
-    }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+        /** @return the LSN of the next byte to read */
+        long position() {
+            return ((ChannelInput) in).position();
+        }
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    private static class ChannelInput extends InputStream {
+        private final LogFile log;
+        private final ByteBuffer buf = ByteBuffer.allocate(LOG_BUFFER_SIZE);
+        private long next; // LSN of the byte after the buffer
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        ChannelInput(LogFile log, long lsn) {
+            this.log = log;
+            this.next = lsn;
+            buf.limit(0);
+        }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        long position() {
+            return next - buf.remaining();
+        }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        private boolean fill() throws IOException {
+            if (buf.hasRemaining())
+                return true;
+            buf.clear();
+            int n = log.readLog(buf, next);
+            buf.flip();
+            if (n <= 0)
+                return false;
+            next += n;
+            return true;
+        }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        public int read() throws IOException {
+            return fill() ? buf.get() & 0xff : -1;
+        }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+        public long skip(long n) throws IOException {
+            if (n <= 0)
+                return 0;
+            if (n <= buf.remaining()) {
+                buf.position(buf.position() + (int) n);
+            } else {
+                next += n - buf.remaining();
+                buf.limit(0);
+            }
+            return n;
         }
-        return newPage;
+    }
+
+    /** Write a page image: the page codec's code, the page id as its
+        table id and page number, then the length and the bytes of the
+        page.
+
+        @see PageCodec
+    */
+    void writePageData(DataOutput out, Page p) throws IOException {
+        PageId pid = p.getId();
+        out.writeByte(PageCodec.forPage(p).getCode());
+        out.writeInt(pid.getTableId());
+        out.writeInt(pid.pageNumber());
+        byte[] pageData = p.getPageData();
+        out.writeInt(pageData.length);
+        out.write(pageData);
+    }
+
+    /** Read a page image that writePageData wrote. */
+    Page readPageData(DataInput in) throws IOException {
+        PageCodec codec = PageCodec.forCode(in.readUnsignedByte());
+        PageId pid = codec.pageId(in.readInt(), in.readInt());
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+        return codec.decode(pid, pageData);
+    }
 
+    /** Read past a page image without making the page. */
+    static void skipPageData(DataInput in) throws IOException {
+        in.readUnsignedByte();
+        in.readInt();
+        in.readInt();
+        int len = in.readInt();
+        if (in.skipBytes(len) != len)
+            throw new EOFException();
     }
 
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public void logXactionBegin(TransactionId tid)
         throws IOException {
-        Debug.log("BEGIN");
-        if(tidToFirstLogRecord.get(tid.getId()) != null){
-            System.err.printf("logXactionBegin: already began this tid\n");
-            throw new IOException("double logXactionBegin()");
+        lock.lock();
+        try {
+            Debug.log("BEGIN");
+            if(tidToFirstLogRecord.get(tid.getId()) != null){
+                System.err.printf("logXactionBegin: already began this tid\n");
+                throw new IOException("double logXactionBegin()");
+            }
+            preAppend();
+            out.writeInt(BEGIN_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            tidToFirstLogRecord.put(tid.getId(), currentOffset);
+            currentOffset = position();
+
+            Debug.log("BEGIN OFFSET = " + currentOffset);
+        } finally {
+            lock.unlock();
         }
-        preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Write a fuzzy checkpoint: a record of the active transactions and
+        of the dirty page table, without writing any page.  The buffer
+        pool's writer thread writes the dirty pages in the background
+        afterwards.  Then truncate the log to what the checkpoint still
+        needs.  Pages written since the last checkpoint leave its dirty page
+        table only once the files they were written to have been synced,
+        which is done first.  Both locks are held only while the record is
+        appended, so transactions do not stall for the checkpoint.
+    */
     public void logCheckpoint() throws IOException {
         //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        BufferPool pool = Database.getBufferPool();
+        Checkpoint cp;
+        long cpLsn, end;
+        pool.syncWritten();
+        pool.lock.lock();
+        lock.lock();
+        try {
+            preAppend();
+            cp = new Checkpoint(new HashMap<Long,Long>(tidToFirstLogRecord),
+                                pool.dirtyPageTable());
+            cpLsn = position();
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+            writeCheckpoint(out, cp);
+            out.writeLong(currentOffset);
+            currentOffset = position();
+            end = currentOffset;
+        } finally {
+            lock.unlock();
+            pool.lock.unlock();
+        }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
+        // the header may only point at a durable checkpoint, and must
+        // itself be durable before logTruncate drops what older
+        // checkpoints need
+        force(end);
+        lock.lock();
+        try {
+            raf.seek(0);
+            if (raf.readLong() < cpLsn) {
                 raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                raf.writeLong(cpLsn);
             }
+        } finally {
+            lock.unlock();
         }
+        raf.getChannel().force(true);
 
+        pool.writeBehind(cp.dirty.keySet());
         logTruncate();
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+    /** The body of a CHECKPOINT record. */
+    static class Checkpoint {
+        // the first log record of each active transaction
+        final Map<Long,Long> active;
+        // the dirty page table: each dirty page, with the LSN of the
+        // first logged change since it was written
+        final Map<PageId,Long> dirty;
+
+        Checkpoint(Map<Long,Long> active, Map<PageId,Long> dirty) {
+            this.active = active;
+            this.dirty = dirty;
         }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+    static Checkpoint readCheckpoint(DataInput in) throws IOException {
+        HashMap<Long,Long> active = new HashMap<Long,Long>();
+        for (int n = in.readInt(); n > 0; n--)
+            active.put(in.readLong(), in.readLong());
+        HashMap<PageId,Long> dirty = new HashMap<PageId,Long>();
+        for (int n = in.readInt(); n > 0; n--) {
+            PageCodec codec = PageCodec.forCode(in.readUnsignedByte());
+            dirty.put(codec.pageId(in.readInt(), in.readInt()), in.readLong());
+        }
+        return new Checkpoint(active, dirty);
+    }
 
-                Debug.log("NEW START = " + newStart);
+    static void writeCheckpoint(DataOutput out, Checkpoint cp) throws IOException {
+        out.writeInt(cp.active.size());
+        for (Map.Entry<Long,Long> e : cp.active.entrySet()) {
+            out.writeLong(e.getKey());
+            out.writeLong(e.getValue());
+        }
+        out.writeInt(cp.dirty.size());
+        for (Map.Entry<PageId,Long> e : cp.dirty.entrySet()) {
+            out.writeByte(PageCodec.forPageId(e.getKey()).getCode());
+            out.writeInt(e.getKey().getTableId());
+            out.writeInt(e.getKey().pageNumber());
+            out.writeLong(e.getValue());
+        }
+    }
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+    /** @return the checkpoint whose record starts at LSN lsn.  The caller
+        holds the lock. */
+    private Checkpoint readCheckpointAt(long lsn) throws IOException {
+        LogInput in = new LogInput(this, lsn);
+        if (in.readInt() != CHECKPOINT_RECORD)
+            throw new IOException("Checkpoint pointer does not point to checkpoint record");
+        in.readLong();
+        return readCheckpoint(in);
+    }
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+    /** @return where redo starts for the checkpoint cp at LSN cpLsn: at
+        the checkpoint, or at the oldest change to a page that was dirty
+        then, if that is earlier.  The caller holds the lock.
+    */
+    private long redoStart(long cpLsn, Checkpoint cp) throws IOException {
+        long start = cpLsn;
+        if (!cp.dirty.isEmpty()) {
+            // the LSN of a record is its end; its last long is its start
+            long first = Collections.min(cp.dirty.values());
+            start = Math.min(start, new LogInput(this, first - LONG_SIZE).readLong());
+        }
+        return start;
+    }
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.  What the last checkpoint still needs starts at the
+        earliest of its redo start and the first records of the
+        transactions active then; the segments that end before that are
+        deleted.  Nothing is copied, and LSNs do not change.
+    */
+    public void logTruncate() throws IOException {
+        lock.lock();
+        try {
+            preAppend();
+            writeOut();
+            raf.seek(0);
+            long cpLoc = raf.readLong();
+            if (cpLoc == NO_CHECKPOINT_ID)
+                return;
+
+            Checkpoint cp = readCheckpointAt(cpLoc);
+            long minLogRecord = redoStart(cpLoc, cp);
+            for (long first : cp.active.values())
+                minLogRecord = Math.min(minLogRecord, first);
+
+            // the last segment is where the log grows; never drop it
+            Segment tail = segments.lastEntry().getValue();
+            for (Segment seg : new ArrayList<Segment>(segments.values())) {
+                if (seg == tail)
                     break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
+                long next = segments.higherKey(seg.start);
+                if (next > minLogRecord)
                     break;
+                if (next > logStart) {
+                    dropSegment(seg);
+                    logStart = next;
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
             }
+            Debug.log("TRUNCATED LOG; RECORDS NOW START AT " + logStart);
+        } finally {
+            lock.unlock();
         }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -463,25 +1029,160 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+        BufferPool pool = Database.getBufferPool();
+        pool.lock.lock();
+        lock.lock();
+        try {
+            preAppend();
+            Long first = tidToFirstLogRecord.get(tid.getId());
+            if (first == null)
+                return;
+            undo(Collections.singleton(tid.getId()), first);
+        } finally {
+            lock.unlock();
+            pool.lock.unlock();
+        }
+    }
+
+    /** Undo the changes of the transactions in losers, newest first,
+        reading the log from LSN from to its end.  INSERT and
+        DELETE records are undone in the buffer pool and the undo is
+        logged as the opposite record; UPDATE records by writing the
+        before image to disk.  The caller holds both locks.
+    */
+    private void undo(Set<Long> losers, long from) throws IOException {
+        writeOut();
+        // collect first: the undos append to the log as it is read.  One
+        // buffered pass forward, then newest first, is much cheaper than
+        // following the back pointers, a seek per record
+        ArrayList<Undo> undos = new ArrayList<Undo>();
+        LogInput in = new LogInput(this, from);
+        while (in.position() < fileEnd) {
+            int type = in.readInt();
+            long tid = in.readLong();
+            boolean loser = losers.contains(tid);
+            switch (type) {
+            case INSERT_RECORD:
+            case DELETE_RECORD:
+                TupleRecord r = readTupleRecord(in);
+                if (loser)
+                    undos.add(new Undo(type, tid, r, null));
+                break;
+            case UPDATE_RECORD:
+                if (loser) {
+                    undos.add(new Undo(type, tid, null, readPageData(in)));
+                } else {
+                    skipPageData(in);
+                }
+                skipPageData(in);
+                break;
+            case CHECKPOINT_RECORD:
+                readCheckpoint(in);
+                break;
+            }
+            in.readLong();
+        }
+        Collections.reverse(undos);
+        for (Undo u : undos) {
+            if (u.type == UPDATE_RECORD) {
+                installImage(u.before);
+                continue;
             }
+            int undone = u.type == INSERT_RECORD ? DELETE_RECORD : INSERT_RECORD;
+            applyTupleRecord(undone, u.record, u.tid);
+            out.writeInt(undone);
+            out.writeLong(u.tid);
+            writeTupleRecord(out, u.record);
+            out.writeLong(currentOffset);
+            currentOffset = position();
+            Database.getBufferPool().stamp(page(u.record.pid), currentOffset);
+        }
+    }
+
+    /** A change undo() is to take back. */
+    private static class Undo {
+        final int type;
+        final long tid;
+        final TupleRecord record; // for INSERT and DELETE records
+        final Page before; // for UPDATE records
+
+        Undo(int type, long tid, TupleRecord record, Page before) {
+            this.type = type;
+            this.tid = tid;
+            this.record = record;
+            this.before = before;
         }
     }
 
+    // marks the pages recovery changes as dirty
+    private static final TransactionId RECOVERY_TID = new TransactionId();
+
+    private HeapPage page(HeapPageId pid) throws IOException {
+        try {
+            return (HeapPage) Database.getBufferPool().getPage(RECOVERY_TID,
+                    pid, Permissions.READ_WRITE);
+        } catch (DbException e) {
+            throw new IOException("can't read page " + pid.pageNumber()
+                    + " of table " + pid.getTableId(), e);
+        } catch (TransactionAbortedException e) {
+            throw new IOException("can't read page " + pid.pageNumber()
+                    + " of table " + pid.getTableId(), e);
+        }
+    }
+
+    /** Do what an INSERT or DELETE record of type says to its page in
+        the buffer pool, on behalf of tid.
+    */
+    private void applyTupleRecord(int type, TupleRecord r, long tid)
+        throws IOException {
+        HeapPage p = page(r.pid);
+        if (type == INSERT_RECORD) {
+            TupleDesc td = Database.getCatalog().getTupleDesc(r.pid.getTableId());
+            p.setSlot(r.slot, new CompactTuple(td, r.tuple.clone()));
+        } else {
+            p.setSlot(r.slot, null);
+        }
+        p.markDirty(true, p.isDirty() != null ? p.isDirty() : RECOVERY_TID);
+    }
+
+    /** Write a whole page image from an UPDATE record to disk, and drop
+        the buffer pool's copy, which it supersedes.
+    */
+    private void installImage(Page image) throws IOException {
+        PageId pid = image.getId();
+        Database.getCatalog().getDbFile(pid.getTableId()).writePage(image);
+        Database.getBufferPool().discardPage(pid);
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
+        BufferPool pool = Database.getBufferPool();
+        pool.lock.lock();
+        lock.lock();
         try {
+            // a sharp checkpoint: with every page written, the next start
+            // has nothing to redo
+            pool.flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            for (Segment seg : segments.values())
+                seg.raf.close();
+            commitLock.lock();
+            try {
+                closed = true;
+                commitWaiting.signalAll();
+                commitDurable.signalAll();
+            } finally {
+                commitLock.unlock();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
+        } finally {
+            lock.unlock();
+            pool.lock.unlock();
         }
     }
 
@@ -490,12 +1191,108 @@ public class LogFile {
         updates of uncommitted transactions are not installed.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
+        BufferPool pool = Database.getBufferPool();
+        pool.lock.lock();
+        lock.lock();
+        try {
+            recoveryUndecided = false;
+            if (raf.length() < LONG_SIZE) {
+                // nothing was ever logged
+                recoveryUndecided = true;
+                preAppend();
+                return;
+            }
+            Segment tail = segments.lastEntry().getValue();
+            fileEnd = tail.start + tail.raf.length();
+            currentOffset = fileEnd;
+
+            // redo the records from the last checkpoint's redo start on,
+            // but those before the checkpoint only for the pages in its
+            // dirty page table, and from their first change; note the
+            // transactions that neither commit nor abort, and where
+            // each begins
+            LinkedHashMap<Long,Long> losers = new LinkedHashMap<Long,Long>();
+            raf.seek(0);
+            long cpLoc = raf.readLong();
+            long from = logStart;
+            Map<PageId,Long> dirty = null;
+            if (cpLoc != NO_CHECKPOINT_ID) {
+                Checkpoint cp = readCheckpointAt(cpLoc);
+                losers.putAll(cp.active);
+                dirty = cp.dirty;
+                from = redoStart(cpLoc, cp);
+            } else {
+                cpLoc = from;
+            }
+            LogInput in = new LogInput(this, from);
+            while (in.position() < fileEnd) {
+                long pos = in.position();
+                int type = in.readInt();
+                long tid = in.readLong();
+                // before the checkpoint, a transaction that began has
+                // finished, or the checkpoint lists it
+                if (!losers.containsKey(tid) && (type == BEGIN_RECORD
+                    || (pos >= cpLoc && type != COMMIT_RECORD
+                        && type != ABORT_RECORD && type != CHECKPOINT_RECORD)))
+                    losers.put(tid, pos);
+                TupleRecord r = null;
+                Page image = null;
+                switch (type) {
+                case COMMIT_RECORD:
+                case ABORT_RECORD:
+                    losers.remove(tid);
+                    break;
+                case INSERT_RECORD:
+                case DELETE_RECORD:
+                    r = readTupleRecord(in);
+                    break;
+                case UPDATE_RECORD:
+                    skipPageData(in);
+                    image = readPageData(in);
+                    break;
+                case CHECKPOINT_RECORD:
+                    readCheckpoint(in);
+                    break;
+                }
+                in.readLong();
+                long lsn = in.position();
+                if (r != null && redo(r.pid, lsn, cpLoc, dirty)) {
+                    applyTupleRecord(type, r, tid);
+                    pool.stamp(page(r.pid), lsn);
+                }
+                if (image != null && redo(image.getId(), lsn, cpLoc, dirty))
+                    installImage(image);
+            }
+
+            // then take back the losers, and close them with ABORT records
+            if (!losers.isEmpty())
+                undo(losers.keySet(), Collections.min(losers.values()));
+            for (Long tid : losers.keySet()) {
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid);
+                out.writeLong(currentOffset);
+                currentOffset = position();
             }
-         }
+            tidToFirstLogRecord.clear();
+            pool.flushAllPages();
+            force();
+        } finally {
+            lock.unlock();
+            pool.lock.unlock();
+        }
+    }
+
+    /** @return whether recovery must redo the record with LSN lsn that
+        changes page pid: always after the checkpoint at cpLoc, and before
+        it only if the page was dirty at the checkpoint, from its first
+        change on.  A null dirty page table means no checkpoint.
+    */
+    private static boolean redo(PageId pid, long lsn, long cpLoc,
+                                Map<PageId,Long> dirty) {
+        if (dirty == null || lsn > cpLoc)
+            return true;
+        Long first = dirty.get(pid);
+        return first != null && lsn >= first;
     }
 
     /** Print out a human readable represenation of the log */
@@ -503,8 +1300,51 @@ public class LogFile {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force everything appended so far to disk. */
+    public void force() throws IOException {
+        long target, targetLsn;
+        lock.lock();
+        try {
+            writeOut();
+            segments.lastEntry().getValue().raf.getChannel().force(true);
+            target = commitsWritten;
+            targetLsn = fileEnd;
+        } finally {
+            lock.unlock();
+        }
+        forced(target, targetLsn);
+    }
+
+    /** Force the log to disk up to lsn, as BufferPool must before it
+        writes a page stamped with lsn.  Does nothing if the log is
+        durable that far already.
+    */
+    public void force(long lsn) throws IOException {
+        commitLock.lock();
+        try {
+            if (durableLsn >= lsn)
+                return;
+        } finally {
+            commitLock.unlock();
+        }
+        force();
+    }
+
+    /** Record that the log is durable up to commit record number
+        commit and up to lsn, and wake the commits that waited for it.
+    */
+    private void forced(long commit, long lsn) {
+        commitLock.lock();
+        try {
+            forces++;
+            if (commit > durable)
+                durable = commit;
+            if (lsn > durableLsn)
+                durableLsn = lsn;
+            commitDurable.signalAll();
+        } finally {
+            commitLock.unlock();
+        }
     }
 
 }
@@ -23,6 +23,11 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The physical algorithm chosen by the {@link JoinOptimizer} (may be
+     * null, in which case {@link JoinOptimizer#instantiateJoin} picks one
+     * from the predicate alone). */
+    public JoinAlgorithm algorithm;
+
     public LogicalJoinNode() {
     }
 
@@ -63,6 +68,14 @@ public class LogicalJoinNode {
         return j2;
     }
     
+    /** Return a copy of this LogicalJoinNode that will be executed with
+     * the specified physical join algorithm. */
+    public LogicalJoinNode withAlgorithm(JoinAlgorithm a) {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias,t2Alias,f1PureName,f2PureName, p);
+        j2.algorithm = a;
+        return j2;
+    }
+
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
         return (j2.t1Alias.equals(t1Alias)  || j2.t1Alias.equals(t2Alias)) && (j2.t2Alias.equals(t1Alias)  || j2.t2Alias.equals(t2Alias));
@@ -12,9 +12,9 @@ import java.util.NoSuchElementException;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and group by fields.
+ * Any number of aggregates and group by fields are evaluated together
+ * by a single {@link Aggregate}.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -29,12 +29,18 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private ArrayList<String> groupByFields = new ArrayList<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
+    // the operator and field of each aggregate, in order
+    private ArrayList<String> aggOps = new ArrayList<String>();
+    private ArrayList<String> aggFields = new ArrayList<String>();
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    // every ORDER BY field, in order; the first is oByField
+    private ArrayList<String> oByFields = new ArrayList<String>();
+    private ArrayList<Boolean> oByAscs = new ArrayList<Boolean>();
+    private int limit = -1, offset = 0;
+    private int workers = 1;
     private String query;
 //    private Query owner;
 
@@ -81,6 +87,17 @@ public class LogicalPlan {
         return this.tableMap;
     }
 
+    /** @return the fully qualified field the output of the joins should be
+        sorted on in ascending order, so that the ORDER BY needs no sort of
+        its own; null if there is no such field (no ORDER BY, a descending
+        one, or an aggregate in between).
+    */
+    public String getInterestingOrder() {
+        if (!hasOrderBy || !oByAsc || hasAgg || oByFields.size() > 1)
+            return null;
+        return oByField;
+    }
+
     /** Add a new filter to the logical plan
      *   @param field The name of the over which the filter applies;
      *   this can be a fully qualified field (tablename.field or
@@ -186,36 +203,104 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield the field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
-        afield=disambiguateName(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupBy(gfield);
+        addAggregate(op, afield);
+    }
+
+    /** Add an aggregate to the query.  All the aggregates of a query are
+        computed in one pass and grouped by the same fields; an aggregate
+        that was already added is not added again.
+        @param op the aggregation operator
+        @param afield the field to aggregate over
+     * @throws ParsingException 
+    */
+    public void addAggregate(String op, String afield) throws ParsingException {
+        afield=disambiguateName(afield);
+        if (aggIndex(op, afield) < 0) {
+            aggOps.add(op);
+            aggFields.add(afield);
+        }
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a GROUP BY field; the output is grouped by all the fields added,
+        in the order they were added.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.add(gfield);
+    }
+
+    /** @return the position of the aggregate op(afield) among the aggregates,
+        or -1 if it was not added */
+    private int aggIndex(String op, String afield) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.get(i).equalsIgnoreCase(op) && aggFields.get(i).equals(afield))
+                return i;
+        }
+        return -1;
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  Calling this
+        again adds further ORDER BY fields, each less significant than the ones before it.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        if (!hasOrderBy) {
+            oByField = field;
+            oByAsc = asc;
+        }
+        oByFields.add(field);
+        oByAscs.add(asc);
         hasOrderBy = true;
     }
 
+    /** Return at most limit tuples, after skipping the first offset.
+        @param limit the maximum number of tuples to return, or -1 for no limit
+        @param offset the number of tuples to skip
+    */
+    public void addLimit(int limit, int offset) {
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /** @return the LIMIT of the query, or -1 if it has none */
+    public int getLimit() {
+        return limit;
+    }
+
+    /** @return the OFFSET of the query, 0 if it has none */
+    public int getOffset() {
+        return offset;
+    }
+
+    /** Run table scans, hash joins and grouped aggregates on this many
+        worker threads; 1 runs the whole plan on the calling thread.
+        @param workers the number of worker threads per parallel operator
+    */
+    public void setWorkers(int workers) {
+        this.workers = Math.max(1, workers);
+    }
+
+    /** @return the number of worker threads per parallel operator */
+    public int getWorkers() {
+        return workers;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -271,6 +356,35 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * @return true if agg is estimated to have so few groups that each of the
+     *         workers may hold all of them at once, as the workers of a
+     *         two-phase aggregate do; false if some table has no statistics
+     */
+    private boolean fewGroups(Aggregate agg, Map<String,TableStats> statsMap) {
+        if (statsMap.containsValue(null))
+            return false;
+        OperatorCardinality.updateOperatorCardinality(agg, getTableAliasToIdMapping(), statsMap);
+        return (long) agg.getEstimatedCardinality() * workers <= Aggregate.MAX_GROUPS;
+    }
+
+    /**
+     * @return the estimated cardinality of plan, or Integer.MAX_VALUE if
+     *         some table has no statistics
+     */
+    private int estimateCardinality(DbIterator plan, Map<String,TableStats> statsMap) {
+        if (statsMap.containsValue(null))
+            return Integer.MAX_VALUE;
+        if (plan instanceof Operator) {
+            OperatorCardinality.updateOperatorCardinality((Operator) plan,
+                    getTableAliasToIdMapping(), statsMap);
+            return ((Operator) plan).getEstimatedCardinality();
+        }
+        if (plan instanceof SeqScan)
+            return statsMap.get(((SeqScan) plan).getTableName()).estimateTableCardinality(1.0);
+        return Integer.MAX_VALUE;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned DbIterator will run as a part of
@@ -382,7 +496,8 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
             DbIterator j;
-            j = jo.instantiateJoin(lj,plan1,plan2);
+            j = JoinOptimizer.instantiateJoin(lj,plan1,plan2,workers,
+                    workers > 1 ? estimateCardinality(plan1, statsMap) : Integer.MAX_VALUE);
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -407,6 +522,9 @@ public class LogicalPlan {
         }
         
         DbIterator node =  (DbIterator)(subplanMap.entrySet().iterator().next().getValue());
+        // a single table's scan and filters run as one parallel pipeline;
+        // instantiateJoin decides this for the children of joins
+        node = ParallelSeqScan.parallelize(node, workers);
 
         //walk the select list, to determine order in which to project output fields
         ArrayList<Integer> outFields = new ArrayList<Integer>();
@@ -414,7 +532,10 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                int agg = aggIndex(si.aggOp, si.fname);
+                if (agg < 0)
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") was not added to the plan");
+                outFields.add(groupByFields.size() + agg);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -426,16 +547,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -460,24 +582,61 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggOps.size()];
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggFields.get(i));
+                    aops[i] = getAggOp(aggOps.get(i));
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.get(i));
+                Aggregate agg = new Aggregate(node, afields, aops, gfields);
+                if (workers > 1 && gfields.length > 0 && !fewGroups(agg, statsMap)) {
+                    // every group lands in one partition, so each partition
+                    // can be aggregated on its own, and spill if need be
+                    Exchange[] parts = Exchange.hash(Exchange.producersOf(node), workers, gfields);
+                    DbIterator[] aggs = new DbIterator[workers];
+                    for (int i = 0; i < workers; i++)
+                        aggs[i] = new Aggregate(parts[i], afields, aops, gfields);
+                    node = Exchange.gather(aggs);
+                } else {
+                    // few groups: thread-local partial aggregates, merged;
+                    // they spill if there turn out to be many after all
+                    agg.setWorkers(workers);
+                    node = agg;
+                }
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
-            node = aggNode;
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] oByIndexes = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int i = 0; i < oByIndexes.length; i++) {
+                oByIndexes[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                ascs[i] = oByAscs.get(i);
+            }
+            // unless a sort-merge join on the ORDER BY field already
+            // produced the tuples in order
+            if (!(oByIndexes.length == 1 && oByAsc
+                    && SortMergeJoin.isSortedOn(node, oByIndexes[0]))) {
+                // with a limit only the first offset + limit tuples of the
+                // order are needed
+                node = limit >= 0
+                        ? new TopN(oByIndexes, ascs,
+                                (int) Math.min(Integer.MAX_VALUE, (long) limit + offset), node)
+                        : new OrderBy(oByIndexes, ascs, node);
+            }
         }
 
+        if (limit >= 0 || offset > 0)
+            node = new Limit(limit, offset, node);
+
         return new Project(outFields, outTypes, node);
     }
 
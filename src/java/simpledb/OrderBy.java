@@ -3,18 +3,23 @@ package simpledb;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY on one or more
+ * fields, each ascending or descending. Tuples are sorted on normalized keys
+ * (see {@link TupleSorter}), and inputs larger than the memory budget are
+ * sorted externally; see {@link ExternalSort}.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
     private int orderByField;
     private String orderByFieldName;
-    private Iterator<Tuple> it;
     private boolean asc;
+    private int[] orderByFields;
+    private boolean[] ascs;
+    private int maxInMemory = ExternalSort.DEFAULT_MAX_IN_MEMORY;
+    private transient DbFileIterator sort;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,11 +32,29 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields.
+     * 
+     * @param orderbyFields
+     *            the fields to sort on, most significant first.
+     * @param asc
+     *            for each field, true if it is sorted ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one direction per sort field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = asc.clone();
+        this.orderByField = orderbyFields[0];
+        this.orderByFieldName = td.getFieldName(orderByField);
+        this.asc = asc[0];
     }
     
     public boolean isASC()
@@ -48,29 +71,60 @@ public class OrderBy extends Operator {
     {
 	return this.orderByFieldName;
     }
+
+    /**
+     * @return all the fields sorted on, most significant first; the first is
+     *         {@link #getOrderByField}
+     */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * @return for each of {@link #getOrderByFields}, whether it is ascending
+     */
+    public boolean[] getAscending() {
+        return ascs.clone();
+    }
     
+    /**
+     * Set the number of tuples sorted in memory; larger inputs are sorted in
+     * runs that are spilled to disk and merged. Must be called before open().
+     */
+    public void setMaxInMemory(int tuples) {
+        this.maxInMemory = tuples;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    /**
+     * @return an iterator over the tuples of child, which is open, in the
+     *         order of sorter. The iterator is opened by the caller.
+     */
+    protected DbFileIterator sort(DbIterator child, TupleSorter sorter) {
+        return new ExternalSort(child, sorter, maxInMemory);
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        sort = sort(child, new TupleSorter(td, orderByFields, ascs));
+        sort.open();
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        if (sort != null)
+            sort.close();
+        sort = null;
+        child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        sort.rewind();
     }
 
     /**
@@ -82,8 +136,8 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
+        if (sort != null && sort.hasNext()) {
+            return sort.next();
         } else
             return null;
     }
@@ -110,6 +164,16 @@ class TupleComparator implements Comparator<Tuple> {
     }
 
     public int compare(Tuple o1, Tuple o2) {
+        if (o1.getTupleDesc().getFieldType(field) == Type.INT_TYPE) {
+            int v1 = o1.getInt(field);
+            int v2 = o2.getInt(field);
+            if (v1 == v2)
+                return 0;
+            if (v1 > v2)
+                return asc ? 1 : -1;
+            else
+                return asc ? -1 : 1;
+        }
         Field t1 = (o1).getField(field);
         Field t2 = (o2).getField(field);
         if (t1.compare(Predicate.Op.EQUALS, t2))
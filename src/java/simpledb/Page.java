@@ -7,8 +7,8 @@ package simpledb;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
- *     Page(PageId id, byte[] data)
+ * For recovery purposes, a page type MUST register a PageCodec, which
+ * rebuilds its pages from their ids and getPageData bytes.
  */
 public interface Page {
 
@@ -56,4 +56,18 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return the LSN of the last log record that describes this page, or 0
+     * if none does.  The log must be durable up to it before the page is
+     * written to disk.
+     *
+     * @see LogFile#force(long)
+     */
+    public long getLSN();
+
+    /**
+     * Stamp this page with the LSN of a log record that describes it.
+     */
+    public void setLSN(long lsn);
 }
@@ -0,0 +1,124 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PageCodec rebuilds pages of one type from the log.  LogFile writes a page
+ * image as the codec's one-byte code, the page id as two integers (table
+ * id and page number) and the page's bytes; reading it back, the code
+ * picks the codec, which makes the id and the page without reflection.
+ * The dirty page table of a checkpoint names its pages the same way, by
+ * code and the two integers.
+ * <p>
+ * A page type is logged only once its codec is registered.  HeapPage's is
+ * registered here, as code 1.
+ *
+ * @see LogFile#writePageData
+ * @see LogFile#readPageData
+ */
+public abstract class PageCodec {
+
+    public static final int HEAP_PAGE = 1;
+
+    // copied on register, so lookups need no lock
+    private static volatile PageCodec[] byCode = new PageCodec[256];
+    private static final ConcurrentHashMap<Class<?>, PageCodec> byClass =
+        new ConcurrentHashMap<Class<?>, PageCodec>();
+    private static final ConcurrentHashMap<Class<?>, PageCodec> byIdClass =
+        new ConcurrentHashMap<Class<?>, PageCodec>();
+
+    static {
+        register(new PageCodec(HEAP_PAGE, HeapPage.class, HeapPageId.class) {
+            public PageId pageId(int tableId, int pageNo) {
+                return new HeapPageId(tableId, pageNo);
+            }
+
+            public Page decode(PageId pid, byte[] data) throws IOException {
+                return new HeapPage((HeapPageId) pid, data);
+            }
+        });
+    }
+
+    private final int code;
+    private final Class<? extends Page> pageClass;
+    private final Class<? extends PageId> pageIdClass;
+
+    /**
+     * @param code The code that stands for the page type in the log, in [1, 255]
+     * @param pageClass The class of the pages this codec rebuilds
+     * @param pageIdClass The class of the ids of those pages
+     */
+    protected PageCodec(int code, Class<? extends Page> pageClass,
+            Class<? extends PageId> pageIdClass) {
+        if (code < 1 || code > 255)
+            throw new IllegalArgumentException("page codec code " + code + " not in [1, 255]");
+        this.code = code;
+        this.pageClass = pageClass;
+        this.pageIdClass = pageIdClass;
+    }
+
+    /** @return the code that stands for this page type in the log */
+    public int getCode() {
+        return code;
+    }
+
+    /** @return the id of page pageNo of table tableId */
+    public abstract PageId pageId(int tableId, int pageNo);
+
+    /**
+     * @param pid The id of the page, as pageId made it
+     * @param data The page's bytes, as Page.getPageData returned them
+     * @return the page
+     */
+    public abstract Page decode(PageId pid, byte[] data) throws IOException;
+
+    /**
+     * Make pages of the codec's class loggable.
+     *
+     * @throws IllegalArgumentException if another codec has the same code
+     */
+    public static synchronized void register(PageCodec c) {
+        if (byCode[c.code] != null && byCode[c.code] != c)
+            throw new IllegalArgumentException("page codec code " + c.code + " is taken by "
+                    + byCode[c.code].pageClass.getName());
+        PageCodec[] codes = byCode.clone();
+        codes[c.code] = c;
+        byCode = codes;
+        byClass.put(c.pageClass, c);
+        byIdClass.put(c.pageIdClass, c);
+    }
+
+    /**
+     * @return the codec for page p
+     * @throws IOException if the page's type has no codec
+     */
+    public static PageCodec forPage(Page p) throws IOException {
+        PageCodec c = byClass.get(p.getClass());
+        if (c == null)
+            throw new IOException("no page codec for " + p.getClass().getName());
+        return c;
+    }
+
+    /**
+     * @return the codec for the page with id pid
+     * @throws IOException if the type of the id has no codec
+     */
+    public static PageCodec forPageId(PageId pid) throws IOException {
+        PageCodec c = byIdClass.get(pid.getClass());
+        if (c == null)
+            throw new IOException("no page codec for " + pid.getClass().getName());
+        return c;
+    }
+
+    /**
+     * @return the codec a log record names by its code
+     * @throws IOException if no codec has that code
+     */
+    public static PageCodec forCode(int code) throws IOException {
+        PageCodec c = byCode[code & 0xff];
+        if (c == null)
+            throw new IOException("no page codec with code " + code);
+        return c;
+    }
+}
@@ -6,7 +6,8 @@ import java.io.Serializable;
 public interface PageId {
 
     /** Return a representation of this page id object as a collection of
-        integers (used for logging)
+        integers.  (The log writes just the table id and page number; see
+        PageCodec.)
 
         This class MUST have a constructor that accepts n integer parameters,
         where n is the number of integers returned in the array from serialize.
@@ -0,0 +1,243 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ParallelHashJoin is an equi-join whose build and probe both run on several
+ * worker threads. It returns the same tuples as {@link HashEquiJoin}, in no
+ * particular order.
+ * <p>
+ * The build input (child1) is dealt out round-robin to the workers, and each
+ * worker radix-partitions the tuples it receives by the hash of the join key
+ * into its own lists, without any locking. Once all of child1 has been read,
+ * the workers build one hash table per partition, each partition by exactly
+ * one worker. The finished tables are only ever read. The probe input
+ * (child2) is then dealt out to the workers the same way; every worker looks
+ * its tuples up in the partition their key hashes to and sends the joined
+ * tuples on through a gather {@link Exchange}, which this operator reads.
+ * <p>
+ * Unlike HashEquiJoin this never spills, so child1 must fit in memory;
+ * {@link JoinOptimizer#instantiateJoin} only uses it when the estimated
+ * size of child1 fits in the buffer pool.
+ */
+public class ParallelHashJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** log2 of the number of partitions of the build side. */
+    static final int PARTITION_BITS = 6;
+    static final int NUM_PARTITIONS = 1 << PARTITION_BITS;
+
+    private JoinPredicate pred;
+    private DbIterator child1, child2;
+    private final int workers;
+    private final TupleDesc comboTD;
+
+    // the hash table of each partition of child1
+    private transient HashMap<Field, ArrayList<Tuple>>[] tables;
+    // the joined tuples of all probe workers
+    private transient Exchange output;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            the equality predicate to join on
+     * @param child1
+     *            the build input
+     * @param child2
+     *            the probe input
+     * @param workers
+     *            the number of worker threads to build and probe with
+     */
+    public ParallelHashJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            int workers) {
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.workers = Math.max(1, workers);
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /**
+     * @return the number of worker threads
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /**
+     * @return the partition of the join key f. Takes the high bits of the
+     *         mixed hash, so the low bits HashMap indexes by stay spread.
+     */
+    private static int partitionOf(Field f) {
+        return (f.hashCode() * 0x9E3779B9) >>> (32 - PARTITION_BITS);
+    }
+
+    /**
+     * Read child1 into the partition hash tables.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void build() throws DbException, TransactionAbortedException {
+        final Exchange[] in = Exchange.roundRobin(Exchange.producersOf(child1), workers);
+        final ArrayList<Tuple>[][] parts = new ArrayList[workers][NUM_PARTITIONS];
+        final int f1 = pred.getField1();
+        WorkerPool.runOnWorkers(workers, new WorkerPool.Work() {
+            public void run(int w) throws DbException, TransactionAbortedException {
+                ArrayList<Tuple>[] mine = parts[w];
+                for (int p = 0; p < NUM_PARTITIONS; p++)
+                    mine[p] = new ArrayList<Tuple>();
+                in[w].open();
+                try {
+                    while (in[w].hasNext()) {
+                        Tuple t = in[w].next();
+                        mine[partitionOf(t.getField(f1))].add(t);
+                    }
+                } finally {
+                    in[w].close();
+                }
+            }
+        });
+
+        tables = new HashMap[NUM_PARTITIONS];
+        WorkerPool.runOnWorkers(workers, new WorkerPool.Work() {
+            public void run(int w) {
+                for (int p = w; p < NUM_PARTITIONS; p += workers) {
+                    HashMap<Field, ArrayList<Tuple>> table = new HashMap<Field, ArrayList<Tuple>>();
+                    for (int from = 0; from < workers; from++) {
+                        for (Tuple t : parts[from][p]) {
+                            Field key = t.getField(f1);
+                            ArrayList<Tuple> l = table.get(key);
+                            if (l == null) {
+                                l = new ArrayList<Tuple>(2);
+                                table.put(key, l);
+                            }
+                            l.add(t);
+                        }
+                        parts[from][p] = null;
+                    }
+                    tables[p] = table;
+                }
+            }
+        });
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        build();
+        Exchange[] in = Exchange.roundRobin(Exchange.producersOf(child2), workers);
+        Probe[] probes = new Probe[workers];
+        for (int w = 0; w < workers; w++)
+            probes[w] = new Probe(in[w]);
+        output = Exchange.gather(probes);
+        output.open();
+        super.open();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        return output.hasNext() ? output.next() : null;
+    }
+
+    /**
+     * Probe the hash tables, which are kept, with child2 again.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        output.rewind();
+    }
+
+    public void close() {
+        super.close();
+        if (output != null)
+            output.close();
+        output = null;
+        tables = null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+
+    /**
+     * One probe worker: joins its share of child2 against the hash tables.
+     */
+    private class Probe extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private DbIterator in;
+        private transient Tuple t2;
+        private transient Iterator<Tuple> matches;
+
+        Probe(DbIterator in) {
+            this.in = in;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return comboTD;
+        }
+
+        public void open() throws DbException, NoSuchElementException,
+                TransactionAbortedException {
+            in.open();
+            matches = null;
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            in.close();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            in.rewind();
+            matches = null;
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            int f2 = pred.getField2();
+            while (true) {
+                if (matches != null && matches.hasNext())
+                    return Tuple.merge(comboTD, matches.next(), t2);
+                if (!in.hasNext())
+                    return null;
+                t2 = in.next();
+                Field key = t2.getField(f2);
+                ArrayList<Tuple> l = tables[partitionOf(key)].get(key);
+                matches = l == null ? null : l.iterator();
+            }
+        }
+
+        @Override
+        public DbIterator[] getChildren() {
+            return new DbIterator[] { in };
+        }
+
+        @Override
+        public void setChildren(DbIterator[] children) {
+            in = children[0];
+        }
+    }
+}
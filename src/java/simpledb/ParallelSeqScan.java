@@ -0,0 +1,282 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ParallelSeqScan runs a scan pipeline -- a {@link SeqScan} of a heap file
+ * with any {@link Filter}s and {@link Project}s directly above it -- on
+ * several worker threads. The file is cut into morsels of MORSEL_PAGES
+ * pages; each worker repeatedly claims the next unclaimed morsel, reads its
+ * pages, pushes every tuple through its own copy of the pipeline and hands
+ * the surviving tuples to the consumer in batches through a bounded queue.
+ * Workers that hit cheap morsels simply claim more of them, so the load
+ * balances itself.
+ * <p>
+ * Tuples come out in no particular order. The pipeline passed in is kept as
+ * this operator's child, so it is what the plan shows and what cardinality
+ * estimation sees, but it is never opened when the table is a HeapFile; any
+ * other file is scanned through the pipeline on the calling thread.
+ */
+public class ParallelSeqScan extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Pages per morsel. */
+    public static final int MORSEL_PAGES = 16;
+    /** Tuples per batch handed to the consumer. */
+    static final int BATCH_SIZE = 1024;
+    // marks the end of one worker's output
+    private static final Tuple[] DONE = new Tuple[0];
+
+    private DbIterator child;
+    private final int workers;
+
+    // the scan at the bottom of the pipeline, and the Filters and Projects
+    // above it, bottom first
+    private transient SeqScan scan;
+    private transient ArrayList<Operator> stages;
+
+    // the workers of the current pass over the file
+    private transient Run run;
+    private transient Tuple[] batch;
+    private transient int pos;
+    // true if the child is read directly instead
+    private transient boolean serial;
+
+    /**
+     * Constructor.
+     *
+     * @param pipeline
+     *            a SeqScan, possibly below Filters and Projects
+     * @param workers
+     *            the number of worker threads to scan with
+     * @throws IllegalArgumentException
+     *             if pipeline is not such a chain
+     */
+    public ParallelSeqScan(DbIterator pipeline, int workers) {
+        if (scanOf(pipeline) == null)
+            throw new IllegalArgumentException("not a scan pipeline: " + pipeline);
+        this.child = pipeline;
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * @return the SeqScan at the bottom of it if it is a chain of Filters and
+     *         Projects over a SeqScan, else null
+     */
+    public static SeqScan scanOf(DbIterator it) {
+        while (it instanceof Filter || it instanceof Project)
+            it = ((Operator) it).getChildren()[0];
+        return it instanceof SeqScan ? (SeqScan) it : null;
+    }
+
+    /**
+     * @return plan scanned by the given number of workers if it is a scan
+     *         pipeline and there is more than one worker, else plan itself
+     */
+    public static DbIterator parallelize(DbIterator plan, int workers) {
+        if (workers > 1 && scanOf(plan) != null)
+            return new ParallelSeqScan(plan, workers);
+        return plan;
+    }
+
+    /**
+     * @return the number of worker threads
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        scan = scanOf(child);
+        serial = !(Database.getCatalog().getDbFile(scan.getTableId()) instanceof HeapFile);
+        if (serial) {
+            child.open();
+        } else {
+            stages = new ArrayList<Operator>();
+            for (DbIterator it = child; it != scan; it = ((Operator) it).getChildren()[0])
+                stages.add(0, (Operator) it);
+            start();
+        }
+        super.open();
+    }
+
+    private void start() {
+        HeapFile file = (HeapFile) Database.getCatalog().getDbFile(scan.getTableId());
+        run = new Run(file.numPages());
+        batch = null;
+        pos = 0;
+        for (int w = 0; w < workers; w++)
+            WorkerPool.submit(run);
+    }
+
+    /**
+     * One pass of the workers over the file. Each pass has its own queue, so
+     * the workers of a closed pass never touch the next one.
+     */
+    private class Run implements Runnable {
+        final int numPages;
+        final BlockingQueue<Tuple[]> queue = new ArrayBlockingQueue<Tuple[]>(4 * workers);
+        final AtomicInteger nextMorsel = new AtomicInteger();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        volatile boolean cancelled;
+        // workers that have not yet sent DONE, as seen by the consumer
+        int running = workers;
+
+        Run(int numPages) {
+            this.numPages = numPages;
+        }
+
+        public void run() {
+            try {
+                scanMorsels();
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            } finally {
+                put(DONE);
+            }
+        }
+
+        /**
+         * Hand b to the consumer, waiting for room in the queue unless the
+         * pass is cancelled.
+         */
+        void put(Tuple[] b) {
+            try {
+                while (!queue.offer(b, 10, TimeUnit.MILLISECONDS)) {
+                    if (cancelled)
+                        return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Body of a worker: claim and process morsels until none are left.
+         */
+        void scanMorsels() throws DbException, TransactionAbortedException {
+            // each worker compiles its own copy of the pipeline
+            int n = stages.size();
+            PredicateCompiler.TupleFilter[] filters = new PredicateCompiler.TupleFilter[n];
+            int[][] projections = new int[n][];
+            TupleDesc[] outTds = new TupleDesc[n];
+            for (int i = 0; i < n; i++) {
+                Operator op = stages.get(i);
+                if (op instanceof Filter)
+                    filters[i] = PredicateCompiler.compile(((Filter) op).getPredicate(),
+                            op.getTupleDesc());
+                else
+                    projections[i] = ((Project) op).getOutFields();
+                outTds[i] = op.getTupleDesc();
+            }
+
+            TransactionId tid = scan.getTransactionId();
+            ArrayList<Tuple> out = new ArrayList<Tuple>(BATCH_SIZE);
+            int m;
+            while (!cancelled && (m = nextMorsel.getAndIncrement()) * MORSEL_PAGES < numPages) {
+                int end = Math.min(numPages, (m + 1) * MORSEL_PAGES);
+                for (int pg = m * MORSEL_PAGES; pg < end && !cancelled; pg++) {
+                    HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                            new HeapPageId(scan.getTableId(), pg), Permissions.READ_ONLY);
+                    Iterator<Tuple> it = page.iterator();
+                    tuples: while (it.hasNext()) {
+                        Tuple t = it.next();
+                        for (int i = 0; i < n; i++) {
+                            if (filters[i] != null) {
+                                if (!filters[i].filter(t))
+                                    continue tuples;
+                            } else {
+                                Tuple p = t.project(outTds[i], projections[i]);
+                                p.setRecordId(t.getRecordId());
+                                t = p;
+                            }
+                        }
+                        out.add(t);
+                        if (out.size() == BATCH_SIZE) {
+                            put(out.toArray(new Tuple[out.size()]));
+                            out.clear();
+                        }
+                    }
+                }
+            }
+            if (!out.isEmpty())
+                put(out.toArray(new Tuple[out.size()]));
+        }
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (serial)
+            return child.hasNext() ? child.next() : null;
+        while (batch == null || pos == batch.length) {
+            if (run.running == 0) {
+                rethrow();
+                return null;
+            }
+            try {
+                batch = run.queue.take();
+            } catch (InterruptedException e) {
+                throw new DbException("interrupted while scanning");
+            }
+            pos = 0;
+            if (batch == DONE)
+                run.running--;
+        }
+        return batch[pos++];
+    }
+
+    private void rethrow() throws DbException, TransactionAbortedException {
+        Throwable e = run.error.get();
+        if (e != null)
+            WorkerPool.rethrow(e);
+    }
+
+    /**
+     * Stop the workers; they exit after their current page.
+     */
+    private void stop() {
+        if (run != null) {
+            run.cancelled = true;
+            run.queue.clear();
+        }
+        run = null;
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (serial) {
+            child.rewind();
+        } else {
+            stop();
+            start();
+        }
+    }
+
+    public void close() {
+        super.close();
+        if (serial)
+            child.close();
+        else
+            stop();
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        if (scanOf(children[0]) == null)
+            throw new IllegalArgumentException("not a scan pipeline: " + children[0]);
+        child = children[0];
+    }
+}
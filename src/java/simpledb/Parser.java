@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.*;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -182,23 +184,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        ArrayList<String> groupByFields = new ArrayList<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
             }
 
         }
@@ -207,8 +205,8 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        ArrayList<String> aggFields = new ArrayList<String>();
+        ArrayList<String> aggFuns = new ArrayList<String>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,20 +216,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
+                aggFields.add(aggField);
+                aggFuns.add(aggFun);
                 lp.addProjectField(aggField, aggFun);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -241,30 +237,30 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        if (!aggFuns.isEmpty()) {
+            for (String groupByField : groupByFields)
+                lp.addGroupBy(groupByField);
+            for (int i = 0; i < aggFuns.size(); i++)
+                lp.addAggregate(aggFuns.get(i), aggFields.get(i));
         }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -273,6 +269,92 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    // Zql doesn't know LIMIT, so a trailing "LIMIT n [OFFSET m]" or
+    // "LIMIT m, n" is cut from the statement before it is parsed
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "^(.*?)\\s+LIMIT\\s+(\\d+)(?:\\s*,\\s*(\\d+)|\\s+OFFSET\\s+(\\d+))?\\s*(;?)\\s*$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    // LIMIT and OFFSET of the statement being processed
+    private int limit = -1, offset = 0;
+
+    // "SET WORKERS n" sets the number of threads queries run on
+    private static final Pattern SET_WORKERS = Pattern.compile(
+            "^\\s*SET\\s+WORKERS\\s+(\\d+)\\s*;?\\s*$",
+            Pattern.CASE_INSENSITIVE);
+    private int workers = 1;
+
+    /**
+     * Set the number of worker threads the queries of this session run
+     * their scans, joins and aggregates on; 1, the default, runs them
+     * serially.
+     */
+    public void setWorkers(int workers) {
+        this.workers = Math.max(1, workers);
+    }
+
+    /** @return the number of worker threads per parallel operator */
+    public int getWorkers() {
+        return workers;
+    }
+
+    // whether handleQueryStatement prints the plan of every query
+    private boolean printPlans = true;
+
+    /**
+     * Set whether the plan of every query is printed to System.out, as the
+     * interactive parser does; servers turn this off.
+     */
+    public void setPrintPlans(boolean printPlans) {
+        this.printPlans = printPlans;
+    }
+
+    /**
+     * @return the number of workers the "SET WORKERS n" statement s sets, or
+     *         -1 if s is some other statement
+     */
+    static int parseSetWorkers(String s) {
+        Matcher m = SET_WORKERS.matcher(s);
+        return m.matches() ? Integer.parseInt(m.group(1)) : -1;
+    }
+
+    /**
+     * Parse the SQL statement s, remembering its LIMIT clause for the plan
+     * of the statement.
+     */
+    ZStatement parseStatement(String s) throws simpledb.ParsingException,
+            Zql.ParseException, UnsupportedEncodingException {
+        ZqlParser p = new ZqlParser(new ByteArrayInputStream(stripLimit(s)
+                .getBytes("UTF-8")));
+        return p.readStatement();
+    }
+
+    /**
+     * Remove a trailing LIMIT clause from the SQL statement s, and remember
+     * it for the plan of the statement.
+     * 
+     * @return s without its LIMIT clause
+     */
+    String stripLimit(String s) throws simpledb.ParsingException {
+        limit = -1;
+        offset = 0;
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.matches())
+            return s;
+        try {
+            if (m.group(3) != null) {
+                offset = Integer.parseInt(m.group(2));
+                limit = Integer.parseInt(m.group(3));
+            } else {
+                limit = Integer.parseInt(m.group(2));
+                if (m.group(4) != null)
+                    offset = Integer.parseInt(m.group(4));
+            }
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("Invalid LIMIT: " + e.getMessage());
+        }
+        return m.group(1) + m.group(5);
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
@@ -280,12 +362,15 @@ public class Parser {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit >= 0)
+            lp.addLimit(limit, offset);
+        lp.setWorkers(workers);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
 
-        if (physicalPlan != null) {
+        if (physicalPlan != null && printPlans) {
             Class<?> c;
             try {
                 c = Class.forName("simpledb.OperatorCardinality");
@@ -466,12 +551,15 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s)
+                .getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (limit >= 0)
+                    lp.addLimit(limit, offset);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -502,10 +590,48 @@ public class Parser {
         }
     }
 
+    /**
+     * Process the statements in is, on a session thread of their own if
+     * -virtual was given, and wait for them.
+     */
+    private void runStatements(final InputStream is) {
+        if (sessionThreads == null) {
+            processNextStatement(is);
+            return;
+        }
+        Thread t = sessionThreads.newThread(new Runnable() {
+            public void run() {
+                processNextStatement(is);
+            }
+        });
+        t.start();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                t.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            ByteArrayOutputStream sql = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0)
+                sql.write(buf, 0, n);
+            int set = parseSetWorkers(sql.toString("UTF-8"));
+            if (set >= 0) {
+                setWorkers(set);
+                System.out.println("Running queries on " + workers + " workers.");
+                return;
+            }
+            ZStatement s = parseStatement(sql.toString("UTF-8"));
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -581,12 +707,13 @@ public class Parser {
 
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
-            "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "group by", "order by", "limit", "offset", "max(", "min(", "avg(",
+            "count", "rollback", "commit",
+            "insert", "delete", "values", "into", "set workers" };
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 5) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -596,7 +723,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-virtual] [-f queryFile]";
 
     protected void shutdown() {
         System.out.println("Bye");
@@ -604,6 +731,10 @@ public class Parser {
 
     protected boolean interactive = true;
 
+    // with -virtual, statements run on threads made by this, virtual ones
+    // if the JVM has them, as the sessions of a QueryServer may
+    private ThreadFactory sessionThreads;
+
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
@@ -616,6 +747,11 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-virtual")) {
+                    sessionThreads = WorkerPool.sessionThreads("simpledb-session-", true);
+                    System.out.println("Running statements on "
+                            + (WorkerPool.virtualThreadsAvailable() ? "virtual" : "platform")
+                            + " threads.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -636,7 +772,7 @@ public class Parser {
                 // curtrans = new Transaction();
                 // curtrans.start();
                 long startTime = System.currentTimeMillis();
-                processNextStatement(new FileInputStream(new File(queryFile)));
+                runStatements(new FileInputStream(new File(queryFile)));
                 long time = System.currentTimeMillis() - startTime;
                 System.out.printf("----------------\n%.2f seconds\n\n",
                         ((double) time / 1000.0));
@@ -677,8 +813,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    runStatements(new ByteArrayInputStream(statementBytes));
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
@@ -109,6 +109,11 @@ public class Predicate implements Serializable {
      * @return true if the comparison is true, false otherwise.
      */
     public boolean filter(Tuple t) {
+        if(this.operand instanceof IntField){
+            // compare against the packed value without boxing a Field
+            return IntField.compare(this.op, t.getInt(this.field),
+                    ((IntField) this.operand).getValue());
+        }
         if(t.getField(this.field).compare(this.op, this.operand)){
             return true;
         }
@@ -11,6 +11,7 @@ public class Project extends Operator {
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    private int[] outFields;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -39,12 +40,23 @@ public class Project extends Operator {
             fieldAr[i] = childtd.getFieldName(fieldList.get(i));
         }
         td = new TupleDesc(types, fieldAr);
+        outFields = new int[fieldList.size()];
+        for (int i = 0; i < outFields.length; i++) {
+            outFields[i] = fieldList.get(i);
+        }
     }
 
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    /**
+     * @return the indexes of the child fields this projects out, in order
+     */
+    public int[] getOutFields() {
+        return outFields.clone();
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
@@ -70,11 +82,8 @@ public class Project extends Operator {
             TransactionAbortedException, DbException {
         while (child.hasNext()) {
             Tuple t = child.next();
-            Tuple newTuple = new Tuple(td);
+            Tuple newTuple = t.project(td, outFields);
             newTuple.setRecordId(t.getRecordId());
-            for (int i = 0; i < td.numFields(); i++) {
-                newTuple.setField(i, t.getField(outFieldIds.get(i)));
-            }
             return newTuple;
         }
         return null;
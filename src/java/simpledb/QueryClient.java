@@ -0,0 +1,211 @@
+package simpledb;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * QueryClient is a blocking client of a {@link QueryServer}: one connection,
+ * one statement at a time. It needs nothing beyond the JDK, so any program
+ * can talk to a server with it.
+ */
+public class QueryClient {
+
+    /**
+     * The outcome of a statement: its rows, if it returns any, the number of
+     * rows returned or affected, and the server's message.
+     */
+    public static class Result {
+        private final TupleDesc td;
+        private final List<Tuple> rows;
+        private final long count;
+        private final String message;
+
+        Result(TupleDesc td, List<Tuple> rows, long count, String message) {
+            this.td = td;
+            this.rows = rows;
+            this.count = count;
+            this.message = message;
+        }
+
+        /** @return the schema of the rows, or null if there are none */
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        /** @return the rows, empty if the statement returns none or they
+         *          were not kept */
+        public List<Tuple> getRows() {
+            return rows;
+        }
+
+        /** @return the number of rows returned or affected */
+        public long getCount() {
+            return count;
+        }
+
+        /** @return the server's message, such as the outcome of a COMMIT */
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final int session;
+
+    /**
+     * Connect to a server.
+     *
+     * @param compress
+     *            whether to compress everything after the handshake
+     */
+    public QueryClient(String host, int port, boolean compress) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        InputStream rawIn = new BufferedInputStream(socket.getInputStream());
+        OutputStream rawOut = new BufferedOutputStream(socket.getOutputStream());
+        DataOutputStream hello = new DataOutputStream(rawOut);
+        hello.writeInt(2);
+        hello.writeByte(QueryProtocol.HELLO);
+        hello.writeByte(compress ? QueryProtocol.COMPRESS : 0);
+        hello.flush();
+        DataInputStream ready = new DataInputStream(rawIn);
+        byte[] frame = readFrame(ready);
+        if (frame[0] != QueryProtocol.READY)
+            throw new IOException("unexpected reply to HELLO: " + frame[0]);
+        session = new DataInputStream(new ByteArrayInputStream(frame, 1, 4)).readInt();
+        if (compress) {
+            rawIn = new InflaterInputStream(rawIn);
+            // sync flush, so every statement reaches the server whole
+            rawOut = new DeflaterOutputStream(rawOut, new Deflater(), 512, true);
+        }
+        in = new DataInputStream(rawIn);
+        out = new DataOutputStream(rawOut);
+    }
+
+    /**
+     * @return the number the server gave this session
+     */
+    public int getSession() {
+        return session;
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 1 || len > QueryProtocol.MAX_FRAME)
+            throw new IOException("bad frame length " + len);
+        byte[] frame = new byte[len];
+        in.readFully(frame);
+        return frame;
+    }
+
+    /**
+     * Run a statement and keep all its rows.
+     *
+     * @throws DbException
+     *             if the statement failed on the server
+     */
+    public Result execute(String sql) throws IOException, DbException {
+        return execute(sql, true);
+    }
+
+    /**
+     * Run a statement.
+     *
+     * @param keepRows
+     *            whether to keep the rows; if not they are only counted
+     * @throws DbException
+     *             if the statement failed on the server
+     */
+    public Result execute(String sql, boolean keepRows) throws IOException,
+            DbException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        QueryProtocol.frame(body, QueryProtocol.QUERY).writeUTF(sql);
+        out.writeInt(body.size());
+        body.writeTo(out);
+        out.flush();
+
+        TupleDesc td = null;
+        List<Tuple> rows = new ArrayList<Tuple>();
+        List<Tuple> scratch = new ArrayList<Tuple>();
+        while (true) {
+            byte[] frame = readFrame(in);
+            DataInputStream f = new DataInputStream(new ByteArrayInputStream(
+                    frame, 1, frame.length - 1));
+            switch (frame[0]) {
+            case QueryProtocol.HEADER:
+                td = QueryProtocol.readHeader(f);
+                break;
+            case QueryProtocol.ROWS:
+                if (td == null)
+                    throw new IOException("rows before header");
+                QueryProtocol.readRows(f, td, keepRows ? rows : scratch);
+                scratch.clear();
+                break;
+            case QueryProtocol.DONE:
+                long count = f.readLong();
+                return new Result(td, rows, count, f.readUTF());
+            case QueryProtocol.ERROR:
+                throw new DbException(f.readUTF());
+            default:
+                throw new IOException("unexpected message " + frame[0]);
+            }
+        }
+    }
+
+    /**
+     * Close the connection; a transaction left open is aborted.
+     */
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * Run the statements given as arguments, or read from standard input
+     * one per line, and print their results.
+     */
+    public static void main(String[] argv) throws IOException {
+        if (argv.length < 2) {
+            System.out.println("Usage: client host port [-compress] [statement ...]");
+            System.exit(0);
+        }
+        int first = 2;
+        boolean compress = argv.length > 2 && argv[2].equals("-compress");
+        if (compress)
+            first++;
+        QueryClient c = new QueryClient(argv[0], Integer.parseInt(argv[1]), compress);
+        List<String> statements = new ArrayList<String>();
+        for (int i = first; i < argv.length; i++)
+            statements.add(argv[i]);
+        BufferedReader stdin = statements.isEmpty() ? new BufferedReader(
+                new InputStreamReader(System.in, "UTF-8")) : null;
+        for (int i = 0;; i++) {
+            String sql;
+            if (stdin == null)
+                sql = i < statements.size() ? statements.get(i) : null;
+            else
+                sql = stdin.readLine();
+            if (sql == null)
+                break;
+            if (sql.trim().length() == 0)
+                continue;
+            try {
+                Result r = c.execute(sql);
+                for (Tuple t : r.getRows())
+                    System.out.println(t);
+                if (r.getMessage().length() > 0)
+                    System.out.println(r.getMessage());
+                System.out.println("\n " + r.getCount() + " rows.");
+            } catch (DbException e) {
+                System.out.println("Error: " + e.getMessage());
+            }
+        }
+        c.close();
+    }
+}
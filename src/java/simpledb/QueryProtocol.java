@@ -0,0 +1,188 @@
+package simpledb;
+
+import java.io.*;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolCodecFactory;
+import org.apache.mina.filter.codec.ProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.apache.mina.filter.codec.ProtocolEncoder;
+import org.apache.mina.filter.codec.ProtocolEncoderAdapter;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+
+/**
+ * QueryProtocol is the wire format spoken between a {@link QueryServer} and
+ * its clients. Every message is a frame: a four byte length, then that many
+ * bytes, of which the first is the kind of message. All numbers are big
+ * endian and all strings are written as by DataOutput.writeUTF.
+ * <p>
+ * A client opens with HELLO (a flags byte; COMPRESS asks for zlib
+ * compression of everything after the reply) and the server answers READY
+ * (the session number). The client then sends one QUERY (the SQL text) at a
+ * time. The server answers a statement that returns rows with HEADER (the
+ * number of fields, then the type and name of each), any number of ROWS
+ * frames and DONE; any other statement with just DONE; and a statement that
+ * fails with ERROR (a message). DONE holds the number of rows sent or
+ * affected and a message, such as the outcome of a COMMIT.
+ * <p>
+ * A ROWS frame holds a row count and the rows, each field in schema order:
+ * an INT_TYPE field as four bytes, a STRING_TYPE field as a string.
+ */
+public class QueryProtocol {
+
+    /** Client: start a session; a flags byte follows. */
+    public static final byte HELLO = 1;
+    /** Client: run a statement; the SQL follows. */
+    public static final byte QUERY = 2;
+    /** Server: the session is ready; its number follows. */
+    public static final byte READY = 10;
+    /** Server: the schema of the rows that follow. */
+    public static final byte HEADER = 11;
+    /** Server: a batch of rows. */
+    public static final byte ROWS = 12;
+    /** Server: the statement finished. */
+    public static final byte DONE = 13;
+    /** Server: the statement failed. */
+    public static final byte ERROR = 14;
+
+    /** HELLO flag asking for a compressed session. */
+    public static final int COMPRESS = 1;
+
+    /** Largest frame either side accepts. */
+    public static final int MAX_FRAME = 16 << 20;
+
+    private static final byte INT = 0;
+    private static final byte STRING = 1;
+
+    private QueryProtocol() {
+    }
+
+    /**
+     * @return a frame body of the given kind, with a stream positioned to
+     *         write the rest of it
+     */
+    static DataOutputStream frame(ByteArrayOutputStream body, byte kind) {
+        body.write(kind);
+        return new DataOutputStream(body);
+    }
+
+    /**
+     * @return the body of a frame of the given kind holding the single string s
+     */
+    static byte[] message(byte kind, String s) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            frame(body, kind).writeUTF(s);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Write the schema td, as in a HEADER frame.
+     */
+    static void writeHeader(DataOutput out, TupleDesc td) throws IOException {
+        out.writeInt(td.numFields());
+        for (int i = 0; i < td.numFields(); i++) {
+            out.writeByte(td.getFieldType(i) == Type.INT_TYPE ? INT : STRING);
+            String name = td.getFieldName(i);
+            out.writeUTF(name == null ? "" : name);
+        }
+    }
+
+    /**
+     * @return the schema written by writeHeader
+     */
+    static TupleDesc readHeader(DataInput in) throws IOException {
+        int n = in.readInt();
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            types[i] = in.readByte() == INT ? Type.INT_TYPE : Type.STRING_TYPE;
+            names[i] = in.readUTF();
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /**
+     * Write the first n tuples of rows, as in a ROWS frame.
+     */
+    static void writeRows(DataOutput out, TupleDesc td, Tuple[] rows, int n)
+            throws IOException {
+        out.writeInt(n);
+        int fields = td.numFields();
+        for (int r = 0; r < n; r++) {
+            Tuple t = rows[r];
+            for (int i = 0; i < fields; i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE)
+                    out.writeInt(t.getInt(i));
+                else
+                    out.writeUTF(((StringField) t.getField(i)).getValue());
+            }
+        }
+    }
+
+    /**
+     * Read the rows of a ROWS frame into rows.
+     */
+    static void readRows(DataInput in, TupleDesc td, List<Tuple> rows)
+            throws IOException {
+        int n = in.readInt();
+        int fields = td.numFields();
+        for (int r = 0; r < n; r++) {
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < fields; i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE)
+                    t.setField(i, new IntField(in.readInt()));
+                else
+                    t.setField(i, new StringField(in.readUTF(), Type.STRING_LEN));
+            }
+            rows.add(t);
+        }
+    }
+
+    /**
+     * @return the MINA codec that cuts the byte stream into frame bodies and
+     *         prefixes outgoing bodies with their length; messages on both
+     *         sides of it are byte arrays
+     */
+    public static ProtocolCodecFactory codec() {
+        return new ProtocolCodecFactory() {
+            public ProtocolEncoder getEncoder(IoSession session) {
+                return ENCODER;
+            }
+
+            public ProtocolDecoder getDecoder(IoSession session) {
+                return new Decoder();
+            }
+        };
+    }
+
+    private static final ProtocolEncoder ENCODER = new ProtocolEncoderAdapter() {
+        public void encode(IoSession session, Object message,
+                ProtocolEncoderOutput out) {
+            byte[] body = (byte[]) message;
+            IoBuffer buf = IoBuffer.allocate(4 + body.length);
+            buf.putInt(body.length);
+            buf.put(body);
+            buf.flip();
+            out.write(buf);
+        }
+    };
+
+    private static class Decoder extends CumulativeProtocolDecoder {
+        protected boolean doDecode(IoSession session, IoBuffer in,
+                ProtocolDecoderOutput out) throws IOException {
+            if (!in.prefixedDataAvailable(4, MAX_FRAME))
+                return false;
+            byte[] body = new byte[in.getInt()];
+            in.get(body);
+            out.write(body);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package simpledb;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.filter.compression.CompressionFilter;
+import org.apache.mina.filter.executor.ExecutorFilter;
+import org.apache.mina.filter.executor.OrderedThreadPoolExecutor;
+import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
+
+import Zql.*;
+
+/**
+ * QueryServer accepts SQL over TCP from any number of clients at once, using
+ * Apache MINA, and runs it against the shared {@link Database}. See
+ * {@link QueryProtocol} for the wire format and {@link QueryClient} for a
+ * client.
+ * <p>
+ * Every connection is a session with its own parser state and transaction,
+ * as if it were an interactive {@link Parser}: a statement outside of a
+ * transaction started with SET TRANSACTION runs in a transaction of its own.
+ * The statements of a session run one at a time, in order, on a pool of
+ * query threads shared by all sessions, so the network threads never block
+ * on a query. Result rows are streamed in batches of BATCH_ROWS; a query
+ * stops producing rows while more than MAX_PENDING_BYTES of them wait to be
+ * sent.
+ * <p>
+ * With setVirtualThreads, every session instead runs its statements on a
+ * thread of its own, a virtual thread where the JVM has them. A session
+ * then costs little while it is idle or blocked on a page read, a lock or a
+ * log force, so thousands of them may be connected and working at once.
+ */
+public class QueryServer {
+
+    /** Rows per ROWS frame. */
+    public static final int BATCH_ROWS = 512;
+    /** Bytes of results a session may have queued before its query waits. */
+    public static final int MAX_PENDING_BYTES = 1 << 20;
+    /** Seconds stop() waits for the running statements to finish. */
+    public static final int STOP_TIMEOUT_SECONDS = 30;
+
+    private static final AttributeKey SESSION = new AttributeKey(QueryServer.class, "session");
+
+    private final int port;
+    private int threads = WorkerPool.defaultWorkers();
+    private int workers = 1;
+    private boolean virtualThreads;
+
+    private NioSocketAcceptor acceptor;
+    private OrderedThreadPoolExecutor executor;
+    private ThreadFactory sessionThreads;
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param port
+     *            the TCP port to listen on, or 0 for any free port
+     */
+    public QueryServer(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Set the number of threads queries run on; at most that many sessions
+     * run a statement at once. Must be called before start().
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Set the number of workers each new session runs its queries' parallel
+     * operators on, as SET WORKERS does. Must be called before start().
+     */
+    public void setWorkers(int workers) {
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * Set whether each session runs its statements on a thread of its own,
+     * virtual if the JVM has virtual threads, rather than on the shared
+     * query threads; setThreads then has no effect. Must be called before
+     * start().
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Start listening.
+     */
+    public void start() throws IOException {
+        acceptor = new NioSocketAcceptor();
+        acceptor.setReuseAddress(true);
+        // replies are small and the client waits for each one
+        acceptor.getSessionConfig().setTcpNoDelay(true);
+        acceptor.getFilterChain().addLast("codec",
+                new ProtocolCodecFilter(QueryProtocol.codec()));
+        if (virtualThreads) {
+            sessionThreads = WorkerPool.sessionThreads("simpledb-session-", true);
+        } else {
+            executor = new OrderedThreadPoolExecutor(threads);
+            acceptor.getFilterChain().addLast("executor", new ExecutorFilter(executor));
+        }
+        acceptor.setHandler(new Handler());
+        acceptor.bind(new InetSocketAddress(port));
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return acceptor.getLocalAddress().getPort();
+    }
+
+    /**
+     * @return the number of sessions currently connected
+     */
+    public int getSessionCount() {
+        return acceptor.getManagedSessionCount();
+    }
+
+    /**
+     * Stop listening, close every session and wait up to
+     * STOP_TIMEOUT_SECONDS for the statements running on the query threads
+     * to finish. Sessions on threads of their own (see setVirtualThreads)
+     * finish their current statement without being waited for.
+     *
+     * @return false if statements were still running when the wait ended
+     */
+    public boolean stop() {
+        acceptor.unbind();
+        acceptor.dispose(true);
+        if (executor == null)
+            return true;
+        executor.shutdown();
+        try {
+            return executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private class Handler extends IoHandlerAdapter {
+        public void sessionCreated(IoSession session) {
+            Session s = new Session(session, sessions.incrementAndGet());
+            session.setAttribute(SESSION, s);
+            if (sessionThreads != null)
+                sessionThreads.newThread(s).start();
+        }
+
+        public void messageReceived(IoSession session, Object message)
+                throws IOException {
+            Session s = (Session) session.getAttribute(SESSION);
+            if (sessionThreads != null)
+                s.inbox.add((byte[]) message);
+            else
+                s.receive((byte[]) message);
+        }
+
+        public void sessionClosed(IoSession session) {
+            Session s = (Session) session.getAttribute(SESSION);
+            if (s == null)
+                return;
+            if (sessionThreads != null)
+                s.inbox.add(CLOSED);
+            else
+                s.close();
+        }
+
+        public void exceptionCaught(IoSession session, Throwable cause) {
+            if (!(cause instanceof IOException))
+                cause.printStackTrace();
+            session.close(true);
+        }
+    }
+
+    // queued to a session thread once its connection is gone
+    private static final byte[] CLOSED = new byte[0];
+
+    /**
+     * The state of one connection. Only ever used by one query thread at a
+     * time, as the executor runs the messages of a session in order; or, with
+     * virtual threads, run as the session's own thread, which takes the
+     * messages from inbox.
+     */
+    private class Session implements Runnable {
+        final LinkedBlockingQueue<byte[]> inbox = new LinkedBlockingQueue<byte[]>();
+        private final IoSession io;
+        private final int id;
+        private final Parser parser = new Parser();
+        // the transaction begun by SET TRANSACTION, if any
+        private Transaction userTrans;
+
+        Session(IoSession io, int id) {
+            this.io = io;
+            this.id = id;
+            parser.setPrintPlans(false);
+            parser.setWorkers(workers);
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    byte[] frame = inbox.take();
+                    if (frame == CLOSED)
+                        break;
+                    receive(frame);
+                }
+            } catch (InterruptedException e) {
+                io.close(true);
+            } catch (IOException e) {
+                io.close(true);
+            } finally {
+                close();
+            }
+        }
+
+        void receive(byte[] frame) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    frame, 1, frame.length - 1));
+            switch (frame[0]) {
+            case QueryProtocol.HELLO:
+                hello(in.readByte());
+                break;
+            case QueryProtocol.QUERY:
+                run(in.readUTF());
+                break;
+            default:
+                io.write(QueryProtocol.message(QueryProtocol.ERROR,
+                        "unknown message " + frame[0]));
+            }
+        }
+
+        void hello(int flags) {
+            if ((flags & QueryProtocol.COMPRESS) != 0) {
+                // compress everything after the reply, which the client
+                // still reads as is
+                io.getFilterChain().addFirst("compression", new CompressionFilter());
+                io.setAttribute(CompressionFilter.DISABLE_COMPRESSION_ONCE, Boolean.TRUE);
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try {
+                QueryProtocol.frame(body, QueryProtocol.READY).writeInt(id);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            io.write(body.toByteArray());
+        }
+
+        /**
+         * Run one statement and send its outcome.
+         */
+        void run(String sql) {
+            try {
+                io.write(execute(sql));
+            } catch (Throwable e) {
+                String msg = e.getMessage();
+                io.write(QueryProtocol.message(QueryProtocol.ERROR,
+                        msg == null ? e.toString() : msg));
+            }
+        }
+
+        /**
+         * @return the DONE frame of sql, once any rows have been sent
+         */
+        private byte[] execute(String sql) throws Exception {
+            int set = Parser.parseSetWorkers(sql);
+            if (set >= 0) {
+                parser.setWorkers(set);
+                return done(0, "Running queries on " + parser.getWorkers() + " workers.");
+            }
+            ZStatement s = parser.parseStatement(sql);
+            if (s instanceof ZTransactStmt)
+                return transact((ZTransactStmt) s);
+
+            Transaction t = userTrans;
+            if (t == null) {
+                t = new Transaction();
+                t.start();
+            }
+            long rows;
+            try {
+                Query q;
+                if (s instanceof ZInsert)
+                    q = parser.handleInsertStatement((ZInsert) s, t.getId());
+                else if (s instanceof ZDelete)
+                    q = parser.handleDeleteStatement((ZDelete) s, t.getId());
+                else if (s instanceof ZQuery)
+                    q = parser.handleQueryStatement((ZQuery) s, t.getId());
+                else
+                    throw new ParsingException("Can't run " + s
+                            + "; only transactions, insert, delete and select are supported");
+                rows = stream(q, s instanceof ZQuery);
+            } catch (Exception e) {
+                t.abort();
+                userTrans = null;
+                throw e;
+            }
+            if (userTrans == null)
+                t.commit();
+            return done(rows, "");
+        }
+
+        /**
+         * Run q and send its rows if it is a query, or just count what it
+         * affected.
+         *
+         * @return the number of rows sent or affected
+         */
+        private long stream(Query q, boolean sendRows) throws Exception {
+            TupleDesc td = q.getOutputTupleDesc();
+            q.start();
+            try {
+                if (!sendRows) {
+                    // insert and delete return one tuple holding the count
+                    return q.hasNext() ? q.next().getInt(0) : 0;
+                }
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                QueryProtocol.writeHeader(QueryProtocol.frame(body, QueryProtocol.HEADER), td);
+                io.write(body.toByteArray());
+                Tuple[] batch = new Tuple[BATCH_ROWS];
+                int n = 0;
+                long rows = 0;
+                WriteFuture last = null;
+                while (q.hasNext()) {
+                    batch[n++] = q.next();
+                    if (n == BATCH_ROWS) {
+                        last = sendRows(td, batch, n, last);
+                        rows += n;
+                        n = 0;
+                    }
+                }
+                if (n > 0)
+                    sendRows(td, batch, n, last);
+                return rows + n;
+            } finally {
+                q.close();
+            }
+        }
+
+        private WriteFuture sendRows(TupleDesc td, Tuple[] batch, int n,
+                WriteFuture last) throws IOException {
+            if (!io.isConnected())
+                throw new IOException("session closed");
+            // wait for the client to catch up rather than queue every row
+            if (last != null && io.getScheduledWriteBytes() > MAX_PENDING_BYTES)
+                await(last);
+            ByteArrayOutputStream body = new ByteArrayOutputStream(64 + 8 * n
+                    * td.numFields());
+            QueryProtocol.writeRows(QueryProtocol.frame(body, QueryProtocol.ROWS), td, batch, n);
+            return io.write(body.toByteArray());
+        }
+
+        /**
+         * Wait for a write to complete. Not with the future's own await,
+         * which waits on a monitor and would pin a virtual thread.
+         */
+        private void await(WriteFuture f) throws IOException {
+            final CountDownLatch written = new CountDownLatch(1);
+            f.addListener(new IoFutureListener<WriteFuture>() {
+                public void operationComplete(WriteFuture future) {
+                    written.countDown();
+                }
+            });
+            try {
+                written.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while sending rows");
+            }
+        }
+
+        private byte[] transact(ZTransactStmt s) throws Exception {
+            String type = s.getStmtType();
+            if (type.equals("SET TRANSACTION")) {
+                if (userTrans != null)
+                    throw new ParsingException("Can't start new transactions until current "
+                            + "transaction has been committed or rolledback.");
+                userTrans = new Transaction();
+                userTrans.start();
+                return done(0, "Started a new transaction tid = " + userTrans.getId().getId());
+            }
+            if (!type.equals("COMMIT") && !type.equals("ROLLBACK"))
+                throw new ParsingException("Unsupported operation");
+            if (userTrans == null)
+                throw new ParsingException("No transaction is currently running");
+            Transaction t = userTrans;
+            userTrans = null;
+            if (type.equals("COMMIT")) {
+                t.commit();
+                return done(0, "Transaction " + t.getId().getId() + " committed.");
+            }
+            t.abort();
+            return done(0, "Transaction " + t.getId().getId() + " aborted.");
+        }
+
+        private byte[] done(long rows, String msg) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = QueryProtocol.frame(body, QueryProtocol.DONE);
+            out.writeLong(rows);
+            out.writeUTF(msg);
+            return body.toByteArray();
+        }
+
+        /**
+         * Abort the transaction a closed connection left open.
+         */
+        void close() {
+            if (userTrans == null)
+                return;
+            try {
+                userTrans.abort();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            userTrans = null;
+        }
+    }
+
+    static final String usage = "Usage: server catalogFile [-port p] [-threads n] [-workers n] [-virtual]";
+
+    /**
+     * Load a catalog and serve it until killed.
+     */
+    public static void main(String[] argv) throws IOException {
+        if (argv.length < 1) {
+            System.out.println(usage);
+            System.exit(0);
+        }
+        Database.getCatalog().loadSchema(argv[0]);
+        TableStats.computeStatistics();
+        int port = 8090;
+        int threads = WorkerPool.defaultWorkers(), workers = 1;
+        boolean virtual = false;
+        for (int i = 1; i < argv.length; i += 2) {
+            if (argv[i].equals("-virtual")) {
+                virtual = true;
+                i--;
+            } else if (i + 1 == argv.length)
+                System.out.println("Expected a value after " + argv[i] + "\n " + usage);
+            else if (argv[i].equals("-port"))
+                port = Integer.parseInt(argv[i + 1]);
+            else if (argv[i].equals("-threads"))
+                threads = Integer.parseInt(argv[i + 1]);
+            else if (argv[i].equals("-workers"))
+                workers = Integer.parseInt(argv[i + 1]);
+            else
+                System.out.println("Unknown argument " + argv[i] + "\n " + usage);
+        }
+        QueryServer server = new QueryServer(port);
+        server.setThreads(threads);
+        server.setWorkers(workers);
+        server.setVirtualThreads(virtual);
+        server.start();
+        if (virtual)
+            System.out.println("Serving on port " + server.getPort() + " with a "
+                    + (WorkerPool.virtualThreadsAvailable() ? "virtual" : "platform")
+                    + " thread per session.");
+        else
+            System.out.println("Serving on port " + server.getPort() + " with "
+                    + threads + " query threads.");
+    }
+}
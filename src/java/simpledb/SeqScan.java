@@ -49,6 +49,20 @@ public class SeqScan implements DbIterator {
         return Database.getCatalog().getTableName(this.tableid);
     }
     
+    /**
+     * @return the id of the table the operator scans
+     */
+    public int getTableId() {
+        return this.tableid;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return this.tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans. 
      * */
@@ -91,6 +91,12 @@ public class SimpleDb {
             }
 
         }
+        else if (args[0].equals("server")) {
+            QueryServer.main(Arrays.copyOfRange(args, 1, args.length));
+        }
+        else if (args[0].equals("client")) {
+            QueryClient.main(Arrays.copyOfRange(args, 1, args.length));
+        }
         else {
             System.err.println("Unknown command: " + args[0]);
             System.exit(1);
@@ -0,0 +1,216 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin evaluates a join by sorting both inputs on their join field
+ * and merging them. It handles EQUALS, NOT_EQUALS and the range predicates:
+ * with both inputs in ascending order, the right tuples that match a left
+ * tuple form at most two contiguous runs of the sorted right input, and the
+ * run boundaries only move forward as the left key grows, so the join costs
+ * two sorts plus a linear merge plus the size of its output.
+ * <p>
+ * An input that is already sorted ascending on its join field (see
+ * {@link #isSortedOn}) is not sorted again; in particular a sorted left input
+ * is streamed rather than materialized. The output is sorted ascending on the
+ * left join field, and for EQUALS joins on the right join field too, so a
+ * later ORDER BY on either can be dropped.
+ */
+public class SortMergeJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+
+    // the right input, sorted on field2
+    private transient ArrayList<Tuple> rightTups;
+    // the left input sorted on field1, or null if child1 is read in order
+    private transient ArrayList<Tuple> leftTups;
+    private transient int leftPos;
+
+    // first right index with key >= / > the current left key
+    private transient int lo, hi;
+    // the runs of rightTups matching the current left tuple
+    private transient int from1, to1, from2, to2;
+    private transient int pos;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children; must not be LIKE
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        super(p, child1, child2);
+        if (p.getOperator() == Predicate.Op.LIKE)
+            throw new IllegalArgumentException("sort-merge join can't evaluate LIKE");
+    }
+
+    /**
+     * @return true if the tuples of it are produced in ascending order of
+     *         field. Knows about OrderBy, SortMergeJoin, and Filter, which
+     *         keeps the order of its child.
+     */
+    public static boolean isSortedOn(DbIterator it, int field) {
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.isASC() && o.getOrderByField() == field;
+        }
+        if (it instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) it;
+            JoinPredicate p = j.getJoinPredicate();
+            if (field == p.getField1())
+                return true;
+            return p.getOperator() == Predicate.Op.EQUALS
+                    && field == p.getField2() + j.child1.getTupleDesc().numFields();
+        }
+        if (it instanceof Filter)
+            return isSortedOn(((Filter) it).getChildren()[0], field);
+        return false;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        int field1 = p.getField1();
+        int field2 = p.getField2();
+
+        rightTups = new ArrayList<Tuple>();
+        while (child2.hasNext())
+            rightTups.add(child2.next());
+        if (!isSortedOn(child2, field2))
+            new TupleSorter(child2.getTupleDesc(), field2, true).sort(rightTups);
+
+        leftTups = null;
+        if (!isSortedOn(child1, field1)) {
+            leftTups = new ArrayList<Tuple>();
+            while (child1.hasNext())
+                leftTups.add(child1.next());
+            new TupleSorter(child1.getTupleDesc(), field1, true).sort(leftTups);
+        }
+        reset();
+    }
+
+    public void close() {
+        super.close();
+        rightTups = null;
+        leftTups = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (leftTups == null)
+            child1.rewind();
+        reset();
+    }
+
+    private void reset() {
+        leftPos = 0;
+        left = null;
+        lo = hi = 0;
+        from1 = to1 = from2 = to2 = pos = 0;
+    }
+
+    /** @return the next left tuple in join-field order, or null */
+    private Tuple nextLeft() throws DbException, TransactionAbortedException {
+        if (leftTups != null)
+            return leftPos < leftTups.size() ? leftTups.get(leftPos++) : null;
+        return child1.hasNext() ? child1.next() : null;
+    }
+
+    /**
+     * Compare the join field of left tuple l to that of right tuple r.
+     */
+    private int compareKeys(Tuple l, Tuple r) {
+        int f1 = p.getField1();
+        int f2 = p.getField2();
+        if (l.getTupleDesc().getFieldType(f1) == Type.INT_TYPE) {
+            int a = l.getInt(f1);
+            int b = r.getInt(f2);
+            return a < b ? -1 : (a == b ? 0 : 1);
+        }
+        Field a = l.getField(f1);
+        Field b = r.getField(f2);
+        if (a.compare(Predicate.Op.EQUALS, b))
+            return 0;
+        return a.compare(Predicate.Op.LESS_THAN, b) ? -1 : 1;
+    }
+
+    /**
+     * Move lo and hi forward for the new left tuple and compute the runs of
+     * rightTups that satisfy the predicate.
+     */
+    private void findMatches() {
+        int n = rightTups.size();
+        while (lo < n && compareKeys(left, rightTups.get(lo)) > 0)
+            lo++;
+        if (hi < lo)
+            hi = lo;
+        while (hi < n && compareKeys(left, rightTups.get(hi)) >= 0)
+            hi++;
+
+        from2 = to2 = 0;
+        switch (p.getOperator()) {
+        case EQUALS:
+            from1 = lo; to1 = hi;
+            break;
+        case NOT_EQUALS:
+            from1 = 0; to1 = lo;
+            from2 = hi; to2 = n;
+            break;
+        case LESS_THAN:
+            from1 = hi; to1 = n;
+            break;
+        case LESS_THAN_OR_EQ:
+            from1 = lo; to1 = n;
+            break;
+        case GREATER_THAN:
+            from1 = 0; to1 = lo;
+            break;
+        case GREATER_THAN_OR_EQ:
+            from1 = 0; to1 = hi;
+            break;
+        default:
+            throw new IllegalStateException("unsupported operator " + p.getOperator());
+        }
+        pos = from1;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Output is ordered by the left join field.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (left != null) {
+                if (pos < to1) {
+                    right = rightTups.get(pos++);
+                    return Tuple.merge(getTupleDesc(), left, right);
+                }
+                if (from2 < to2) {
+                    // second run (NOT_EQUALS only)
+                    from1 = pos = from2;
+                    to1 = to2;
+                    from2 = to2 = 0;
+                    continue;
+                }
+            }
+            left = nextLeft();
+            if (left == null)
+                return null;
+            findMatches();
+        }
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        super.setChildren(children);
+        rightTups = null;
+        leftTups = null;
+    }
+}
@@ -0,0 +1,72 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SpscQueue is a bounded lock-free queue for exactly one producer thread and
+ * one consumer thread: a ring buffer whose read and write positions are only
+ * ever advanced by their own thread. Neither side blocks; {@link #offer}
+ * fails when the queue is full and {@link #poll} when it is empty, and the
+ * caller decides how to wait.
+ */
+public class SpscQueue<T> {
+
+    private final Object[] buf;
+    private final int mask;
+    // the next position to read; written only by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // the next position to write; written only by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity
+     *            the maximum number of elements, rounded up to a power of two
+     */
+    public SpscQueue(int capacity) {
+        int n = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.buf = new Object[n];
+        this.mask = n - 1;
+    }
+
+    /**
+     * Add x to the queue; may only be called by the producer thread.
+     *
+     * @return false if the queue is full
+     */
+    public boolean offer(T x) {
+        long t = tail.get();
+        if (t - head.get() == buf.length)
+            return false;
+        buf[(int) t & mask] = x;
+        // publishes the element along with the new tail
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Remove the oldest element; may only be called by the consumer thread.
+     *
+     * @return the element, or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long h = head.get();
+        if (h == tail.get())
+            return null;
+        int i = (int) h & mask;
+        T x = (T) buf[i];
+        buf[i] = null;
+        head.lazySet(h + 1);
+        return x;
+    }
+
+    /**
+     * @return the number of elements in the queue; exact only when called
+     *         by the producer or the consumer while the other side is idle
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+}
@@ -20,8 +20,10 @@ public class StringAggregator implements Aggregator {
     String gbfieldName = "";
     String tfieldName = "";
     
-    // each tuple in the result is a pair of the form (groupValue, aggrageteValue)
-    private HashMap<Field, Integer> groupbyResult;
+    // group keys and counts, see AggHashTable
+    private AggHashTable table;
+    private int[] keyFields;
+    private boolean named = false;
 
     /**
      * Aggregate constructor
@@ -46,8 +48,13 @@ public class StringAggregator implements Aggregator {
     	this.afield = afield;
     	this.what = what;
     	
-    	groupbyResult = new HashMap<Field, Integer>();
-    	
+    	if(grouping) {
+    		keyFields = new int[] { gbfield };
+    		table = new AggHashTable(new Type[] { gbfieldtype }, new Op[] { Op.COUNT });
+    	} else {
+    		keyFields = new int[0];
+    		table = new AggHashTable(new Type[0], new Op[] { Op.COUNT });
+    	}
     }
 
     /**
@@ -58,24 +65,36 @@ public class StringAggregator implements Aggregator {
         // some code goes here
     	// same as in IntegerAggregator.java
     	// but only has COUNT aggregation
-    	Field groupbyField;
-    	int aggregateValue;
-    	tfieldName = tup.getTupleDesc().getFieldName(afield);
-    	
-    	if(!grouping)
-    		groupbyField = new IntField(Aggregator.NO_GROUPING);
-    	else {
-    		groupbyField = tup.getField(gbfield);
-    		gbfieldName = tup.getTupleDesc().getFieldName(gbfield);
+    	if(!named) {
+    		tfieldName = tup.getTupleDesc().getFieldName(afield);
+    		if(grouping)
+    			gbfieldName = tup.getTupleDesc().getFieldName(gbfield);
+    		named = true;
     	}
     	
-    	if(!groupbyResult.containsKey(groupbyField))
-    		groupbyResult.put(groupbyField, 0);
-    	
-    	aggregateValue = groupbyResult.get(groupbyField);
-    	
-    	aggregateValue++;
-    	groupbyResult.put(groupbyField, aggregateValue);
+    	table.count(table.group(tup, keyFields), 0);
+    }
+
+    public int numGroups() {
+    	return table.size();
+    }
+
+    public boolean hasGroup(Tuple tup) {
+    	return table.find(tup, keyFields) >= 0;
+    }
+
+    public void merge(Aggregator partial) {
+    	if(!(partial instanceof StringAggregator))
+    		throw new IllegalArgumentException("cannot merge " + partial.getClass().getSimpleName());
+    	StringAggregator other = (StringAggregator) partial;
+    	if(other.gbfield != gbfield || other.afield != afield || other.what != what)
+    		throw new IllegalArgumentException("cannot merge a different aggregator");
+    	if(!named && other.named) {
+    		tfieldName = other.tfieldName;
+    		gbfieldName = other.gbfieldName;
+    		named = true;
+    	}
+    	table.merge(other.table);
     }
 
     /**
@@ -116,16 +135,14 @@ public class StringAggregator implements Aggregator {
     	}
     	td = new TupleDesc(typeAr, fieldAr);
     	
-    	for(Field groupbyField : groupbyResult.keySet()) {
-    		int aggregateValue = groupbyResult.get(groupbyField);
-    		
+    	for(int group = 0; group < table.size(); group++) {
     		Tuple tuple = new Tuple(td);
     	
     		if(grouping) {
-    			tuple.setField(0, groupbyField);
-    			tuple.setField(1, new IntField(aggregateValue));
+    			table.writeKey(group, tuple, 0);
+    			tuple.setField(1, new IntField(table.result(group, 0)));
     		} else {
-    			tuple.setField(0, new IntField(aggregateValue));
+    			tuple.setField(0, new IntField(table.result(group, 0)));
     		}
     		
     		tuples.add(tuple);
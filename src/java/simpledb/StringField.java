@@ -4,15 +4,35 @@ import java.io.*;
 
 /**
  * Instance of Field that stores a single String of a fixed length.
+ * <p>
+ * The string is kept as a slice of bytes (one byte per character, the same
+ * encoding {@link #serialize} writes to disk). Fields parsed out of a
+ * {@link CompactTuple} point straight into the tuple's buffer, and equality,
+ * ordering, hashing and LIKE all work on the bytes; a java.lang.String is
+ * only created when {@link #getValue} or {@link #toString} is called.
  */
 public class StringField implements Field {
 
 	private static final long serialVersionUID = 1L;
 
-	private String value;
+	private static final String CHARSET = "ISO-8859-1";
+
+	private final byte[] bytes;
+	private final int offset;
+	private final int length;
 	private int maxSize;
+	private transient String value;
+	private transient int hash;
 
 	public String getValue() {
+		if (value == null) {
+			try {
+				value = new String(bytes, offset, length, CHARSET);
+			} catch (UnsupportedEncodingException e) {
+				// ISO-8859-1 is always supported
+				throw new RuntimeException(e);
+			}
+		}
 		return value;
 	}
 
@@ -28,21 +48,58 @@ public class StringField implements Field {
 		this.maxSize = maxSize;
 
 		if (s.length() > maxSize)
-			value = s.substring(0, maxSize);
-		else
-			value = s;
+			s = s.substring(0, maxSize);
+		this.bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) s.charAt(i);
+		this.offset = 0;
+		this.length = bytes.length;
+	}
+
+	/**
+	 * Constructor for a field over bytes[offset..offset+length-1]. The array
+	 * is shared, not copied, so it must not be modified afterwards;
+	 * CompactTuple.setField copies its bytes before writing for that reason.
+	 * 
+	 * @param maxSize
+	 *            The maximum size of this string; longer slices are truncated
+	 */
+	StringField(byte[] bytes, int offset, int length, int maxSize) {
+		this.maxSize = maxSize;
+		this.bytes = bytes;
+		this.offset = offset;
+		this.length = Math.min(length, maxSize);
 	}
 
 	public String toString() {
-		return value;
+		return getValue();
 	}
 
+	/**
+	 * Hashes the bytes with the same function String.hashCode uses, so the
+	 * result equals getValue().hashCode().
+	 */
 	public int hashCode() {
-		return value.hashCode();
+		int h = hash;
+		if (h == 0) {
+			for (int i = offset; i < offset + length; i++)
+				h = 31 * h + (bytes[i] & 0xff);
+			hash = h;
+		}
+		return h;
 	}
 
 	public boolean equals(Object field) {
-		return ((StringField) field).value.equals(value);
+		if (!(field instanceof StringField))
+			return false;
+		StringField f = (StringField) field;
+		if (length != f.length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (bytes[offset + i] != f.bytes[f.offset + i])
+				return false;
+		}
+		return true;
 	}
 
 	/**
@@ -54,18 +111,81 @@ public class StringField implements Field {
 	 *            Where the string is written
 	 */
 	public void serialize(DataOutputStream dos) throws IOException {
-		String s = value;
-		int overflow = maxSize - s.length();
-		if (overflow < 0) {
-			String news = s.substring(0, maxSize);
-			s = news;
-		}
-		dos.writeInt(s.length());
-		dos.writeBytes(s);
+		int len = Math.min(length, maxSize);
+		dos.writeInt(len);
+		dos.write(bytes, offset, len);
+		int overflow = maxSize - len;
 		while (overflow-- > 0)
 			dos.write((byte) 0);
 	}
 
+	/**
+	 * Write this string into dst at off in the on-page format of a
+	 * {@link Type#STRING_TYPE} field, i.e. Type.STRING_TYPE.getLen() bytes.
+	 */
+	void serialize(byte[] dst, int off) {
+		int len = Math.min(length, Type.STRING_LEN);
+		CompactTuple.writeInt(dst, off, len);
+		System.arraycopy(bytes, offset, dst, off + 4, len);
+		java.util.Arrays.fill(dst, off + 4 + len, off + 4 + Type.STRING_LEN, (byte) 0);
+	}
+
+	/**
+	 * Compare the bytes of this string to those of f, treating each byte as
+	 * an unsigned character; same ordering as String.compareTo.
+	 */
+	int compareBytes(StringField f) {
+		int n = Math.min(length, f.length);
+		for (int i = 0; i < n; i++) {
+			int c = (bytes[offset + i] & 0xff) - (f.bytes[f.offset + i] & 0xff);
+			if (c != 0)
+				return c;
+		}
+		return length - f.length;
+	}
+
+	/**
+	 * @return the number of bytes in this string
+	 */
+	int byteLength() {
+		return length;
+	}
+
+	/**
+	 * Copy the bytes of this string into dst at off.
+	 */
+	void copyBytes(byte[] dst, int off) {
+		System.arraycopy(bytes, offset, dst, off, length);
+	}
+
+	/**
+	 * Write a byte-comparable sort key for this string into dst at off:
+	 * the first Type.STRING_LEN bytes padded with zeros, then the length.
+	 * Comparing two keys as unsigned bytes orders them like
+	 * {@link #compareBytes}.
+	 */
+	void writeSortKey(byte[] dst, int off) {
+		int len = Math.min(length, Type.STRING_LEN);
+		System.arraycopy(bytes, offset, dst, off, len);
+		java.util.Arrays.fill(dst, off + len, off + Type.STRING_LEN, (byte) 0);
+		dst[off + Type.STRING_LEN] = (byte) len;
+	}
+
+	/**
+	 * @return true if the bytes of f occur somewhere in this string
+	 */
+	private boolean containsBytes(StringField f) {
+		int last = length - f.length;
+		outer: for (int i = 0; i <= last; i++) {
+			for (int j = 0; j < f.length; j++) {
+				if (bytes[offset + i + j] != f.bytes[f.offset + j])
+					continue outer;
+			}
+			return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Compare the specified field to the value of this Field. Return semantics
 	 * are as specified by Field.compare
@@ -77,29 +197,28 @@ public class StringField implements Field {
 	public boolean compare(Predicate.Op op, Field val) {
 
 		StringField iVal = (StringField) val;
-		int cmpVal = value.compareTo(iVal.value);
 
 		switch (op) {
 		case EQUALS:
-			return cmpVal == 0;
+			return equals(iVal);
 
 		case NOT_EQUALS:
-			return cmpVal != 0;
+			return !equals(iVal);
 
 		case GREATER_THAN:
-			return cmpVal > 0;
+			return compareBytes(iVal) > 0;
 
 		case GREATER_THAN_OR_EQ:
-			return cmpVal >= 0;
+			return compareBytes(iVal) >= 0;
 
 		case LESS_THAN:
-			return cmpVal < 0;
+			return compareBytes(iVal) < 0;
 
 		case LESS_THAN_OR_EQ:
-			return cmpVal <= 0;
+			return compareBytes(iVal) <= 0;
 
 		case LIKE:
-			return value.indexOf(iVal.value) >= 0;
+			return containsBytes(iVal);
 		}
 
 		return false;
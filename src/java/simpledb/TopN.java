@@ -0,0 +1,138 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an ORDER BY that only returns the first n tuples of the ordering.
+ * Instead of sorting its whole input it keeps the n best tuples seen so far in
+ * a bounded heap, so it needs memory for n tuples and O(log n) work per input
+ * tuple. Like {@link OrderBy}, ties keep their input order.
+ */
+public class TopN extends OrderBy {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int n;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     * 
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param n
+     *            the number of tuples to return
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int n, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, n, child);
+    }
+
+    /**
+     * Creates a new TopN node that sorts on several fields.
+     * 
+     * @param orderbyFields
+     *            the fields to sort on, most significant first.
+     * @param asc
+     *            for each field, true if it is sorted ascending.
+     * @param n
+     *            the number of tuples to return
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int n, DbIterator child) {
+        super(orderbyFields, asc, child);
+        this.n = Math.max(0, n);
+    }
+
+    /**
+     * @return the number of tuples this operator returns at most
+     */
+    public int getN() {
+        return n;
+    }
+
+    protected DbFileIterator sort(DbIterator child, TupleSorter sorter) {
+        return new TopNIterator(child, sorter.comparator(), n);
+    }
+
+    /** A tuple and its position in the input, which breaks ties. */
+    private static class Entry {
+        final Tuple t;
+        final long seq;
+
+        Entry(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    private static class TopNIterator implements DbFileIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final DbIterator child;
+        private final Comparator<Tuple> order;
+        private final int n;
+        private transient Tuple[] top;
+        private int pos;
+
+        TopNIterator(DbIterator child, Comparator<Tuple> order, int n) {
+            this.child = child;
+            this.order = order;
+            this.n = n;
+        }
+
+        /** @return a negative number if a comes before b in the output */
+        private int compare(Entry a, Entry b) {
+            int c = order.compare(a.t, b.t);
+            if (c != 0)
+                return c;
+            return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            // the head of the heap is the worst of the best n so far
+            PriorityQueue<Entry> heap = new PriorityQueue<Entry>(
+                    Math.max(1, Math.min(n, 1024)), new Comparator<Entry>() {
+                        public int compare(Entry a, Entry b) {
+                            return TopNIterator.this.compare(b, a);
+                        }
+                    });
+            long seq = 0;
+            while (n > 0 && child.hasNext()) {
+                Entry e = new Entry(child.next(), seq++);
+                if (heap.size() < n)
+                    heap.add(e);
+                else if (compare(e, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(e);
+                }
+            }
+            top = new Tuple[heap.size()];
+            for (int i = top.length - 1; i >= 0; i--)
+                top[i] = heap.poll().t;
+            pos = 0;
+        }
+
+        public boolean hasNext() {
+            return top != null && pos < top.length;
+        }
+
+        public Tuple next() throws NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return top[pos++];
+        }
+
+        public void rewind() {
+            pos = 0;
+        }
+
+        public void close() {
+            top = null;
+        }
+    }
+}
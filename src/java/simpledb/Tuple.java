@@ -1,6 +1,6 @@
 package simpledb;
 
-import java.io.Serializable;
+import java.io.*;
 import java.util.*;
 
 /**
@@ -29,6 +29,16 @@ public class Tuple implements Serializable {
         this.tFields = new Field[td.numFields()];
     }
 
+    /**
+     * Constructor for subclasses that keep their field values in their own
+     * storage rather than in an array of Field objects.
+     */
+    Tuple(TupleDesc td, Field[] fields) {
+        if(td.numFields()<1) throw new UnsupportedOperationException();
+        this.schema = td;
+        this.tFields = fields;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -81,6 +91,74 @@ public class Tuple implements Serializable {
         return tFields[i];
     }
 
+    /**
+     * @return the value of the ith field, which must be of type
+     *         {@link Type#INT_TYPE}. Tuples with a packed representation
+     *         answer this without allocating a Field.
+     * 
+     * @param i
+     *            field index to return. Must be a valid index.
+     */
+    public int getInt(int i) {
+        return ((IntField) getField(i)).getValue();
+    }
+
+    /**
+     * Write the fields of this tuple, in order, to the specified
+     * DataOutputStream using the on-disk format of each field.
+     * 
+     * @param dos
+     *            The DataOutputStream to write to.
+     */
+    public void serialize(DataOutputStream dos) throws IOException {
+        for(Field f : tFields){
+            f.serialize(dos);
+        }
+    }
+
+    /**
+     * Create a new tuple with schema td holding the fields of this tuple
+     * listed in fieldIds, in that order.
+     * 
+     * @param td
+     *            the schema of the result; its ith field must have the type
+     *            of field fieldIds[i] of this tuple.
+     * @param fieldIds
+     *            indexes of the fields of this tuple to copy
+     */
+    public Tuple project(TupleDesc td, int[] fieldIds) {
+        Tuple t = new Tuple(td);
+        for(int i=0; i<fieldIds.length; i++){
+            t.setField(i, getField(fieldIds[i]));
+        }
+        return t;
+    }
+
+    /**
+     * Create a new tuple with schema td whose fields are the fields of t1
+     * followed by the fields of t2. If both inputs are {@link CompactTuple}s
+     * the result is packed as well, without materializing any Field.
+     * 
+     * @param td
+     *            the schema of the result, normally
+     *            TupleDesc.merge(t1.getTupleDesc(), t2.getTupleDesc())
+     */
+    public static Tuple merge(TupleDesc td, Tuple t1, Tuple t2) {
+        if(t1 instanceof CompactTuple && t2 instanceof CompactTuple){
+            return CompactTuple.merge(td, (CompactTuple) t1, (CompactTuple) t2);
+        }
+        Tuple t = new Tuple(td);
+        int n1 = t1.getTupleDesc().numFields();
+        int n2 = t2.getTupleDesc().numFields();
+        for(int i=0; i<n1; i++){
+            t.setField(i, t1.getField(i));
+        }
+        for(int i=0; i<n2; i++){
+            t.setField(n1 + i, t2.getField(i));
+        }
+        return t;
+    }
+
     /**
      * Returns the contents of this Tuple as a string. Note that to pass the
      * system tests, the format needs to be as follows:
@@ -92,8 +170,8 @@ public class Tuple implements Serializable {
     public String toString() {
         StringBuffer sb = new StringBuffer();
         int len = this.schema.numFields();
-        for(Field f : tFields){
-            sb.append(f + "\t");
+        for(int i=0; i<len; i++){
+            sb.append(getField(i) + "\t");
         }
         sb.deleteCharAt(sb.length()-1);
         sb.append("\n");
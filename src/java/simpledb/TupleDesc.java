@@ -48,6 +48,10 @@ public class TupleDesc implements Serializable {
 
     private ArrayList<TDItem> tdItems; 
 
+    // byte offset of each field within a serialized tuple, fixed at construction
+    private final int[] offsets;
+    private final int size;
+
     /**
      * Create a new TupleDesc with typeAr.length fields with fields of the
      * specified types, with associated named fields.
@@ -77,6 +81,8 @@ public class TupleDesc implements Serializable {
                 tdItems.add(new TDItem(typeAr[j], ""));
             }
         } 
+        offsets = layout(tdItems);
+        size = offsets[tdItems.size()];
     }
 
     /**
@@ -96,6 +102,8 @@ public class TupleDesc implements Serializable {
         for(int i=0; i<len; i++){
             tdItems.add(new TDItem(typeAr[i], ""));
         }
+        offsets = layout(tdItems);
+        size = offsets[tdItems.size()];
     }
 
     /**
@@ -157,11 +165,33 @@ public class TupleDesc implements Serializable {
      *         Note that tuples from a given TupleDesc are of a fixed size.
      */
     public int getSize() {
-        int size = 0;
-        for(int i=0; i<this.numFields(); i++){
-            size += this.getFieldType(i).getLen();
+        return this.size;
+    }
+
+    /**
+     * Gets the byte offset of the ith field within the serialized form of a
+     * tuple with this TupleDesc (the layout used on HeapPages and by
+     * {@link CompactTuple}).
+     * 
+     * @param i
+     *            The index of the field. It must be a valid index.
+     * @return the offset of the ith field, in bytes
+     * @throws NoSuchElementException
+     *             if i is not a valid field reference.
+     */
+    public int getFieldOffset(int i) throws NoSuchElementException {
+    	if(i<0 || i>=this.numFields()) throw new NoSuchElementException();
+        return this.offsets[i];
+    }
+
+    // offsets of each field followed by the total size, in a single array
+    private static int[] layout(ArrayList<TDItem> items) {
+        int n = items.size();
+        int[] offs = new int[n + 1];
+        for(int i=0; i<n; i++){
+            offs[i + 1] = offs[i] + items.get(i).fieldType.getLen();
         }
-        return size;
+        return offs;
     }
 
     /**
@@ -0,0 +1,304 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * TupleSorter sorts tuples on one or more fields, each ascending or
+ * descending. Rather than comparing Fields, it extracts a normalized key from
+ * every tuple once, sorts the keys, and then permutes the tuples:
+ * <ul>
+ * <li>For a single INT_TYPE field, the key is the value with its sign bit
+ * flipped (inverted for descending), packed with the tuple's position into a
+ * long, so the sort is a plain sort of longs.</li>
+ * <li>Otherwise the key is a fixed-width byte string per tuple: four
+ * big-endian bytes per int field with the sign bit flipped, and the padded
+ * bytes plus the length for a string field, with every byte of a descending
+ * field inverted. Keys compare as unsigned bytes.</li>
+ * </ul>
+ * Large inputs are sorted with a parallel merge sort on a shared
+ * ForkJoinPool. The sort is stable.
+ */
+public class TupleSorter {
+
+    /** Inputs smaller than this are sorted on the calling thread. */
+    static final int PARALLEL_THRESHOLD = 1 << 13;
+
+    private static ForkJoinPool pool;
+
+    private final int[] fields;
+    private final boolean[] asc;
+    private final Type[] types;
+    private final int keyWidth;
+
+    /**
+     * Constructor.
+     *
+     * @param td
+     *            the schema of the tuples to sort
+     * @param fields
+     *            the fields to sort on, most significant first
+     * @param asc
+     *            for each field, true to sort it ascending
+     */
+    public TupleSorter(TupleDesc td, int[] fields, boolean[] asc) {
+        if (fields.length == 0 || fields.length != asc.length)
+            throw new IllegalArgumentException("need one direction per sort field");
+        this.fields = fields.clone();
+        this.asc = asc.clone();
+        this.types = new Type[fields.length];
+        int w = 0;
+        for (int i = 0; i < fields.length; i++) {
+            types[i] = td.getFieldType(fields[i]);
+            w += types[i] == Type.INT_TYPE ? 4 : Type.STRING_LEN + 1;
+        }
+        this.keyWidth = w;
+    }
+
+    /**
+     * Constructor for a sort on a single field.
+     */
+    public TupleSorter(TupleDesc td, int field, boolean asc) {
+        this(td, new int[] { field }, new boolean[] { asc });
+    }
+
+    static synchronized ForkJoinPool pool() {
+        if (pool == null)
+            pool = new ForkJoinPool();
+        return pool;
+    }
+
+    /**
+     * @return a comparator giving the same order as {@link #sort}, without
+     *         the position tie-break
+     */
+    public Comparator<Tuple> comparator() {
+        return new KeyComparator();
+    }
+
+    /**
+     * Sort tuples in place.
+     */
+    public void sort(List<Tuple> tuples) {
+        int n = tuples.size();
+        if (n < 2)
+            return;
+        Tuple[] a = tuples.toArray(new Tuple[n]);
+        sort(a);
+        for (int i = 0; i < n; i++)
+            tuples.set(i, a[i]);
+    }
+
+    /**
+     * Sort tuples in place.
+     */
+    public void sort(Tuple[] tuples) {
+        int n = tuples.length;
+        if (n < 2)
+            return;
+        int[] perm;
+        if (fields.length == 1 && types[0] == Type.INT_TYPE)
+            perm = sortIntKeys(tuples);
+        else
+            perm = sortByteKeys(tuples);
+        Tuple[] sorted = new Tuple[n];
+        for (int i = 0; i < n; i++)
+            sorted[i] = tuples[perm[i]];
+        System.arraycopy(sorted, 0, tuples, 0, n);
+    }
+
+    /**
+     * @return the int v mapped to an unsigned 32-bit value with the same
+     *         order (reversed if descending)
+     */
+    private static int normalize(int v, boolean asc) {
+        v ^= 0x80000000;
+        return asc ? v : ~v;
+    }
+
+    private int[] sortIntKeys(Tuple[] tuples) {
+        int n = tuples.length;
+        int f = fields[0];
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            long k = normalize(tuples[i].getInt(f), asc[0]) & 0xffffffffL;
+            keys[i] = (k << 32) | i;
+        }
+        // Arrays.sort sorts longs as signed values
+        for (int i = 0; i < n; i++)
+            keys[i] ^= Long.MIN_VALUE;
+        if (n < PARALLEL_THRESHOLD)
+            Arrays.sort(keys);
+        else
+            pool().invoke(new LongSortTask(keys, new long[n], 0, n));
+        int[] perm = new int[n];
+        for (int i = 0; i < n; i++)
+            perm[i] = (int) keys[i];
+        return perm;
+    }
+
+    private int[] sortByteKeys(Tuple[] tuples) {
+        int n = tuples.length;
+        byte[] keys = new byte[n * keyWidth];
+        for (int i = 0; i < n; i++)
+            writeKey(tuples[i], keys, i * keyWidth);
+        int[] perm = new int[n];
+        for (int i = 0; i < n; i++)
+            perm[i] = i;
+        ByteKeySortTask task = new ByteKeySortTask(keys, keyWidth, perm,
+                new int[n], 0, n);
+        if (n < PARALLEL_THRESHOLD)
+            task.compute();
+        else
+            pool().invoke(task);
+        return perm;
+    }
+
+    /**
+     * Write the normalized key of t into dst at off.
+     */
+    void writeKey(Tuple t, byte[] dst, int off) {
+        for (int i = 0; i < fields.length; i++) {
+            int start = off;
+            if (types[i] == Type.INT_TYPE) {
+                CompactTuple.writeInt(dst, off, normalize(t.getInt(fields[i]), true));
+                off += 4;
+            } else {
+                ((StringField) t.getField(fields[i])).writeSortKey(dst, off);
+                off += Type.STRING_LEN + 1;
+            }
+            if (!asc[i]) {
+                for (int j = start; j < off; j++)
+                    dst[j] = (byte) ~dst[j];
+            }
+        }
+    }
+
+    /**
+     * Merge sort of keys[from..to) using tmp as scratch space; halves are
+     * sorted in parallel down to PARALLEL_THRESHOLD elements.
+     */
+    private static class LongSortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final long[] keys, tmp;
+        final int from, to;
+
+        LongSortTask(long[] keys, long[] tmp, int from, int to) {
+            this.keys = keys;
+            this.tmp = tmp;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < PARALLEL_THRESHOLD) {
+                Arrays.sort(keys, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new LongSortTask(keys, tmp, from, mid),
+                    new LongSortTask(keys, tmp, mid, to));
+            System.arraycopy(keys, from, tmp, from, to - from);
+            int i = from, j = mid, k = from;
+            while (i < mid && j < to)
+                keys[k++] = tmp[i] <= tmp[j] ? tmp[i++] : tmp[j++];
+            while (i < mid)
+                keys[k++] = tmp[i++];
+            while (j < to)
+                keys[k++] = tmp[j++];
+        }
+    }
+
+    /**
+     * Stable merge sort of perm[from..to) by the fixed-width keys the
+     * entries point at.
+     */
+    private static class ByteKeySortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final byte[] keys;
+        final int width;
+        final int[] perm, tmp;
+        final int from, to;
+
+        ByteKeySortTask(byte[] keys, int width, int[] perm, int[] tmp,
+                int from, int to) {
+            this.keys = keys;
+            this.width = width;
+            this.perm = perm;
+            this.tmp = tmp;
+            this.from = from;
+            this.to = to;
+        }
+
+        private int compare(int a, int b) {
+            int oa = a * width, ob = b * width;
+            for (int i = 0; i < width; i++) {
+                int c = (keys[oa + i] & 0xff) - (keys[ob + i] & 0xff);
+                if (c != 0)
+                    return c;
+            }
+            return 0;
+        }
+
+        @Override
+        protected void compute() {
+            int n = to - from;
+            if (n < 16) {
+                for (int i = from + 1; i < to; i++) {
+                    int p = perm[i];
+                    int j = i - 1;
+                    while (j >= from && compare(perm[j], p) > 0) {
+                        perm[j + 1] = perm[j];
+                        j--;
+                    }
+                    perm[j + 1] = p;
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            ByteKeySortTask left = new ByteKeySortTask(keys, width, perm, tmp, from, mid);
+            ByteKeySortTask right = new ByteKeySortTask(keys, width, perm, tmp, mid, to);
+            if (n < PARALLEL_THRESHOLD) {
+                left.compute();
+                right.compute();
+            } else {
+                invokeAll(left, right);
+            }
+            if (compare(perm[mid - 1], perm[mid]) <= 0)
+                return;
+            System.arraycopy(perm, from, tmp, from, n);
+            int i = from, j = mid, k = from;
+            while (i < mid && j < to)
+                perm[k++] = compare(tmp[i], tmp[j]) <= 0 ? tmp[i++] : tmp[j++];
+            while (i < mid)
+                perm[k++] = tmp[i++];
+            while (j < to)
+                perm[k++] = tmp[j++];
+        }
+    }
+
+    /**
+     * Compares two tuples field by field, without building keys; used to
+     * merge sorted runs.
+     */
+    private class KeyComparator implements Comparator<Tuple> {
+        public int compare(Tuple a, Tuple b) {
+            for (int i = 0; i < fields.length; i++) {
+                int f = fields[i];
+                int c;
+                if (types[i] == Type.INT_TYPE) {
+                    int x = a.getInt(f);
+                    int y = b.getInt(f);
+                    c = x < y ? -1 : (x == y ? 0 : 1);
+                } else {
+                    c = ((StringField) a.getField(f))
+                            .compareBytes((StringField) b.getField(f));
+                }
+                if (c != 0)
+                    return asc[i] ? c : -c;
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * TupleSpillFile is a temporary, append-only file of tuples used by operators
+ * that run out of memory (partitioned joins, external sorts, spilling
+ * aggregates). Tuples are written in their on-page format with
+ * {@link Tuple#serialize}, so every record is exactly td.getSize() bytes, and
+ * are read back as {@link CompactTuple}s.
+ * <p>
+ * A spill file is first written with {@link #add}, then read any number of
+ * times through {@link #iterator}. The file is deleted by {@link #delete}, or
+ * when the JVM exits.
+ */
+public class TupleSpillFile {
+
+    private static final int BUFFER_SIZE = BufferPool.PAGE_SIZE;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int count;
+
+    /**
+     * Create a new, empty spill file for tuples with schema td.
+     *
+     * @throws DbException
+     *             if the temporary file can't be created
+     */
+    public TupleSpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            this.file = File.createTempFile("spill", ".dat");
+            this.file.deleteOnExit();
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e);
+        }
+    }
+
+    /**
+     * @return the schema of the tuples in this file
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of tuples added to this file
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Append t to the end of the file. Must not be called once the file has
+     * been read.
+     */
+    public void add(Tuple t) throws DbException {
+        if (out == null)
+            throw new IllegalStateException("spill file already finished");
+        try {
+            t.serialize(out);
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e);
+        }
+        count++;
+    }
+
+    /**
+     * Flush and close the file for writing. Called implicitly by
+     * {@link #iterator}.
+     */
+    public void finish() throws DbException {
+        if (out == null)
+            return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e);
+        }
+        out = null;
+    }
+
+    /**
+     * @return an iterator over the tuples in this file, in the order they
+     *         were added. The iterator must be opened before use.
+     */
+    public DbFileIterator iterator() throws DbException {
+        finish();
+        return new SpillFileIterator();
+    }
+
+    /**
+     * Close and remove the file from disk.
+     */
+    public void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // we're throwing the file away anyway
+            }
+            out = null;
+        }
+        file.delete();
+    }
+
+    private class SpillFileIterator implements DbFileIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient DataInputStream in;
+        private int read;
+
+        public void open() throws DbException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file), BUFFER_SIZE));
+            } catch (IOException e) {
+                throw new DbException("could not open spill file: " + e);
+            }
+            read = 0;
+        }
+
+        public boolean hasNext() {
+            return in != null && read < count;
+        }
+
+        public Tuple next() throws DbException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            byte[] data = new byte[td.getSize()];
+            try {
+                in.readFully(data);
+            } catch (IOException e) {
+                throw new DbException("could not read spill file: " + e);
+            }
+            read++;
+            return new CompactTuple(td, data);
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing useful to do
+                }
+                in = null;
+            }
+        }
+    }
+}
@@ -24,6 +24,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(byte[] data, int offset) {
+            return new IntField(CompactTuple.readInt(data, offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -35,13 +40,19 @@ public enum Type implements Serializable {
             try {
                 int strLen = dis.readInt();
                 byte bs[] = new byte[strLen];
-                dis.read(bs);
+                dis.readFully(bs);
                 dis.skipBytes(STRING_LEN-strLen);
-                return new StringField(new String(bs), STRING_LEN);
+                return new StringField(bs, 0, strLen, STRING_LEN);
             } catch (IOException e) {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(byte[] data, int offset) {
+            int strLen = CompactTuple.readInt(data, offset);
+            return new StringField(data, offset + 4, strLen, STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +71,12 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the serialized field starting at data[offset].
+   * @param data The buffer holding the serialized field
+   * @param offset The position of the first byte of the field in data
+   */
+    public abstract Field parse(byte[] data, int offset);
+
 }
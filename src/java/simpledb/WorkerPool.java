@@ -0,0 +1,159 @@
+package simpledb;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * WorkerPool runs the tasks of parallel operators, such as the morsel
+ * workers of a {@link ParallelSeqScan}. Threads are created on demand, kept
+ * for a while once idle, and are daemons, so an unfinished query never keeps
+ * the JVM alive. How many tasks a query runs at once is up to its operators.
+ */
+public class WorkerPool {
+
+    private static ExecutorService pool;
+
+    private static synchronized ExecutorService pool() {
+        if (pool == null) {
+            final AtomicInteger n = new AtomicInteger();
+            pool = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-worker-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * Run task on a worker thread.
+     */
+    public static Future<?> submit(Runnable task) {
+        return pool().submit(task);
+    }
+
+    /** The work one worker does in a phase of a parallel operator. */
+    interface Work {
+        void run(int worker) throws DbException, TransactionAbortedException;
+    }
+
+    /**
+     * Run work on workers worker threads, numbered 0 to workers - 1, and wait
+     * for all of them; rethrows the first error any of them hit.
+     */
+    static void runOnWorkers(int workers, final Work work) throws DbException,
+            TransactionAbortedException {
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Future<?>[] tasks = new Future<?>[workers];
+        for (int w = 0; w < workers; w++) {
+            final int me = w;
+            tasks[w] = submit(new Runnable() {
+                public void run() {
+                    try {
+                        work.run(me);
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        boolean interrupted = false;
+        for (Future<?> task : tasks) {
+            while (true) {
+                try {
+                    task.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (error.get() != null)
+            rethrow(error.get());
+    }
+
+    /**
+     * Rethrow, on the consuming thread, the error a worker task failed with,
+     * keeping its type where a DbIterator method may throw it.
+     */
+    static void rethrow(Throwable e) throws DbException, TransactionAbortedException {
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof DbException)
+            throw (DbException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        throw new DbException("worker failed: " + e);
+    }
+
+    // Thread.ofVirtual(), or null if there is none. It exists only from JDK
+    // 21 on, so a direct call would neither compile with an older JDK nor
+    // link on an older JVM; build.xml's source level (1.5) has nothing to
+    // do with it, as it limits the language, not the class library.
+    private static final Method OF_VIRTUAL = ofVirtual();
+
+    private static Method ofVirtual() {
+        try {
+            return Thread.class.getMethod("ofVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether this JVM has virtual threads, which appeared in Java 21
+     */
+    public static boolean virtualThreadsAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Returns a factory of the threads sessions run their statements on, named
+     * prefix followed by a number. Virtual threads cost little while they
+     * wait, on the network, on a page read or on a lock, so a server can keep
+     * one per session even when there are thousands. Without them the
+     * threads are platform daemon threads.
+     *
+     * @param virtual
+     *            whether to make virtual threads, if the JVM has them
+     */
+    public static ThreadFactory sessionThreads(final String prefix, boolean virtual) {
+        if (virtual && OF_VIRTUAL != null) {
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                Method name = builder.getMethod("name", String.class, long.class);
+                Method factory = builder.getMethod("factory");
+                return (ThreadFactory) factory.invoke(name.invoke(
+                        OF_VIRTUAL.invoke(null), prefix, 1L));
+            } catch (Exception e) {
+                throw new RuntimeException("can't make virtual threads", e);
+            }
+        }
+        final AtomicInteger n = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * @return the number of workers a query should use by default: one per
+     *         available processor
+     */
+    public static int defaultWorkers() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+}
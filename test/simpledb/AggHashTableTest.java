@@ -0,0 +1,150 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class AggHashTableTest extends SimpleDbTestBase {
+
+  private static final Aggregator.Op[] ALL = { Aggregator.Op.MIN,
+      Aggregator.Op.MAX, Aggregator.Op.SUM, Aggregator.Op.AVG,
+      Aggregator.Op.COUNT };
+
+  private static Tuple tuple(TupleDesc td, Object... values) {
+    Tuple t = new Tuple(td);
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] instanceof Integer)
+        t.setField(i, new IntField((Integer) values[i]));
+      else
+        t.setField(i, new StringField((String) values[i], Type.STRING_LEN));
+    }
+    return t;
+  }
+
+  /**
+   * Many int groups force the table to grow; every group keeps its own
+   * states and the groups come out in first-seen order
+   */
+  @Test public void intKeys() {
+    TupleDesc td = Utility.getTupleDesc(2);
+    AggHashTable table = new AggHashTable(new Type[] { Type.INT_TYPE }, ALL);
+    int n = 10000;
+    for (int round = 0; round < 3; round++) {
+      for (int k = 0; k < n; k++) {
+        int key = (k * 7919) - n / 2;
+        int g = table.group(tuple(td, key, k + round), new int[] { 0 });
+        for (int a = 0; a < ALL.length; a++)
+          table.add(g, a, k + round);
+      }
+    }
+    assertEquals(n, table.size());
+    for (int g = 0; g < n; g++) {
+      Tuple out = new Tuple(Utility.getTupleDesc(1));
+      table.writeKey(g, out, 0);
+      assertEquals((g * 7919) - n / 2, out.getInt(0));
+      assertEquals(g, table.result(g, 0));
+      assertEquals(g + 2, table.result(g, 1));
+      assertEquals(3 * g + 3, table.result(g, 2));
+      assertEquals(g + 1, table.result(g, 3));
+      assertEquals(3, table.result(g, 4));
+    }
+  }
+
+  /**
+   * Composite keys of strings and ints are compared as bytes
+   */
+  @Test public void compositeKeys() {
+    TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE,
+        Type.INT_TYPE, Type.INT_TYPE });
+    AggHashTable table = new AggHashTable(new Type[] { Type.STRING_TYPE,
+        Type.INT_TYPE }, new Aggregator.Op[] { Aggregator.Op.COUNT });
+    Map<String, Integer> expected = new HashMap<String, Integer>();
+    String[] words = { "", "a", "ab", "b", "ba" };
+    for (int i = 0; i < 2000; i++) {
+      String w = words[i % words.length];
+      int k = i % 7;
+      int g = table.group(tuple(td, w, k, i), new int[] { 0, 1 });
+      table.count(g, 0);
+      String key = w + "/" + k;
+      expected.put(key, expected.containsKey(key) ? expected.get(key) + 1 : 1);
+    }
+    assertEquals(expected.size(), table.size());
+    TupleDesc outTd = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+    for (int g = 0; g < table.size(); g++) {
+      Tuple out = new Tuple(outTd);
+      table.writeKey(g, out, 0);
+      String key = ((StringField) out.getField(0)).getValue() + "/" + out.getInt(1);
+      assertEquals((int) expected.get(key), table.result(g, 0));
+    }
+  }
+
+  /**
+   * Without key fields there is a single group, created by the first row
+   */
+  @Test public void noGrouping() {
+    TupleDesc td = Utility.getTupleDesc(1);
+    AggHashTable table = new AggHashTable(new Type[0],
+        new Aggregator.Op[] { Aggregator.Op.SUM });
+    assertEquals(0, table.size());
+    for (int i = 1; i <= 100; i++)
+      table.add(table.group(tuple(td, i), new int[0]), 0, i);
+    assertEquals(1, table.size());
+    assertEquals(5050, table.result(0, 0));
+  }
+
+  /**
+   * Merging tables built over parts of the input gives the states of one
+   * table built over all of it, for int, composite and no keys
+   */
+  @Test public void merge() {
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE,
+        Type.INT_TYPE });
+    int[][] keyFields = { { 0 }, { 1, 0 }, {} };
+    Type[][] keyTypes = { { Type.INT_TYPE }, { Type.STRING_TYPE, Type.INT_TYPE }, {} };
+    for (int k = 0; k < keyFields.length; k++) {
+      AggHashTable all = new AggHashTable(keyTypes[k], ALL);
+      AggHashTable[] parts = new AggHashTable[3];
+      for (int p = 0; p < parts.length; p++)
+        parts[p] = new AggHashTable(keyTypes[k], ALL);
+      for (int i = 0; i < 3000; i++) {
+        Tuple t = tuple(td, i % 400, "s" + (i % 300), i - 1500);
+        // the parts see overlapping but different groups
+        AggHashTable part = parts[i < 1000 ? 0 : i % 2 + 1];
+        int g = all.group(t, keyFields[k]), pg = part.group(t, keyFields[k]);
+        for (int a = 0; a < ALL.length; a++) {
+          all.add(g, a, i - 1500);
+          part.add(pg, a, i - 1500);
+        }
+      }
+      AggHashTable merged = new AggHashTable(keyTypes[k], ALL);
+      for (AggHashTable part : parts)
+        merged.merge(part);
+      assertEquals(all.size(), merged.size());
+      TupleDesc outTd = new TupleDesc(keyTypes[k].length == 0 ? new Type[] {
+          Type.INT_TYPE } : keyTypes[k]);
+      for (int g = 0; g < merged.size(); g++) {
+        Tuple key = new Tuple(outTd);
+        merged.writeKey(g, key, 0);
+        Tuple probe = keyFields[k].length == 0 ? tuple(td, 0, "", 0)
+            : keyFields[k].length == 1 ? tuple(td, key.getInt(0), "", 0)
+            : tuple(td, key.getInt(1), ((StringField) key.getField(0)).getValue(), 0);
+        int ag = all.find(probe, keyFields[k]);
+        for (int a = 0; a < ALL.length; a++)
+          assertEquals(all.result(ag, a), merged.result(g, a));
+      }
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(AggHashTableTest.class);
+  }
+}
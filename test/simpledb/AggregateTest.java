@@ -3,6 +3,12 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
@@ -176,6 +182,196 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  private static List<String> sortedOutput(DbIterator it) throws Exception {
+    List<String> out = new ArrayList<String>();
+    while (it.hasNext())
+      out.add(it.next().toString());
+    Collections.sort(out);
+    return out;
+  }
+
+  /**
+   * With more groups than fit in memory, the input is partitioned to disk,
+   * partitions that are still too large are split again, and the result is
+   * the same as aggregating in memory
+   */
+  @Test public void spilledGroups() throws Exception {
+    int n = 5000;
+    int[] ints = new int[2 * n];
+    Object[] strings = new Object[2 * n];
+    for (int i = 0; i < n; i++) {
+      ints[2 * i] = (i * 7) % 3001;
+      ints[2 * i + 1] = i;
+      strings[2 * i] = "g" + (i % 1777);
+      strings[2 * i + 1] = i;
+    }
+    for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.SUM,
+        Aggregator.Op.AVG, Aggregator.Op.COUNT }) {
+      for (boolean str : new boolean[] { false, true }) {
+        DbIterator expected = new Aggregate(str ? TestUtil.createTupleList(2, strings)
+            : TestUtil.createTupleList(2, ints), 1, 0, op);
+        Aggregate actual = new Aggregate(str ? TestUtil.createTupleList(2, strings)
+            : TestUtil.createTupleList(2, ints), 1, 0, op);
+        actual.setMaxGroups(100);
+        expected.open();
+        actual.open();
+        List<String> all = sortedOutput(expected);
+        assertEquals(all, sortedOutput(actual));
+        actual.rewind();
+        assertEquals(all, sortedOutput(actual));
+        actual.close();
+        expected.close();
+      }
+    }
+  }
+
+  /**
+   * Aggregating in parallel, thread-local then merged, gives the answer of
+   * the serial Aggregate, with and without grouping, and can be rewound
+   */
+  @Test public void parallel() throws Exception {
+    int n = 20000;
+    Object[] values = new Object[3 * n];
+    for (int i = 0; i < n; i++) {
+      values[3 * i] = (i * 7) % 501;
+      values[3 * i + 1] = "g" + (i % 37);
+      values[3 * i + 2] = i - n / 3;
+    }
+    Aggregator.Op[] ops = { Aggregator.Op.COUNT, Aggregator.Op.SUM,
+        Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.AVG,
+        Aggregator.Op.COUNT };
+    int[] afields = { 2, 2, 2, 2, 2, 1 };
+    int[][] groupings = { {}, { 0 }, { 1, 0 } };
+    for (int[] gfields : groupings) {
+      DbIterator expected = new Aggregate(TestUtil.createTupleList(3, values),
+          afields, ops, gfields);
+      expected.open();
+      List<String> all = sortedOutput(expected);
+      expected.close();
+      for (int workers = 2; workers <= 8; workers *= 2) {
+        Aggregate actual = new Aggregate(TestUtil.createTupleList(3, values),
+            afields, ops, gfields);
+        actual.setWorkers(workers);
+        actual.open();
+        assertEquals(all, sortedOutput(actual));
+        actual.rewind();
+        assertEquals(all, sortedOutput(actual));
+        actual.close();
+      }
+    }
+  }
+
+  /**
+   * A parallel aggregate with more groups than it may hold spills the
+   * tuples of new groups and still gives the answer of the serial Aggregate
+   */
+  @Test public void parallelSpill() throws Exception {
+    int n = 20000;
+    Object[] values = new Object[3 * n];
+    for (int i = 0; i < n; i++) {
+      values[3 * i] = (i * 7) % 501;
+      values[3 * i + 1] = "g" + (i % 37);
+      values[3 * i + 2] = i - n / 3;
+    }
+    Aggregator.Op[] ops = { Aggregator.Op.COUNT, Aggregator.Op.SUM,
+        Aggregator.Op.MIN, Aggregator.Op.AVG };
+    int[] afields = { 2, 2, 2, 2 };
+    int[] gfields = { 0, 1 };
+    DbIterator expected = new Aggregate(TestUtil.createTupleList(3, values),
+        afields, ops, gfields);
+    expected.open();
+    List<String> all = sortedOutput(expected);
+    expected.close();
+    for (int workers = 2; workers <= 8; workers *= 2) {
+      Aggregate actual = new Aggregate(TestUtil.createTupleList(3, values),
+          afields, ops, gfields);
+      actual.setWorkers(workers);
+      actual.setMaxGroups(500);
+      actual.open();
+      assertEquals(all, sortedOutput(actual));
+      actual.rewind();
+      assertEquals(all, sortedOutput(actual));
+      actual.close();
+    }
+  }
+
+  /**
+   * Several aggregates grouped by two columns come out of one Aggregate,
+   * group fields first
+   */
+  @Test public void multipleAggregates() throws Exception {
+    DbIterator input = TestUtil.createTupleList(3,
+        new int[] { 1, 1, 2,
+                    1, 1, 4,
+                    1, 2, 6,
+                    2, 1, 3,
+                    2, 1, 5,
+                    1, 1, 9 });
+    Aggregator.Op[] ops = { Aggregator.Op.COUNT, Aggregator.Op.SUM,
+        Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.AVG };
+    Aggregate op = new Aggregate(input, new int[] { 2, 2, 2, 2, 2 }, ops,
+        new int[] { 0, 1 });
+    assertEquals(Utility.getTupleDesc(7), op.getTupleDesc());
+    op.open();
+    DbIterator expected = TestUtil.createTupleList(7,
+        new int[] { 1, 1, 3, 15, 2, 9, 5,
+                    1, 2, 1, 6, 6, 6, 6,
+                    2, 1, 2, 8, 3, 5, 4 });
+    expected.open();
+    assertEquals(sortedOutput(expected), sortedOutput(op));
+    op.close();
+  }
+
+  /**
+   * The parser plans every aggregate and GROUP BY field of a query into a
+   * single Aggregate, and projects its columns in SELECT list order
+   */
+  @Test public void parseMultipleAggregates() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < 100; i++) {
+      ArrayList<Integer> t = new ArrayList<Integer>();
+      t.add(i % 2);
+      t.add(i % 3);
+      t.add(i);
+      tuples.add(t);
+    }
+    File f = File.createTempFile("multiagg", ".dat");
+    f.deleteOnExit();
+    HeapFileEncoder.convert(tuples, f, BufferPool.PAGE_SIZE, 3);
+    Database.getCatalog().addTable(Utility.openHeapFile(3, "c", f), "ma");
+
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT ma.c1, MAX(ma.c2), ma.c0, COUNT(ma.c2), MIN(ma.c2) FROM ma GROUP BY ma.c0, ma.c1;");
+    DbIterator plan = lp.physicalPlan(tid, new HashMap<String, TableStats>(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof Aggregate);
+    plan.open();
+    List<String> actual = sortedOutput(plan);
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+
+    List<String> expected = new ArrayList<String>();
+    for (int c0 = 0; c0 < 2; c0++) {
+      for (int c1 = 0; c1 < 3; c1++) {
+        int count = 0, min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (int i = 0; i < 100; i++) {
+          if (i % 2 == c0 && i % 3 == c1) {
+            count++;
+            min = Math.min(min, i);
+            max = Math.max(max, i);
+          }
+        }
+        Tuple t = new Tuple(Utility.getTupleDesc(5));
+        int[] values = { c1, max, c0, count, min };
+        for (int j = 0; j < 5; j++)
+          t.setField(j, new IntField(values[j]));
+        expected.add(t.toString());
+      }
+    }
+    Collections.sort(expected);
+    assertEquals(expected, actual);
+  }
+
   /**
    * JUnit suite target
    */
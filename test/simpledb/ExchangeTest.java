@@ -0,0 +1,284 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+  /**
+   * Produces the tuples (i % keys, i) for i in [from, to), and can fail with
+   * a TransactionAbortedException after some tuples
+   */
+  static class Source extends Operator {
+    private static final long serialVersionUID = 1L;
+    final int from, to, keys, failAt;
+    volatile boolean open;
+    int i;
+
+    Source(int from, int to, int keys, int failAt) {
+      this.from = from;
+      this.to = to;
+      this.keys = keys;
+      this.failAt = failAt;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+      i = from;
+      open = true;
+      super.open();
+    }
+
+    public void close() {
+      super.close();
+      open = false;
+    }
+
+    public void rewind() {
+      i = from;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException {
+      if (i == failAt)
+        throw new TransactionAbortedException();
+      if (i == to)
+        return null;
+      Tuple t = new Tuple(getTupleDesc());
+      t.setField(0, new IntField(i % keys));
+      t.setField(1, new IntField(i));
+      i++;
+      return t;
+    }
+
+    public TupleDesc getTupleDesc() {
+      return Utility.getTupleDesc(2);
+    }
+
+    public DbIterator[] getChildren() {
+      return new DbIterator[0];
+    }
+
+    public void setChildren(DbIterator[] children) {
+    }
+  }
+
+  /** Producers covering [0, n) in equal slices */
+  private static Source[] sources(int producers, int n, int keys) {
+    Source[] s = new Source[producers];
+    for (int p = 0; p < producers; p++)
+      s[p] = new Source(p * n / producers, (p + 1) * n / producers, keys, -1);
+    return s;
+  }
+
+  private static List<Integer> values(DbIterator it) throws Exception {
+    List<Integer> out = new ArrayList<Integer>();
+    while (it.hasNext())
+      out.add(it.next().getInt(1));
+    Collections.sort(out);
+    return out;
+  }
+
+  private static List<Integer> range(int n) {
+    List<Integer> l = new ArrayList<Integer>();
+    for (int i = 0; i < n; i++)
+      l.add(i);
+    return l;
+  }
+
+  /**
+   * Read every consumer on its own thread, as the operators above them would
+   * be; returns the values each one saw
+   */
+  private static List<List<Integer>> drain(final Exchange[] consumers) throws Exception {
+    final List<List<Integer>> out = new ArrayList<List<Integer>>();
+    final Throwable[] error = new Throwable[1];
+    Thread[] threads = new Thread[consumers.length];
+    for (int c = 0; c < consumers.length; c++) {
+      out.add(null);
+      final int me = c;
+      threads[c] = new Thread() {
+        public void run() {
+          try {
+            consumers[me].open();
+            List<Integer> l = values(consumers[me]);
+            consumers[me].close();
+            synchronized (out) {
+              out.set(me, l);
+            }
+          } catch (Throwable e) {
+            error[0] = e;
+          }
+        }
+      };
+      threads[c].start();
+    }
+    for (Thread t : threads)
+      t.join();
+    if (error[0] != null)
+      throw new AssertionError(error[0]);
+    return out;
+  }
+
+  /**
+   * A gather reads every tuple of every producer, more than fits in the queues
+   */
+  @Test public void gather() throws Exception {
+    int n = 100000;
+    Source[] s = sources(3, n, 10);
+    Exchange e = Exchange.gather(s);
+    assertTrue(e.isGather());
+    e.open();
+    assertEquals(range(n), values(e));
+    e.close();
+    for (Source src : s)
+      assertTrue(!src.open);
+  }
+
+  /**
+   * A hash exchange sends each key to exactly one consumer
+   */
+  @Test public void hash() throws Exception {
+    int n = 100000;
+    Exchange[] consumers = Exchange.hash(sources(2, n, 1000), 4, new int[] { 0 });
+    List<List<Integer>> out = drain(consumers);
+    List<Integer> all = new ArrayList<Integer>();
+    Set<Integer> seen = new HashSet<Integer>();
+    for (List<Integer> l : out) {
+      assertTrue(l.size() > 0);
+      Set<Integer> keys = new HashSet<Integer>();
+      for (int v : l)
+        keys.add(v % 1000);
+      for (int k : keys)
+        assertTrue("key " + k + " in two consumers", seen.add(k));
+      all.addAll(l);
+    }
+    Collections.sort(all);
+    assertEquals(range(n), all);
+  }
+
+  /**
+   * Round-robin deals the tuples of a producer out evenly
+   */
+  @Test public void roundRobin() throws Exception {
+    int n = 40000;
+    List<List<Integer>> out = drain(Exchange.roundRobin(sources(1, n, 7), 4));
+    for (List<Integer> l : out)
+      assertEquals(n / 4, l.size());
+  }
+
+  /**
+   * A TransactionAbortedException in a producer is thrown by the consumer,
+   * and closing the consumer still closes every producer
+   */
+  @Test public void producerFailure() throws Exception {
+    Source[] s = { new Source(0, 100000, 10, -1), new Source(0, 100000, 10, 5000) };
+    Exchange e = Exchange.gather(s);
+    e.open();
+    try {
+      while (e.hasNext())
+        e.next();
+      fail("expected TransactionAbortedException");
+    } catch (TransactionAbortedException expected) {
+    }
+    e.close();
+    assertTrue(!s[0].open && !s[1].open);
+  }
+
+  /**
+   * Closing a consumer early stops the producers; a gather can be rewound
+   */
+  @Test public void closeAndRewind() throws Exception {
+    int n = 1000000;
+    Source[] s = sources(2, n, 10);
+    Exchange e = Exchange.gather(s);
+    e.open();
+    e.next();
+    e.close();
+    assertTrue(!s[0].open && !s[1].open);
+
+    e = Exchange.gather(sources(2, 10000, 10));
+    e.open();
+    for (int i = 0; i < 100; i++)
+      e.next();
+    e.rewind();
+    assertEquals(range(10000), values(e));
+    e.close();
+  }
+
+  /**
+   * With several workers the planner runs joins and grouped aggregates in
+   * parallel -- the aggregate, with its few groups, in two phases -- and
+   * repartitions through exchanges once the groups are many; the answer
+   * does not change
+   */
+  @Test public void parallelPlan() throws Exception {
+    ArrayList<ArrayList<Integer>> a = new ArrayList<ArrayList<Integer>>();
+    ArrayList<ArrayList<Integer>> b = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < 20000; i++) {
+      ArrayList<Integer> t = new ArrayList<Integer>();
+      t.add(i);
+      t.add(i % 50);
+      a.add(t);
+      if (i % 3 == 0) {
+        t = new ArrayList<Integer>();
+        t.add(i);
+        t.add(i % 7);
+        b.add(t);
+      }
+    }
+    for (int k = 0; k < 2; k++) {
+      File f = File.createTempFile("exchange", ".dat");
+      f.deleteOnExit();
+      HeapFileEncoder.convert(k == 0 ? a : b, f, BufferPool.PAGE_SIZE, 2);
+      Database.getCatalog().addTable(Utility.openHeapFile(2, "c", f), k == 0 ? "xa" : "xb");
+    }
+    HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put("xa", new TableStats(Database.getCatalog().getTableId("xa"), 1));
+    stats.put("xb", new TableStats(Database.getCatalog().getTableId("xb"), 1));
+
+    String sql = "SELECT xa.c1, COUNT(xb.c1), SUM(xb.c1) FROM xa, xb "
+        + "WHERE xa.c0 = xb.c0 GROUP BY xa.c1;";
+    List<String> serial = null;
+    for (int workers = 1; workers <= 4; workers *= 4) {
+      TransactionId tid = new TransactionId();
+      LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+      lp.setWorkers(workers);
+      DbIterator plan = lp.physicalPlan(tid, stats, false);
+      DbIterator agg = ((Operator) plan).getChildren()[0];
+      if (workers > 1)
+        assertTrue(agg instanceof Aggregate && ((Aggregate) agg).getWorkers() == workers);
+      List<String> out = new ArrayList<String>();
+      plan.open();
+      while (plan.hasNext())
+        out.add(plan.next().toString());
+      plan.close();
+      Database.getBufferPool().transactionComplete(tid);
+      Collections.sort(out);
+      assertEquals(50, out.size());
+      if (serial == null)
+        serial = out;
+      else
+        assertEquals(serial, out);
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExchangeTest.class);
+  }
+}
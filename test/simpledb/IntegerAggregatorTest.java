@@ -1,6 +1,7 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import java.util.NoSuchElementException;
 
@@ -94,6 +95,41 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Aggregators over two halves of the input, merged, average as one
+   * aggregator over all of it does
+   */
+  @Test public void mergePartials() throws Exception {
+    scan1.open();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    IntegerAggregator partial = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    for (int i = 0; scan1.hasNext(); i++)
+      (i % 2 == 0 ? agg : partial).mergeTupleIntoGroup(scan1.next());
+    agg.merge(partial);
+    DbIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1, new int[] { 1, 4, 3, 4, 5, 7 }), it);
+  }
+
+  /**
+   * Aggregators over other fields or with another operator cannot be merged
+   */
+  @Test public void mergeRejectsDifferent() {
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    Aggregator[] others = {
+        new IntegerAggregator(1, Type.INT_TYPE, 1, Aggregator.Op.SUM),
+        new IntegerAggregator(0, Type.INT_TYPE, 0, Aggregator.Op.SUM),
+        new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.MAX),
+        new StringAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.COUNT) };
+    for (Aggregator other : others) {
+      try {
+        agg.merge(other);
+        fail("merged " + other);
+      } catch (IllegalArgumentException e) {
+      }
+    }
+  }
+
   /**
    * Test IntegerAggregator.mergeTupleIntoGroup() and iterator() over a max
    */
@@ -202,6 +202,140 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
 	         Assert.assertTrue(cardinality == 800 || cardinality == 2000);
 	}
 	
+	/**
+	 * Verify that equi-joins on large inputs are costed and instantiated as hash joins,
+	 * range joins as sort-merge joins, and that LIKE falls back to block nested loops
+	 */
+	@Test public void chooseJoinAlgorithmTest() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+		JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid, "SELECT * FROM " + tableName1 + " t1, " + tableName2 + " t2 WHERE t1.c1 = t2.c2;"),
+		new Vector<LogicalJoinNode>());
+
+		LogicalJoinNode eq = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.EQUALS);
+		LogicalJoinNode gt = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.GREATER_THAN);
+		LogicalJoinNode like = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.LIKE);
+
+		Assert.assertEquals(JoinAlgorithm.HASH, j.chooseJoinAlgorithm(eq, 1000, 10000, 100, 1000));
+		Assert.assertEquals(JoinAlgorithm.SORT_MERGE, j.chooseJoinAlgorithm(gt, 1000, 10000, 100, 1000));
+		Assert.assertEquals(JoinAlgorithm.BLOCK_NESTED_LOOP, j.chooseJoinAlgorithm(like, 1000, 10000, 100, 1000));
+		Assert.assertTrue(j.estimateJoinCost(eq, 1000, 10000, 100, 1000)
+				< j.estimateJoinCost(gt, 1000, 10000, 100, 1000));
+
+		DbIterator s1 = new SeqScan(tid, tableId1, "t1");
+		DbIterator s2 = new SeqScan(tid, tableId2, "t2");
+		Assert.assertTrue(JoinOptimizer.instantiateJoin(eq.withAlgorithm(JoinAlgorithm.HASH), s1, s2) instanceof HashEquiJoin);
+		Assert.assertTrue(JoinOptimizer.instantiateJoin(eq.withAlgorithm(JoinAlgorithm.NESTED_LOOP), s1, s2) instanceof Join);
+		Assert.assertTrue(JoinOptimizer.instantiateJoin(gt.withAlgorithm(JoinAlgorithm.SORT_MERGE), s1, s2) instanceof SortMergeJoin);
+		Assert.assertTrue(JoinOptimizer.instantiateJoin(like.withAlgorithm(JoinAlgorithm.BLOCK_NESTED_LOOP), s1, s2) instanceof BlockNestedLoopJoin);
+		Assert.assertEquals(BlockNestedLoopJoin.class, JoinOptimizer.instantiateJoin(gt, s1, s2).getClass());
+		Assert.assertEquals(Join.class, JoinOptimizer.instantiateJoin(eq.withAlgorithm(JoinAlgorithm.NESTED_LOOP), s1, s2).getClass());
+	}
+
+	/**
+	 * Verify that a selective join into a table indexed on the join field is
+	 * costed and instantiated as an index nested-loop join, and that an
+	 * unindexed inner side never is
+	 */
+	@Test public void indexJoinTest() throws ParsingException, IOException {
+		File temp = File.createTempFile("table", ".dat");
+		temp.deleteOnExit();
+		HeapFileEncoder.convert(tuples2, temp, BufferPool.PAGE_SIZE, 10);
+		IndexedHeapFile indexed = new IndexedHeapFile(temp, Utility.getTupleDesc(10, "c"), 2);
+		Database.getCatalog().addTable(indexed, "TI", "c2");
+
+		TransactionId tid = new TransactionId();
+		Parser p = new Parser();
+		JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid, "SELECT * FROM " + tableName1 + " t1, TI t2 WHERE t1.c1 = t2.c2;"),
+		new Vector<LogicalJoinNode>());
+
+		LogicalJoinNode eq = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.EQUALS);
+		LogicalJoinNode other = new LogicalJoinNode("t1", "t2", "c1", "c3", Predicate.Op.EQUALS);
+		double cost2 = new TableStats(tableId2, TableStats.IOCOSTPERPAGE).estimateScanCost();
+
+		Assert.assertEquals(JoinAlgorithm.INDEX_NESTED_LOOP, j.chooseJoinAlgorithm(eq, 10, 10000, 100, cost2));
+		Assert.assertEquals(JoinAlgorithm.HASH, j.chooseJoinAlgorithm(eq, 10000, 10000, 100, cost2));
+		Assert.assertEquals(JoinAlgorithm.HASH, j.chooseJoinAlgorithm(other, 10, 10000, 100, cost2));
+
+		DbIterator s1 = new SeqScan(tid, tableId1, "t1");
+		DbIterator s2 = new SeqScan(tid, indexed.getId(), "t2");
+		LogicalJoinNode probe = eq.withAlgorithm(JoinAlgorithm.INDEX_NESTED_LOOP);
+		Assert.assertTrue(JoinOptimizer.instantiateJoin(probe, s1, s2) instanceof IndexNestedLoopJoin);
+		Assert.assertTrue(JoinOptimizer.instantiateJoin(probe, s1, new SeqScan(tid, tableId2, "t2")) instanceof HashEquiJoin);
+	}
+
+	/**
+	 * Verify that under SET WORKERS 4 a selective join into an indexed table is
+	 * still an index nested-loop join, with only its outer side scanned in
+	 * parallel, and that it returns the same tuples as the serial plan
+	 */
+	@Test public void parallelIndexJoinTest() throws Exception {
+		File temp = File.createTempFile("table", ".dat");
+		temp.deleteOnExit();
+		HeapFileEncoder.convert(tuples2, temp, BufferPool.PAGE_SIZE, 10);
+		IndexedHeapFile indexed = new IndexedHeapFile(temp, Utility.getTupleDesc(10, "c"), 2);
+		Database.getCatalog().addTable(indexed, "TI", "c2");
+		TableStats.setTableStats("TI", new TableStats(indexed.getId(), 19));
+
+		TransactionId tid = new TransactionId();
+		LogicalJoinNode probe = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.EQUALS)
+				.withAlgorithm(JoinAlgorithm.INDEX_NESTED_LOOP);
+		DbIterator j = JoinOptimizer.instantiateJoin(probe, new SeqScan(tid, tableId1, "t1"),
+				new SeqScan(tid, indexed.getId(), "t2"), 4, 1000);
+		Assert.assertEquals(IndexNestedLoopJoin.class, j.getClass());
+		Assert.assertTrue(((Operator) j).getChildren()[0] instanceof ParallelSeqScan);
+		Assert.assertTrue(((Operator) j).getChildren()[1] instanceof SeqScan);
+
+		Parser p = new Parser();
+		p.processNextStatement("SET WORKERS 4;");
+		String query = "SELECT * FROM " + tableName1 + " t1, TI t2 WHERE t1.c1 = t2.c2 AND t1.c0 = 3 AND t1.c3 = 5;";
+		LogicalPlan lp = p.generateLogicalPlan(tid, query);
+		lp.setWorkers(p.getWorkers());
+		DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+		j = ((Operator) plan).getChildren()[0];
+		Assert.assertEquals(IndexNestedLoopJoin.class, j.getClass());
+		Assert.assertTrue(((Operator) j).getChildren()[1] instanceof SeqScan);
+
+		DbIterator serial = new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, TableStats.getStatsMap(), false);
+		Assert.assertEquals(count(serial), count(plan));
+	}
+
+	private static int count(DbIterator it) throws DbException, TransactionAbortedException {
+		int n = 0;
+		it.open();
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	/**
+	 * Verify that with several workers a hash join is parallel only if its build
+	 * side fits in the buffer pool, and otherwise a HashEquiJoin, which spills
+	 */
+	@Test public void parallelHashJoinBudgetTest() throws ParsingException {
+		// 1000 tuples of TA take 10 pages, 10000 take 98
+		Database.resetBufferPool(20);
+		TransactionId tid = new TransactionId();
+		LogicalJoinNode eq = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.EQUALS)
+				.withAlgorithm(JoinAlgorithm.HASH);
+		DbIterator s1 = new SeqScan(tid, tableId1, "t1");
+		DbIterator s2 = new SeqScan(tid, tableId2, "t2");
+		Assert.assertTrue(JoinOptimizer.instantiateJoin(eq, s1, s2, 4, 1000) instanceof ParallelHashJoin);
+		Assert.assertTrue(JoinOptimizer.instantiateJoin(eq, s1, s2, 4, 10000) instanceof HashEquiJoin);
+		Assert.assertTrue(JoinOptimizer.instantiateJoin(eq, s1, s2, 4, Integer.MAX_VALUE) instanceof HashEquiJoin);
+
+		// neither table fits, whichever side the optimizer builds on
+		Database.resetBufferPool(5);
+		LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM " + tableName1 + " t1, "
+				+ tableName2 + " t2 WHERE t1.c1 = t2.c2;");
+		lp.setWorkers(4);
+		DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+		Assert.assertTrue(((Operator) plan).getChildren()[0] instanceof HashEquiJoin);
+	}
+
 	/**
 	 * Determine whether the orderJoins implementation is doing a reasonable job of ordering joins,
 	 * and not taking an unreasonable amount of time to do so 
@@ -3,6 +3,10 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
@@ -105,6 +109,155 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for HashEquiJoin.getNext() and rewind() using an = predicate
+   */
+  @Test public void hashEqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+
+    op.rewind();
+    eqJoin.rewind();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * @return the output of op, one string per tuple, sorted
+   */
+  private static List<String> sortedOutput(DbIterator op) throws Exception {
+    List<String> out = new ArrayList<String>();
+    while (op.hasNext())
+      out.add(op.next().toString());
+    Collections.sort(out);
+    return out;
+  }
+
+  /**
+   * @return a two-column tuple list with n tuples whose first column is i % keys
+   */
+  private static DbIterator keyedTuples(int n, int keys) {
+    int[] data = new int[2 * n];
+    for (int i = 0; i < n; i++) {
+      data[2 * i] = i % keys;
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  /**
+   * HashEquiJoin gives the same results as the nested loops join when the
+   * build side is partitioned to disk, including when a single partition
+   * doesn't fit in memory either, and after a rewind
+   */
+  @Test public void hashEqJoinSpill() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    int[][] cases = { { 500, 70, 300, 100 }, { 200, 1, 20, 1 } };
+    for (int[] c : cases) {
+      Join nl = new Join(pred, keyedTuples(c[0], c[1]), keyedTuples(c[2], c[3]));
+      nl.open();
+      List<String> expected = sortedOutput(nl);
+
+      HashEquiJoin op = new HashEquiJoin(pred, keyedTuples(c[0], c[1]), keyedTuples(c[2], c[3]));
+      op.setMaxInMemory(10);
+      op.open();
+      assertEquals(expected, sortedOutput(op));
+      op.rewind();
+      assertEquals(expected, sortedOutput(op));
+      op.close();
+    }
+  }
+
+  /**
+   * SortMergeJoin gives the same results as the nested loops join for every
+   * operator it supports, with duplicate keys on both sides, whether or not
+   * its inputs arrive sorted
+   */
+  @Test public void sortMergeJoin() throws Exception {
+    Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.NOT_EQUALS,
+        Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+        Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ };
+    for (Predicate.Op o : ops) {
+      JoinPredicate pred = new JoinPredicate(0, o, 0);
+      Join nl = new Join(pred, keyedTuples(40, 7), keyedTuples(30, 5));
+      nl.open();
+      List<String> expected = sortedOutput(nl);
+
+      SortMergeJoin op = new SortMergeJoin(pred, keyedTuples(40, 7), keyedTuples(30, 5));
+      op.open();
+      assertEquals(expected, sortedOutput(op));
+      op.rewind();
+      assertEquals(expected, sortedOutput(op));
+
+      DbIterator sorted1 = new OrderBy(0, true, keyedTuples(40, 7));
+      DbIterator sorted2 = new OrderBy(0, true, keyedTuples(30, 5));
+      op = new SortMergeJoin(pred, sorted1, sorted2);
+      op.open();
+      assertEquals(expected, sortedOutput(op));
+      op.rewind();
+      assertEquals(expected, sortedOutput(op));
+    }
+  }
+
+  /**
+   * BlockNestedLoopJoin gives the same results as the tuple-at-a-time
+   * nested loops join, with blocks smaller than, equal to and larger than
+   * the outer relation
+   */
+  @Test public void blockNestedLoopJoin() throws Exception {
+    Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.NOT_EQUALS,
+        Predicate.Op.GREATER_THAN, Predicate.Op.LESS_THAN_OR_EQ };
+    int[] blockSizes = { 1, 7, 40, 1000 };
+    for (Predicate.Op o : ops) {
+      JoinPredicate pred = new JoinPredicate(0, o, 0);
+      Join nl = new Join(pred, keyedTuples(40, 7), keyedTuples(30, 5));
+      nl.open();
+      List<String> expected = sortedOutput(nl);
+
+      for (int b : blockSizes) {
+        BlockNestedLoopJoin op = new BlockNestedLoopJoin(pred, keyedTuples(40, 7), keyedTuples(30, 5));
+        op.setBlockSize(b);
+        op.open();
+        assertEquals(expected, sortedOutput(op));
+        op.rewind();
+        assertEquals(expected, sortedOutput(op));
+      }
+    }
+  }
+
+  /**
+   * A block of a BlockNestedLoopJoin holds as many outer tuples as fit in
+   * the buffer pool, and its cost counts the blocks the same way
+   */
+  @Test public void blockSizeFollowsBufferPool() throws Exception {
+    Database.resetBufferPool(2);
+    assertEquals(2 * BufferPool.PAGE_SIZE / 8, BlockNestedLoopJoin.blockSize(8));
+    assertEquals(2 * BufferPool.PAGE_SIZE / 80, BlockNestedLoopJoin.blockSize(80));
+    // 3 blocks of narrow tuples, 30 of wide ones
+    double narrow = JoinAlgorithm.BLOCK_NESTED_LOOP.estimateCost(3000, 100, 10, 10, false, false, 100, 8);
+    double wide = JoinAlgorithm.BLOCK_NESTED_LOOP.estimateCost(3000, 100, 10, 10, false, false, 100, 80);
+    assertEquals(27 * 10, wide - narrow, 0.001);
+  }
+
+  /**
+   * The output of a SortMergeJoin is ordered by the left join field
+   */
+  @Test public void sortMergeJoinOrder() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, keyedTuples(40, 7), keyedTuples(30, 5));
+    assertTrue(SortMergeJoin.isSortedOn(op, 0));
+    assertTrue(SortMergeJoin.isSortedOn(op, 2));
+    op.open();
+    int last = Integer.MIN_VALUE;
+    while (op.hasNext()) {
+      int key = op.next().getInt(0);
+      assertTrue(key >= last);
+      last = key;
+    }
+  }
+
   /**
    * JUnit suite target
    */
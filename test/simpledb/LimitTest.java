@@ -0,0 +1,183 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LimitTest extends SimpleDbTestBase {
+
+  /**
+   * A scan of the ints 0..n-1 that counts the tuples read from it and
+   * remembers whether it is open
+   */
+  static class CountingScan extends TupleIterator {
+    private static final long serialVersionUID = 1L;
+    int read;
+    boolean open;
+
+    CountingScan(int n) {
+      super(Utility.getTupleDesc(1), tuples(n));
+    }
+
+    private static List<Tuple> tuples(int n) {
+      List<Tuple> l = new ArrayList<Tuple>();
+      for (int i = 0; i < n; i++)
+        l.add(Utility.getHeapTuple(i, 1));
+      return l;
+    }
+
+    public void open() {
+      super.open();
+      open = true;
+    }
+
+    public Tuple next() {
+      read++;
+      return super.next();
+    }
+
+    public void close() {
+      super.close();
+      open = false;
+    }
+  }
+
+  private static List<Integer> output(DbIterator it) throws Exception {
+    List<Integer> out = new ArrayList<Integer>();
+    while (it.hasNext())
+      out.add(it.next().getInt(0));
+    return out;
+  }
+
+  private static List<Integer> range(int from, int to) {
+    List<Integer> l = new ArrayList<Integer>();
+    for (int i = from; i < to; i++)
+      l.add(i);
+    return l;
+  }
+
+  /**
+   * Limit returns the tuples after the offset, and stops reading and closes
+   * its child once the limit is reached
+   */
+  @Test public void limitAndOffset() throws Exception {
+    CountingScan scan = new CountingScan(1000);
+    Limit op = new Limit(10, 5, scan);
+    op.open();
+    assertEquals(range(5, 15), output(op));
+    assertEquals(15, scan.read);
+    assertFalse(scan.open);
+
+    op.rewind();
+    assertEquals(range(5, 15), output(op));
+    op.close();
+
+    op = new Limit(-1, 990, new CountingScan(1000));
+    op.open();
+    assertEquals(range(990, 1000), output(op));
+    op.close();
+
+    scan = new CountingScan(1000);
+    op = new Limit(0, 5, scan);
+    op.open();
+    assertFalse(op.hasNext());
+    assertEquals(0, scan.read);
+    op.close();
+
+    op = new Limit(10, 2000, new CountingScan(1000));
+    op.open();
+    assertFalse(op.hasNext());
+    op.close();
+  }
+
+  /**
+   * TopN returns the first n tuples of the order
+   */
+  @Test public void topN() throws Exception {
+    int[] data = new int[2 * 500];
+    for (int i = 0; i < 500; i++) {
+      data[2 * i] = (i * 37) % 50;
+      data[2 * i + 1] = i;
+    }
+    for (boolean asc : new boolean[] { true, false }) {
+      for (int n : new int[] { 0, 1, 7, 499, 500, 1000 }) {
+        OrderBy full = new OrderBy(0, asc, TestUtil.createTupleList(2, data));
+        full.open();
+        List<String> expected = new ArrayList<String>();
+        while (full.hasNext() && expected.size() < n)
+          expected.add(full.next().toString());
+        full.close();
+
+        TopN op = new TopN(0, asc, n, TestUtil.createTupleList(2, data));
+        op.open();
+        for (int pass = 0; pass < 2; pass++) {
+          List<String> actual = new ArrayList<String>();
+          while (op.hasNext())
+            actual.add(op.next().toString());
+          assertEquals(expected, actual);
+          op.rewind();
+        }
+        op.close();
+      }
+    }
+  }
+
+  /**
+   * The parser strips LIMIT clauses and plans them with TopN and Limit
+   */
+  @Test public void parseLimit() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < 100; i++) {
+      ArrayList<Integer> t = new ArrayList<Integer>();
+      t.add((i * 37) % 100);
+      t.add(i);
+      tuples.add(t);
+    }
+    File f = File.createTempFile("limit", ".dat");
+    f.deleteOnExit();
+    HeapFileEncoder.convert(tuples, f, BufferPool.PAGE_SIZE, 2);
+    HeapFile hf = Utility.openHeapFile(2, "c", f);
+    Database.getCatalog().addTable(hf, "lt");
+
+    Parser p = new Parser();
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = p.generateLogicalPlan(tid, "SELECT * FROM lt ORDER BY lt.c0 LIMIT 10 OFFSET 3;");
+    assertEquals(10, lp.getLimit());
+    assertEquals(3, lp.getOffset());
+    lp = p.generateLogicalPlan(tid, "select * from lt limit 3, 10;");
+    assertEquals(10, lp.getLimit());
+    assertEquals(3, lp.getOffset());
+    lp = p.generateLogicalPlan(tid, "SELECT * FROM lt;");
+    assertEquals(-1, lp.getLimit());
+
+    lp = p.generateLogicalPlan(tid, "SELECT * FROM lt ORDER BY lt.c0 DESC LIMIT 5 OFFSET 2;");
+    DbIterator plan = lp.physicalPlan(tid, new java.util.HashMap<String, TableStats>(), false);
+    DbIterator limit = ((Operator) plan).getChildren()[0];
+    assertTrue(limit instanceof Limit);
+    assertTrue(((Operator) limit).getChildren()[0] instanceof TopN);
+    plan.open();
+    List<Integer> out = output(plan);
+    plan.close();
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 97; i > 92; i--)
+      expected.add(i);
+    assertEquals(expected, out);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LimitTest.class);
+  }
+}
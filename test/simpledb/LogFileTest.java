@@ -0,0 +1,481 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+  private File file;
+  private LogFile log;
+
+  @Before public void openLog() throws Exception {
+    file = File.createTempFile("log", ".dat");
+    file.deleteOnExit();
+    log = new LogFile(file);
+  }
+
+  @After public void closeLog() {
+    log.shutdown();
+    file.delete();
+    for (File f : segments(file))
+      f.delete();
+  }
+
+  /**
+   * @return the segment files after the first, which is f itself
+   */
+  private static List<File> segments(File f) {
+    List<File> out = new ArrayList<File>();
+    for (File g : f.getAbsoluteFile().getParentFile().listFiles()) {
+      if (g.getName().startsWith(f.getName() + "."))
+        out.add(g);
+    }
+    return out;
+  }
+
+  /**
+   * Begin and commit n transactions, one after another
+   */
+  private static void commit(LogFile log, int n) throws Exception {
+    for (int i = 0; i < n; i++) {
+      TransactionId tid = new TransactionId();
+      log.logXactionBegin(tid);
+      log.logCommit(tid);
+    }
+  }
+
+  /**
+   * Alone, a commit forces the log itself and returns
+   */
+  @Test public void singleCommit() throws Exception {
+    commit(log, 3);
+    assertEquals(3, log.getForceCount());
+    assertTrue(file.length() > 0);
+  }
+
+  /**
+   * Concurrent commits share forces, and every one of them returns
+   */
+  @Test public void groupCommit() throws Exception {
+    log.setGroupCommitWindow(5000, 1000);
+    final int threads = 8, each = 20;
+    final Throwable[] error = new Throwable[1];
+    Thread[] committers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      committers[i] = new Thread() {
+        public void run() {
+          try {
+            commit(log, each);
+          } catch (Throwable e) {
+            error[0] = e;
+          }
+        }
+      };
+      committers[i].start();
+    }
+    for (Thread t : committers)
+      t.join();
+    if (error[0] != null)
+      throw new AssertionError(error[0]);
+    assertEquals(threads * each, log.commitsWritten);
+    assertTrue("forced " + log.getForceCount() + " times",
+        log.getForceCount() < threads * each / 2);
+  }
+
+  /**
+   * A full batch forces without waiting out the window
+   */
+  @Test public void batchSize() throws Exception {
+    log.setGroupCommitWindow(60 * 1000 * 1000, 1);
+    long start = System.nanoTime();
+    commit(log, 5);
+    assertTrue(System.nanoTime() - start < 30 * 1000000000L);
+    assertEquals(5, log.getForceCount());
+  }
+
+  /**
+   * Update records go through the log buffer, several times over, and come
+   * out whole in the file; their LSNs grow with the log
+   */
+  @Test public void bufferAndLsns() throws Exception {
+    File table = File.createTempFile("logtable", ".dat");
+    table.deleteOnExit();
+    HeapFile hf = Utility.createEmptyHeapFile(table.getAbsolutePath(), 2);
+    HeapPage page = new HeapPage(new HeapPageId(hf.getId(), 0),
+        HeapPage.createEmptyPageData());
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    long last = 0;
+    int records = 3 * LogFile.LOG_BUFFERS * LogFile.LOG_BUFFER_SIZE
+        / (2 * BufferPool.PAGE_SIZE);
+    for (int i = 0; i < records; i++) {
+      long lsn = log.logWrite(tid, page.getBeforeImage(), page);
+      assertTrue(lsn > last + 2 * BufferPool.PAGE_SIZE);
+      last = lsn;
+    }
+    assertEquals(last, log.getEndLSN());
+    log.force(last);
+    assertEquals(last, file.length());
+
+    // the log is durable past an earlier LSN already
+    long forces = log.getForceCount();
+    log.force(last - 1);
+    assertEquals(forces, log.getForceCount());
+    log.logCommit(tid);
+    assertEquals(log.getEndLSN(), file.length());
+  }
+
+  /**
+   * A table of (i, i) for i in [0, 10) in a new file
+   */
+  private static File table(String name) throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < 10; i++)
+      tuples.add(new ArrayList<Integer>(Arrays.asList(i, i)));
+    File f = File.createTempFile(name, ".dat");
+    f.deleteOnExit();
+    HeapFileEncoder.convert(tuples, f, BufferPool.PAGE_SIZE, 2);
+    addTable(f, name);
+    return f;
+  }
+
+  private static int addTable(File f, String name) {
+    Database.getCatalog().addTable(Utility.openHeapFile(2, f), name);
+    return Database.getCatalog().getTableId(name);
+  }
+
+  private static List<Integer> rows() throws Exception {
+    return rows("undo");
+  }
+
+  /**
+   * @return the first field of every row of the table, sorted
+   */
+  private static List<Integer> rows(String name) throws Exception {
+    List<Integer> out = new ArrayList<Integer>();
+    SeqScan scan = new SeqScan(new TransactionId(), Database.getCatalog().getTableId(name));
+    scan.open();
+    while (scan.hasNext())
+      out.add(scan.next().getInt(0));
+    scan.close();
+    Collections.sort(out);
+    return out;
+  }
+
+  private static Tuple row(int v) {
+    return Utility.getHeapTuple(new int[] { v, v });
+  }
+
+  private static Tuple find(int v) throws Exception {
+    return find("undo", v);
+  }
+
+  /**
+   * @return the row of the table whose first field is v
+   */
+  private static Tuple find(String name, int v) throws Exception {
+    SeqScan scan = new SeqScan(new TransactionId(), Database.getCatalog().getTableId(name));
+    scan.open();
+    try {
+      while (scan.hasNext()) {
+        Tuple t = scan.next();
+        if (t.getInt(0) == v)
+          return t;
+      }
+    } finally {
+      scan.close();
+    }
+    throw new AssertionError("no row " + v);
+  }
+
+  /**
+   * Aborting takes back a transaction's inserts and deletes, by replaying
+   * its tuple records, which are a small fraction of a page each
+   */
+  @Test public void abortRollsBack() throws Exception {
+    table("undo");
+    int id = Database.getCatalog().getTableId("undo");
+    List<Integer> before = rows();
+    Transaction t = new Transaction();
+    t.start();
+    long start = Database.getLogFile().getEndLSN();
+    Database.getBufferPool().insertTuple(t.getId(), id, row(100));
+    Database.getBufferPool().deleteTuple(t.getId(), find(3));
+    assertTrue(Database.getLogFile().getEndLSN() - start < BufferPool.PAGE_SIZE / 10);
+    assertEquals(10, rows().size());
+    assertTrue(rows().contains(100));
+    t.abort();
+    assertEquals(before, rows());
+  }
+
+  /**
+   * After a crash, recovery redoes committed changes that never reached
+   * the table and undoes uncommitted ones that did
+   */
+  @Test public void recoverRedoesAndUndoes() throws Exception {
+    File f = table("undo"), g = table("redo");
+    int id = Database.getCatalog().getTableId("undo");
+    int other = Database.getCatalog().getTableId("redo");
+    BufferPool pool = Database.getBufferPool();
+    LogFile global = Database.getLogFile();
+
+    TransactionId committed = new TransactionId();
+    global.logXactionBegin(committed);
+    pool.insertTuple(committed, id, row(1000));
+    global.logCommit(committed);
+
+    TransactionId loser = new TransactionId();
+    global.logXactionBegin(loser);
+    pool.insertTuple(loser, id, row(2000));
+    pool.deleteTuple(loser, find(5));
+    // steal: the loser's changes reach the table
+    pool.flushAllPages();
+
+    TransactionId late = new TransactionId();
+    global.logXactionBegin(late);
+    pool.insertTuple(late, other, row(3000));
+    pool.deleteTuple(late, find("redo", 7));
+    global.logCommit(late);
+
+    // crash, losing the buffer pool, and recover
+    Database.reset();
+    addTable(f, "undo");
+    addTable(g, "redo");
+    Database.getLogFile().recover();
+    List<Integer> undone = Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 1000);
+    List<Integer> redone = Arrays.asList(0, 1, 2, 3, 4, 5, 6, 8, 9, 3000);
+    assertEquals(undone, rows("undo"));
+    assertEquals(redone, rows("redo"));
+
+    // and the outcome is in the tables themselves
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    assertEquals(undone, rows("undo"));
+    assertEquals(redone, rows("redo"));
+  }
+
+  /**
+   * A checkpoint writes no pages; recovery redoes from the oldest change to
+   * a page that was dirty then, whether or not the writer thread wrote the
+   * page before the crash, and undoes a transaction the checkpoint found
+   * active
+   */
+  @Test public void fuzzyCheckpoint() throws Exception {
+    File f = table("undo"), g = table("redo");
+    int id = Database.getCatalog().getTableId("undo");
+    int other = Database.getCatalog().getTableId("redo");
+    BufferPool pool = Database.getBufferPool();
+    LogFile global = Database.getLogFile();
+
+    TransactionId committed = new TransactionId();
+    global.logXactionBegin(committed);
+    pool.insertTuple(committed, id, row(1000));
+    global.logCommit(committed);
+
+    TransactionId loser = new TransactionId();
+    global.logXactionBegin(loser);
+    pool.insertTuple(loser, id, row(2000));
+    pool.deleteTuple(loser, find(5));
+
+    long forces = global.getForceCount();
+    global.logCheckpoint();
+    // the checkpoint forced the log once, for its record
+    assertEquals(forces + 1, global.getForceCount());
+
+    TransactionId late = new TransactionId();
+    global.logXactionBegin(late);
+    pool.insertTuple(late, other, row(3000));
+    pool.deleteTuple(late, find("redo", 7));
+    global.logCommit(late);
+
+    // crash and recover
+    Database.reset();
+    addTable(f, "undo");
+    addTable(g, "redo");
+    Database.getLogFile().recover();
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 1000), rows("undo"));
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 8, 9, 3000), rows("redo"));
+  }
+
+  /**
+   * A written page stays in the dirty page table, so that the log is kept
+   * for it, until the file it was written to has been synced
+   */
+  @Test public void writtenPagesStayUntilSynced() throws Exception {
+    table("sync");
+    int id = Database.getCatalog().getTableId("sync");
+    BufferPool pool = Database.getBufferPool();
+    TransactionId tid = new TransactionId();
+    Database.getLogFile().logXactionBegin(tid);
+    pool.insertTuple(tid, id, row(1000));
+    Database.getLogFile().logCommit(tid);
+    PageId pid = new HeapPageId(id, 0);
+    assertTrue(dirtyPageTable(pool).containsKey(pid));
+
+    pool.flushAllPages();
+    assertTrue(dirtyPageTable(pool).containsKey(pid));
+    pool.syncWritten();
+    assertFalse(dirtyPageTable(pool).containsKey(pid));
+  }
+
+  /**
+   * Replacing the buffer pool stops its writer thread before it returns,
+   * so that the old pool writes no stale page afterwards
+   */
+  @Test public void resetStopsWriter() throws Exception {
+    table("stop");
+    int id = Database.getCatalog().getTableId("stop");
+    BufferPool pool = Database.getBufferPool();
+    TransactionId tid = new TransactionId();
+    Database.getLogFile().logXactionBegin(tid);
+    List<PageId> pids = new ArrayList<PageId>();
+    for (int i = 0; i < 2000; i++) {
+      Tuple t = row(1000 + i);
+      pool.insertTuple(tid, id, t);
+      pids.add(t.getRecordId().getPageId());
+    }
+    pool.writeBehind(pids);
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    for (Thread t : Thread.getAllStackTraces().keySet())
+      assertFalse(t.getName().equals("simpledb-page-writer") && t.isAlive());
+  }
+
+  private static Map<PageId, Long> dirtyPageTable(BufferPool pool) throws IOException {
+    pool.lock.lock();
+    try {
+      return pool.dirtyPageTable();
+    } finally {
+      pool.lock.unlock();
+    }
+  }
+
+  /**
+   * The log grows in segments, and a checkpoint deletes those that hold
+   * only records nobody needs, without copying any; LSNs go on from where
+   * they were, and the log still recovers
+   */
+  @Test public void truncateDropsSegments() throws Exception {
+    log.segmentSize = 8 * 1024;
+    // an open transaction holds the log from its first record on
+    TransactionId open = new TransactionId();
+    log.logXactionBegin(open);
+    commit(log, 2000);
+    log.logCheckpoint();
+    int kept = segments(file).size();
+    assertTrue(kept + " segments", kept > 5);
+
+    log.logCommit(open);
+    long end = log.getEndLSN();
+    log.logCheckpoint();
+    assertTrue(segments(file).size() <= 2);
+    assertEquals(LogFile.LONG_SIZE, file.length());
+    assertTrue(log.getEndLSN() > end);
+
+    // what is left is a whole log
+    log.shutdown();
+    end = log.getEndLSN();
+    log = new LogFile(file);
+    log.recover();
+    assertEquals(end, log.getEndLSN());
+    commit(log, 1);
+  }
+
+  /**
+   * A page image comes back from the log through its codec as the same
+   * page, and costs the log 13 bytes more than the page
+   */
+  @Test public void pageImages() throws Exception {
+    table("img");
+    int id = Database.getCatalog().getTableId("img");
+    Page p = Database.getBufferPool().getPage(new TransactionId(),
+        new HeapPageId(id, 0), Permissions.READ_ONLY);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    log.writePageData(new DataOutputStream(bytes), p);
+    assertEquals(BufferPool.PAGE_SIZE + 13, bytes.size());
+    Page q = log.readPageData(new DataInputStream(
+        new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals(HeapPage.class, q.getClass());
+    assertEquals(p.getId(), q.getId());
+    assertArrayEquals(p.getPageData(), q.getPageData());
+  }
+
+  /**
+   * The dirty page table of a checkpoint names each page by its codec's
+   * code, so its ids come back of the right class
+   */
+  @Test public void checkpointPageIds() throws Exception {
+    Map<PageId, Long> dirty = new HashMap<PageId, Long>();
+    dirty.put(new HeapPageId(7, 3), 42L);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    LogFile.writeCheckpoint(new DataOutputStream(bytes),
+        new LogFile.Checkpoint(new HashMap<Long, Long>(), dirty));
+    assertEquals(4 + 4 + 1 + 4 + 4 + 8, bytes.size());
+    LogFile.Checkpoint cp = LogFile.readCheckpoint(new DataInputStream(
+        new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals(dirty, cp.dirty);
+    assertEquals(HeapPageId.class, cp.dirty.keySet().iterator().next().getClass());
+  }
+
+  /**
+   * Recovery installs the after images of committed UPDATE records and the
+   * before images of uncommitted ones
+   */
+  @Test public void recoverPageImages() throws Exception {
+    File f = table("img");
+    int id = Database.getCatalog().getTableId("img");
+    HeapPageId pid = new HeapPageId(id, 0);
+    LogFile global = Database.getLogFile();
+
+    TransactionId committed = new TransactionId();
+    global.logXactionBegin(committed);
+    HeapPage p = (HeapPage) Database.getBufferPool().getPage(committed, pid,
+        Permissions.READ_WRITE);
+    Page before = p.getBeforeImage();
+    p.insertTuple(row(500));
+    global.logWrite(committed, before, p);
+    global.logCommit(committed);
+
+    TransactionId loser = new TransactionId();
+    global.logXactionBegin(loser);
+    before = new HeapPage(pid, p.getPageData());
+    p.deleteTuple(find("img", 4));
+    global.logWrite(loser, before, p);
+    // steal: the loser's page reaches the table
+    Database.getCatalog().getDbFile(id).writePage(p);
+
+    Database.reset();
+    addTable(f, "img");
+    Database.getLogFile().recover();
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 500), rows("img"));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogFileTest.class);
+  }
+}
@@ -0,0 +1,115 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  /**
+   * n two-column tuples: a random key below keys, and the row number
+   */
+  private static TupleIterator randomTuples(int n, int keys) {
+    Random r = new Random(n);
+    int[] data = new int[2 * n];
+    for (int i = 0; i < n; i++) {
+      data[2 * i] = r.nextInt(keys);
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  /**
+   * @return the tuples of the open iterator it, as strings, in order
+   */
+  private static List<String> output(DbIterator it) throws Exception {
+    List<String> out = new ArrayList<String>();
+    while (it.hasNext())
+      out.add(it.next().toString());
+    return out;
+  }
+
+  /**
+   * @return the tuples of it, sorted on field 0 in memory
+   */
+  private static List<String> expected(DbIterator it, boolean asc) throws Exception {
+    List<Tuple> tups = new ArrayList<Tuple>();
+    it.open();
+    while (it.hasNext())
+      tups.add(it.next());
+    it.close();
+    Collections.sort(tups, new TupleComparator(0, asc));
+    List<String> out = new ArrayList<String>();
+    for (Tuple t : tups)
+      out.add(t.toString());
+    return out;
+  }
+
+  /**
+   * Check an OrderBy over n tuples with the given memory budget against an
+   * in-memory sort, before and after a rewind
+   */
+  private void checkSort(int n, int maxInMemory, boolean asc) throws Exception {
+    List<String> expected = expected(randomTuples(n, n / 3 + 1), asc);
+    OrderBy op = new OrderBy(0, asc, randomTuples(n, n / 3 + 1));
+    op.setMaxInMemory(maxInMemory);
+    op.open();
+    assertEquals(expected, output(op));
+    op.rewind();
+    assertEquals(expected, output(op));
+    op.close();
+  }
+
+  /**
+   * Inputs that fit in memory are sorted without spilling
+   */
+  @Test public void inMemory() throws Exception {
+    checkSort(1000, 1000, true);
+    checkSort(1000, 5000, false);
+    checkSort(0, 10, true);
+  }
+
+  /**
+   * Inputs larger than the budget are merged from spilled runs; the sort
+   * is stable, so equal keys keep their input order
+   */
+  @Test public void spilled() throws Exception {
+    checkSort(1000, 100, true);
+    checkSort(1001, 100, false);
+    checkSort(1000, 1, true);
+  }
+
+  /**
+   * More runs than can be merged at once take an extra merge pass
+   */
+  @Test public void multiPass() throws Exception {
+    int n = 3 * ExternalSort.MERGE_FAN_IN * 10;
+    TupleIterator input = randomTuples(n, 50);
+    ExternalSort sort = new ExternalSort(input, new TupleComparator(0, true), 10);
+    input.open();
+    sort.open();
+    assertTrue(sort.numRuns() <= ExternalSort.MERGE_FAN_IN);
+    List<String> out = new ArrayList<String>();
+    while (sort.hasNext())
+      out.add(sort.next().toString());
+    sort.close();
+    input.close();
+    assertEquals(expected(randomTuples(n, 50), true), out);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
@@ -0,0 +1,142 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ParallelHashJoinTest extends SimpleDbTestBase {
+
+  /** n tuples of the given width with field 0 drawn from [0, keys) */
+  private static TupleIterator input(int width, int n, int keys, long seed) {
+    Random r = new Random(seed);
+    List<Tuple> l = new ArrayList<Tuple>();
+    for (int i = 0; i < n; i++) {
+      Tuple t = new Tuple(Utility.getTupleDesc(width));
+      t.setField(0, new IntField(r.nextInt(keys)));
+      for (int f = 1; f < width; f++)
+        t.setField(f, new IntField(i));
+      l.add(t);
+    }
+    return new TupleIterator(Utility.getTupleDesc(width), l);
+  }
+
+  private static List<String> sortedOutput(DbIterator it) throws Exception {
+    List<String> out = new ArrayList<String>();
+    while (it.hasNext())
+      out.add(it.next().toString());
+    Collections.sort(out);
+    return out;
+  }
+
+  private static List<String> hashJoin(DbIterator a, DbIterator b) throws Exception {
+    HashEquiJoin j = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), a, b);
+    j.open();
+    List<String> out = sortedOutput(j);
+    j.close();
+    return out;
+  }
+
+  /**
+   * With any number of workers the join returns the tuples HashEquiJoin
+   * does, duplicate keys on both sides included
+   */
+  @Test public void sameAsHashEquiJoin() throws Exception {
+    List<String> expected = hashJoin(input(2, 20000, 5000, 1), input(3, 30000, 8000, 2));
+    assertTrue(expected.size() > 10000);
+    for (int workers = 1; workers <= 8; workers *= 2) {
+      ParallelHashJoin j = new ParallelHashJoin(new JoinPredicate(0,
+          Predicate.Op.EQUALS, 0), input(2, 20000, 5000, 1), input(3, 30000, 8000, 2),
+          workers);
+      assertEquals(Utility.getTupleDesc(5).numFields(), j.getTupleDesc().numFields());
+      j.open();
+      assertEquals(expected, sortedOutput(j));
+      j.close();
+    }
+  }
+
+  /**
+   * String join keys and an empty build side
+   */
+  @Test public void stringKeys() throws Exception {
+    Object[] a = new Object[2000], b = new Object[3000];
+    for (int i = 0; i < a.length; i++)
+      a[i] = "k" + (i % 700);
+    for (int i = 0; i < b.length; i++)
+      b[i] = "k" + (i % 1000);
+    List<String> expected = hashJoin(TestUtil.createTupleList(1, a),
+        TestUtil.createTupleList(1, b));
+    ParallelHashJoin j = new ParallelHashJoin(new JoinPredicate(0,
+        Predicate.Op.EQUALS, 0), TestUtil.createTupleList(1, a),
+        TestUtil.createTupleList(1, b), 4);
+    j.open();
+    assertEquals(expected, sortedOutput(j));
+    j.close();
+
+    j = new ParallelHashJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        new TupleIterator(new TupleDesc(new Type[] { Type.STRING_TYPE }),
+            new ArrayList<Tuple>()), TestUtil.createTupleList(1, b), 4);
+    j.open();
+    assertTrue(!j.hasNext());
+    j.close();
+  }
+
+  /**
+   * Rewinding probes again with the tables already built
+   */
+  @Test public void rewind() throws Exception {
+    List<String> expected = hashJoin(input(2, 5000, 1000, 3), input(2, 5000, 1000, 4));
+    ParallelHashJoin j = new ParallelHashJoin(new JoinPredicate(0,
+        Predicate.Op.EQUALS, 0), input(2, 5000, 1000, 3), input(2, 5000, 1000, 4), 3);
+    j.open();
+    for (int i = 0; i < 10; i++)
+      j.next();
+    j.rewind();
+    assertEquals(expected, sortedOutput(j));
+    j.close();
+  }
+
+  /**
+   * A TransactionAbortedException on either side reaches the caller
+   */
+  @Test public void failures() throws Exception {
+    ParallelHashJoin j = new ParallelHashJoin(new JoinPredicate(0,
+        Predicate.Op.EQUALS, 0), new ExchangeTest.Source(0, 10000, 100, 500),
+        new ExchangeTest.Source(0, 10000, 100, -1), 4);
+    try {
+      j.open();
+      fail("expected TransactionAbortedException");
+    } catch (TransactionAbortedException expected) {
+    }
+    j.close();
+
+    ExchangeTest.Source probe = new ExchangeTest.Source(0, 100000, 100, 50000);
+    j = new ParallelHashJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        new ExchangeTest.Source(0, 100, 100, -1), probe, 4);
+    j.open();
+    try {
+      while (j.hasNext())
+        j.next();
+      fail("expected TransactionAbortedException");
+    } catch (TransactionAbortedException expected) {
+    }
+    j.close();
+    assertTrue(!probe.open);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ParallelHashJoinTest.class);
+  }
+}
@@ -0,0 +1,157 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ParallelSeqScanTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 50000;
+
+  private HeapFile file;
+  private TransactionId tid;
+
+  /**
+   * A table spanning many morsels, more pages than the buffer pool holds
+   */
+  @Before public void createTable() throws Exception {
+    file = SystemTestUtil.createRandomHeapFile(3, ROWS, 1000, null, null, "c");
+    Database.getCatalog().addTable(file, "pscan");
+    tid = new TransactionId();
+    assertTrue(file.numPages() > 4 * ParallelSeqScan.MORSEL_PAGES);
+  }
+
+  private static List<String> sortedOutput(DbIterator it) throws Exception {
+    List<String> out = new ArrayList<String>();
+    while (it.hasNext())
+      out.add(it.next().toString());
+    Collections.sort(out);
+    return out;
+  }
+
+  /**
+   * SeqScan -> Filter(c1 < 500) -> Project(c2, c0)
+   */
+  private DbIterator pipeline() {
+    SeqScan scan = new SeqScan(tid, file.getId(), "t");
+    Filter filter = new Filter(new Predicate(1, Predicate.Op.LESS_THAN,
+        new IntField(500)), scan);
+    ArrayList<Integer> fields = new ArrayList<Integer>();
+    fields.add(2);
+    fields.add(0);
+    return new Project(fields, new Type[] { Type.INT_TYPE, Type.INT_TYPE }, filter);
+  }
+
+  private List<String> serialOutput() throws Exception {
+    DbIterator serial = pipeline();
+    serial.open();
+    List<String> expected = sortedOutput(serial);
+    serial.close();
+    return expected;
+  }
+
+  /**
+   * Every worker count yields exactly the tuples of the serial pipeline
+   */
+  @Test public void sameAsSerial() throws Exception {
+    List<String> expected = serialOutput();
+    assertTrue(expected.size() > 0 && expected.size() < ROWS);
+    for (int workers = 1; workers <= 8; workers *= 2) {
+      ParallelSeqScan ps = new ParallelSeqScan(pipeline(), workers);
+      assertEquals(Utility.getTupleDesc(2).numFields(), ps.getTupleDesc().numFields());
+      ps.open();
+      assertEquals(expected, sortedOutput(ps));
+      ps.close();
+    }
+  }
+
+  /**
+   * Rewinding part way through starts a fresh pass over the whole file
+   */
+  @Test public void rewind() throws Exception {
+    List<String> expected = serialOutput();
+    ParallelSeqScan ps = new ParallelSeqScan(pipeline(), 4);
+    ps.open();
+    for (int i = 0; i < 100; i++)
+      ps.next();
+    ps.rewind();
+    assertEquals(expected, sortedOutput(ps));
+    ps.rewind();
+    assertEquals(expected, sortedOutput(ps));
+    ps.close();
+  }
+
+  /**
+   * Closing early stops the workers, and the file can be scanned again
+   */
+  @Test public void earlyClose() throws Exception {
+    for (int round = 0; round < 10; round++) {
+      ParallelSeqScan ps = new ParallelSeqScan(new SeqScan(tid, file.getId(), "t"), 4);
+      ps.open();
+      ps.next();
+      ps.close();
+    }
+    ParallelSeqScan ps = new ParallelSeqScan(new SeqScan(tid, file.getId(), "t"), 4);
+    ps.open();
+    assertEquals(ROWS, sortedOutput(ps).size());
+    ps.close();
+  }
+
+  /**
+   * Only chains of Filters and Projects over a SeqScan can be run in parallel
+   */
+  @Test(expected = IllegalArgumentException.class) public void notAPipeline()
+      throws Exception {
+    new ParallelSeqScan(new OrderBy(0, true, pipeline()), 2);
+  }
+
+  /**
+   * "SET WORKERS n" makes the plans of the session scan in parallel
+   */
+  @Test public void setWorkers() throws Exception {
+    Parser p = new Parser();
+    assertEquals(1, p.getWorkers());
+    p.processNextStatement("SET WORKERS 4;");
+    assertEquals(4, p.getWorkers());
+
+    LogicalPlan lp = p.generateLogicalPlan(tid,
+        "SELECT pscan.c0 FROM pscan WHERE pscan.c1 < 500;");
+    lp.setWorkers(p.getWorkers());
+    HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put("pscan", new TableStats(file.getId(), 1));
+    DbIterator plan = lp.physicalPlan(tid, stats, false);
+    DbIterator scan = ((Operator) plan).getChildren()[0];
+    assertTrue(scan instanceof ParallelSeqScan);
+    assertEquals(4, ((ParallelSeqScan) scan).getWorkers());
+
+    plan.open();
+    int n = 0;
+    while (plan.hasNext()) {
+      plan.next();
+      n++;
+    }
+    plan.close();
+    DbIterator serial = pipeline();
+    serial.open();
+    assertEquals(sortedOutput(serial).size(), n);
+    serial.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ParallelSeqScanTest.class);
+  }
+}
@@ -0,0 +1,68 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PredicateCompilerTest extends SimpleDbTestBase {
+
+  private static Tuple toCompact(Tuple t) {
+    Tuple c = new CompactTuple(t.getTupleDesc());
+    for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+      c.setField(i, t.getField(i));
+    return c;
+  }
+
+  /**
+   * Compiled predicates agree with Predicate.filter() for every operator, on
+   * both boxed and packed tuples
+   */
+  @Test public void filter() {
+    int[] vals = new int[] { Integer.MIN_VALUE, -1, 0, 1, Integer.MAX_VALUE };
+    TupleDesc td = Utility.getTupleDesc(2);
+
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (int v : vals) {
+        Predicate p = new Predicate(1, op, TestUtil.getField(v));
+        PredicateCompiler.TupleFilter c = PredicateCompiler.compile(p, td);
+        for (int x : vals) {
+          Tuple boxed = Utility.getHeapTuple(new int[] { 5, x });
+          assertEquals(p.filter(boxed), c.filter(boxed));
+          assertEquals(p.filter(boxed), c.filter(toCompact(boxed)));
+        }
+      }
+    }
+  }
+
+  /**
+   * Compiled join predicates agree with JoinPredicate.filter() for every
+   * operator
+   */
+  @Test public void joinFilter() {
+    int[] vals = new int[] { -1, 0, 1 };
+    TupleDesc td = Utility.getTupleDesc(2);
+
+    for (Predicate.Op op : Predicate.Op.values()) {
+      JoinPredicate p = new JoinPredicate(1, op, 0);
+      PredicateCompiler.TupleJoinFilter c = PredicateCompiler.compile(p, td, td);
+      for (int x : vals) {
+        for (int y : vals) {
+          Tuple t1 = Utility.getHeapTuple(new int[] { 9, x });
+          Tuple t2 = Utility.getHeapTuple(new int[] { y, 9 });
+          assertEquals(p.filter(t1, t2), c.filter(t1, t2));
+          assertEquals(p.filter(t1, t2), c.filter(toCompact(t1), toCompact(t2)));
+        }
+      }
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PredicateCompilerTest.class);
+  }
+}
@@ -0,0 +1,185 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class QueryServerTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 5000;
+
+  private QueryServer server;
+
+  /**
+   * A table "srv" of (i, i % 10) for i in [0, ROWS), and a server on a free port
+   */
+  @Before public void startServer() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < ROWS; i++) {
+      ArrayList<Integer> t = new ArrayList<Integer>();
+      t.add(i);
+      t.add(i % 10);
+      tuples.add(t);
+    }
+    File f = File.createTempFile("server", ".dat");
+    f.deleteOnExit();
+    HeapFileEncoder.convert(tuples, f, BufferPool.PAGE_SIZE, 2);
+    Database.getCatalog().addTable(Utility.openHeapFile(2, "c", f), "srv");
+    TableStats.setTableStats("srv", new TableStats(Database.getCatalog().getTableId("srv"), 1));
+    server = new QueryServer(0);
+    server.setThreads(4);
+    server.start();
+  }
+
+  @After public void stopServer() {
+    assertTrue(server.stop());
+  }
+
+  private static List<String> sorted(List<Tuple> rows) {
+    List<String> out = new ArrayList<String>();
+    for (Tuple t : rows)
+      out.add(t.toString());
+    Collections.sort(out);
+    return out;
+  }
+
+  /**
+   * Rows come back in many batches, with or without compression, along with
+   * their schema
+   */
+  @Test public void select() throws Exception {
+    for (boolean compress : new boolean[] { false, true }) {
+      QueryClient c = new QueryClient("localhost", server.getPort(), compress);
+      QueryClient.Result r = c.execute("SELECT * FROM srv;");
+      assertEquals(ROWS, r.getCount());
+      assertEquals(ROWS, r.getRows().size());
+      assertEquals("srv.c0", r.getTupleDesc().getFieldName(0));
+      long sum = 0;
+      for (Tuple t : r.getRows())
+        sum += t.getInt(0);
+      assertEquals((long) ROWS * (ROWS - 1) / 2, sum);
+
+      r = c.execute("SELECT srv.c1, COUNT(srv.c0) FROM srv GROUP BY srv.c1;");
+      assertEquals(10, r.getRows().size());
+      for (Tuple t : r.getRows())
+        assertEquals(ROWS / 10, t.getInt(1));
+      c.close();
+    }
+  }
+
+  /**
+   * A failing statement reports an error and leaves the session usable
+   */
+  @Test public void errors() throws Exception {
+    QueryClient c = new QueryClient("localhost", server.getPort(), false);
+    try {
+      c.execute("SELECT * FROM nosuchtable;");
+      fail("expected DbException");
+    } catch (DbException expected) {
+    }
+    try {
+      c.execute("COMMIT;");
+      fail("expected DbException");
+    } catch (DbException expected) {
+      assertTrue(expected.getMessage().contains("No transaction"));
+    }
+    assertEquals(3, c.execute("SELECT * FROM srv LIMIT 3;").getCount());
+    assertTrue(c.execute("SET WORKERS 2;").getMessage().contains("2 workers"));
+    assertEquals(ROWS, c.execute("SELECT * FROM srv;", false).getCount());
+    c.close();
+  }
+
+  /**
+   * Each session keeps its own transaction
+   */
+  @Test public void transactions() throws Exception {
+    QueryClient c = new QueryClient("localhost", server.getPort(), false);
+    assertTrue(c.execute("SET TRANSACTION READ WRITE;").getMessage().startsWith("Started"));
+    assertEquals(ROWS, c.execute("SELECT * FROM srv;").getCount());
+    assertTrue(c.execute("COMMIT;").getMessage().endsWith("committed."));
+    c.close();
+  }
+
+  /**
+   * Many sessions query at once and all get the same answer
+   */
+  @Test public void concurrentSessions() throws Exception {
+    final String sql = "SELECT srv.c1, SUM(srv.c0) FROM srv GROUP BY srv.c1;";
+    QueryClient first = new QueryClient("localhost", server.getPort(), false);
+    final List<String> expected = sorted(first.execute(sql).getRows());
+    first.close();
+    final Throwable[] error = new Throwable[1];
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      final boolean compress = i % 2 == 0;
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            QueryClient c = new QueryClient("localhost", server.getPort(), compress);
+            for (int q = 0; q < 10; q++)
+              assertEquals(expected, sorted(c.execute(sql).getRows()));
+            c.close();
+          } catch (Throwable e) {
+            error[0] = e;
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads)
+      t.join();
+    if (error[0] != null)
+      throw new AssertionError(error[0]);
+  }
+
+  /**
+   * With a thread per session, many connected sessions each keep their own
+   * transaction and get the same answers, whether or not the JVM has
+   * virtual threads
+   */
+  @Test public void threadPerSession() throws Exception {
+    QueryServer vs = new QueryServer(0);
+    vs.setVirtualThreads(true);
+    vs.start();
+    try {
+      QueryClient[] clients = new QueryClient[64];
+      for (int i = 0; i < clients.length; i++) {
+        clients[i] = new QueryClient("localhost", vs.getPort(), i % 2 == 0);
+        clients[i].execute("SET TRANSACTION READ WRITE;");
+      }
+      final String sql = "SELECT srv.c1, COUNT(srv.c0) FROM srv GROUP BY srv.c1;";
+      List<String> expected = null;
+      for (QueryClient c : clients) {
+        List<String> got = sorted(c.execute(sql).getRows());
+        if (expected == null)
+          expected = got;
+        assertEquals(expected, got);
+        assertTrue(c.execute("COMMIT;").getMessage().endsWith("committed."));
+        assertEquals(ROWS, c.execute("SELECT * FROM srv;", false).getCount());
+        c.close();
+      }
+      assertEquals(10, expected.size());
+    } finally {
+      vs.stop();
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(QueryServerTest.class);
+  }
+}
@@ -0,0 +1,70 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class StringFieldTest extends SimpleDbTestBase {
+
+    private static StringField str(String s) {
+        return new StringField(s, Type.STRING_LEN);
+    }
+
+    /**
+     * A StringField parsed out of a packed tuple compares, hashes and
+     * prints the same as one built from a String
+     */
+    @Test public void packedMatchesString() {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        Tuple t = new CompactTuple(td);
+        t.setField(0, new IntField(7));
+        t.setField(1, str("apple"));
+
+        Field f = t.getField(1);
+        assertEquals(str("apple"), f);
+        assertEquals(str("apple").hashCode(), f.hashCode());
+        assertEquals("apple".hashCode(), f.hashCode());
+        assertEquals("apple", f.toString());
+        assertEquals(7, t.getInt(0));
+    }
+
+    /**
+     * Unit test for StringField.compare() with each operator
+     */
+    @Test public void compare() {
+        StringField a = str("abc");
+        assertTrue(a.compare(Predicate.Op.EQUALS, str("abc")));
+        assertTrue(a.compare(Predicate.Op.NOT_EQUALS, str("abd")));
+        assertTrue(a.compare(Predicate.Op.LESS_THAN, str("abd")));
+        assertTrue(a.compare(Predicate.Op.LESS_THAN, str("abcd")));
+        assertTrue(a.compare(Predicate.Op.GREATER_THAN, str("ab")));
+        assertTrue(a.compare(Predicate.Op.GREATER_THAN_OR_EQ, str("abc")));
+        assertTrue(a.compare(Predicate.Op.LESS_THAN_OR_EQ, str("b")));
+        assertTrue(str("é").compare(Predicate.Op.GREATER_THAN, str("z")));
+        assertTrue(a.compare(Predicate.Op.LIKE, str("bc")));
+        assertTrue(a.compare(Predicate.Op.LIKE, str("")));
+        assertFalse(a.compare(Predicate.Op.LIKE, str("abcd")));
+        assertFalse(a.compare(Predicate.Op.LIKE, str("ac")));
+    }
+
+    /**
+     * Strings longer than maxSize are truncated
+     */
+    @Test public void truncate() {
+        StringField f = new StringField("abcdef", 3);
+        assertEquals("abc", f.getValue());
+        assertEquals(new StringField("abc", 3), f);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StringFieldTest.class);
+    }
+}
@@ -0,0 +1,131 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TupleSorterTest extends SimpleDbTestBase {
+
+  private static final TupleDesc TD = new TupleDesc(new Type[] {
+      Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+
+  /**
+   * n tuples of (random int, random short string, row number); ints include
+   * negative numbers and the extremes
+   */
+  private static List<Tuple> randomTuples(int n, int keys) {
+    Random r = new Random(n);
+    String[] words = { "", "a", "ab", "abc", "b", "ba", "é", "zz" };
+    List<Tuple> l = new ArrayList<Tuple>();
+    for (int i = 0; i < n; i++) {
+      Tuple t = new Tuple(TD);
+      int k = r.nextInt(keys) - keys / 2;
+      if (i % 97 == 0)
+        k = i % 2 == 0 ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+      t.setField(0, new IntField(k));
+      t.setField(1, new StringField(words[r.nextInt(words.length)], Type.STRING_LEN));
+      t.setField(2, new IntField(i));
+      l.add(t);
+    }
+    return l;
+  }
+
+  /**
+   * The reference order: Fields compared one by one
+   */
+  private static Comparator<Tuple> reference(final int[] fields, final boolean[] asc) {
+    return new Comparator<Tuple>() {
+      public int compare(Tuple a, Tuple b) {
+        for (int i = 0; i < fields.length; i++) {
+          int c = new TupleComparator(fields[i], asc[i]).compare(a, b);
+          if (c != 0)
+            return c;
+        }
+        return 0;
+      }
+    };
+  }
+
+  private static List<String> strings(List<Tuple> l) {
+    List<String> out = new ArrayList<String>();
+    for (Tuple t : l)
+      out.add(t.toString());
+    return out;
+  }
+
+  private void check(int n, int keys, int[] fields, boolean[] asc) {
+    List<Tuple> expected = randomTuples(n, keys);
+    Collections.sort(expected, reference(fields, asc));
+    List<Tuple> actual = randomTuples(n, keys);
+    TupleSorter sorter = new TupleSorter(TD, fields, asc);
+    sorter.sort(actual);
+    assertEquals(strings(expected), strings(actual));
+
+    List<Tuple> merged = randomTuples(n, keys);
+    Collections.sort(merged, sorter.comparator());
+    assertEquals(strings(expected), strings(merged));
+  }
+
+  /**
+   * A single int key takes the packed long path; equal keys keep their
+   * input order
+   */
+  @Test public void intKey() {
+    check(1000, 50, new int[] { 0 }, new boolean[] { true });
+    check(1000, 50, new int[] { 0 }, new boolean[] { false });
+    check(1, 50, new int[] { 0 }, new boolean[] { true });
+  }
+
+  /**
+   * Strings and several keys with mixed directions take the byte key path
+   */
+  @Test public void multiColumn() {
+    check(1000, 10, new int[] { 1 }, new boolean[] { true });
+    check(1000, 10, new int[] { 1, 0 }, new boolean[] { true, false });
+    check(1000, 10, new int[] { 0, 1 }, new boolean[] { false, true });
+    check(1000, 10, new int[] { 0, 1, 2 }, new boolean[] { true, false, false });
+  }
+
+  /**
+   * Inputs above the threshold are sorted in parallel
+   */
+  @Test public void parallel() {
+    int n = 4 * TupleSorter.PARALLEL_THRESHOLD + 3;
+    check(n, 1000, new int[] { 0 }, new boolean[] { false });
+    check(n, 100, new int[] { 1, 0 }, new boolean[] { false, true });
+  }
+
+  /**
+   * OrderBy sorts on several fields
+   */
+  @Test public void orderByMultiColumn() throws Exception {
+    List<Tuple> expected = randomTuples(500, 10);
+    int[] fields = { 1, 0 };
+    boolean[] asc = { false, true };
+    Collections.sort(expected, reference(fields, asc));
+    OrderBy op = new OrderBy(fields, asc, new TupleIterator(TD, randomTuples(500, 10)));
+    op.setMaxInMemory(64);
+    op.open();
+    List<Tuple> actual = new ArrayList<Tuple>();
+    while (op.hasNext())
+      actual.add(op.next());
+    op.close();
+    assertEquals(strings(expected), strings(actual));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TupleSorterTest.class);
+  }
+}
@@ -57,6 +57,83 @@ public class TupleTest extends SimpleDbTestBase {
 	}
     }
 
+    /**
+     * Unit test for CompactTuple.getField(), setField() and getInt() on a
+     * schema mixing int and string fields
+     */
+    @Test public void compactFields() {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE,
+                Type.STRING_TYPE, Type.INT_TYPE });
+
+        Tuple tup = new CompactTuple(td);
+        tup.setField(0, new IntField(-1));
+        tup.setField(1, new StringField("hello", Type.STRING_LEN));
+        tup.setField(2, new IntField(Integer.MAX_VALUE));
+
+        assertEquals(new IntField(-1), tup.getField(0));
+        assertEquals(new StringField("hello", Type.STRING_LEN), tup.getField(1));
+        assertEquals(-1, tup.getInt(0));
+        assertEquals(Integer.MAX_VALUE, tup.getInt(2));
+
+        tup.setField(0, new IntField(37));
+        assertEquals(37, tup.getInt(0));
+    }
+
+    /**
+     * A StringField handed out by CompactTuple.getField keeps its value and
+     * hash when the tuple is changed afterwards, as does the page data the
+     * tuple was made over
+     */
+    @Test public void compactSetFieldCopies() {
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+        Tuple src = new CompactTuple(td);
+        src.setField(0, new StringField("key", Type.STRING_LEN));
+        byte[] page = ((CompactTuple) src).getData().clone();
+
+        Tuple tup = new CompactTuple(td, page);
+        Field key = tup.getField(0);
+        int hash = key.hashCode();
+        tup.setField(0, new StringField("a longer key", Type.STRING_LEN));
+        tup.setField(1, new IntField(5));
+        assertEquals(new StringField("key", Type.STRING_LEN), key);
+        assertEquals(hash, key.hashCode());
+        assertEquals(new StringField("a longer key", Type.STRING_LEN), tup.getField(0));
+        assertEquals(new StringField("key", Type.STRING_LEN),
+            new CompactTuple(td, page).getField(0));
+
+        // a field taken after the write sees it
+        Field later = tup.getField(0);
+        tup.setField(0, new StringField("x", Type.STRING_LEN));
+        assertEquals(new StringField("a longer key", Type.STRING_LEN), later);
+    }
+
+    /**
+     * Unit test for Tuple.project() and Tuple.merge() on packed tuples
+     */
+    @Test public void compactProjectAndMerge() {
+        TupleDesc td = Utility.getTupleDesc(3);
+        Tuple t1 = new CompactTuple(td);
+        Tuple t2 = new Tuple(td);
+        for (int i = 0; i < 3; i++) {
+            t1.setField(i, new IntField(i));
+            t2.setField(i, new IntField(10 + i));
+        }
+
+        Tuple p = t1.project(Utility.getTupleDesc(2), new int[] { 2, 0 });
+        assertEquals(2, p.getInt(0));
+        assertEquals(0, p.getInt(1));
+
+        TupleDesc mtd = TupleDesc.merge(td, td);
+        Tuple m = Tuple.merge(mtd, t1, p.project(td, new int[] { 0, 1, 1 }));
+        assertEquals(true, m instanceof CompactTuple);
+        assertEquals(0, m.getInt(0));
+        assertEquals(2, m.getInt(3));
+        assertEquals(0, m.getInt(5));
+
+        m = Tuple.merge(mtd, t1, t2);
+        assertEquals(new IntField(12), m.getField(5));
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,56 @@
+package simpledb.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Small helpers shared by the micro-benchmarks in this package. They are
+ * plain main() programs rather than JUnit tests so that "ant test" does not
+ * pick them up; run one with e.g.
+ * <pre>
+ * java -cp bin/src:bin/test:lib/* simpledb.bench.TupleBench
+ * </pre>
+ */
+public class BenchUtil {
+
+    /** A body of work to time; returns a value so the JIT can't drop it. */
+    public interface Body {
+        long run() throws Exception;
+    }
+
+    private static long gcCount() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            n += Math.max(0, gc.getCollectionCount());
+        return n;
+    }
+
+    private static long gcMillis() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            n += Math.max(0, gc.getCollectionTime());
+        return n;
+    }
+
+    /**
+     * Run body warmup times untimed, then iters times timed, and print the
+     * throughput in rows/s along with the collections the timed runs caused.
+     */
+    public static void measure(String name, long rowsPerRun, int warmup,
+            int iters, Body body) throws Exception {
+        long sink = 0;
+        for (int i = 0; i < warmup; i++)
+            sink += body.run();
+        System.gc();
+        long gcs = gcCount(), gct = gcMillis();
+        long start = System.nanoTime();
+        for (int i = 0; i < iters; i++)
+            sink += body.run();
+        long elapsed = System.nanoTime() - start;
+        gcs = gcCount() - gcs;
+        gct = gcMillis() - gct;
+        double rowsPerSec = rowsPerRun * (double) iters / (elapsed / 1e9);
+        System.out.println(String.format("%-32s %12.0f rows/s  %4d GCs %6d ms GC  (%d)",
+                name, rowsPerSec, gcs, gct, sink));
+    }
+}
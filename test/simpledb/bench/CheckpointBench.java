@@ -0,0 +1,132 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import simpledb.*;
+
+/**
+ * Measures what checkpoints cost the transactions running beside them.
+ * Writer threads run short transactions that each delete a row of a table
+ * and insert it again. One long transaction stays open throughout, so the
+ * log must be kept from its first record on. A checkpointer calls
+ * {@link LogFile#logCheckpoint()} every 200 ms. Prints transaction latency
+ * percentiles, the longest checkpoint and the size of the log. Takes the
+ * number of writers, by default 4, and the checkpoint interval in
+ * milliseconds, 0 for none.
+ */
+public class CheckpointBench {
+
+    static final int SECONDS = 5;
+    static final int PAGES = 100;
+
+    public static void main(String[] args) throws Exception {
+        int writers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int interval = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        for (int run = 0; run < 2; run++)
+            run(writers, interval);
+    }
+
+    static void run(final int writers, int interval) throws Exception {
+        Database.reset();
+        Database.resetBufferPool(4 * PAGES);
+        File f = File.createTempFile("checkpointbench", ".dat");
+        f.deleteOnExit();
+        int perPage = (BufferPool.PAGE_SIZE * 8) / (2 * Type.INT_TYPE.getLen() * 8 + 1);
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < PAGES * perPage; i++)
+            rows.add(new ArrayList<Integer>(Arrays.asList(i, i)));
+        HeapFileEncoder.convert(rows, f, BufferPool.PAGE_SIZE, 2);
+        Database.getCatalog().addTable(Utility.openHeapFile(2, f), "cp");
+        final int table = Database.getCatalog().getTableId("cp");
+
+        // every writer owns the tuples i with i % (writers + 1) == its
+        // number; the long transaction the rest
+        final List<List<Tuple>> owned = new ArrayList<List<Tuple>>();
+        for (int w = 0; w <= writers; w++)
+            owned.add(new ArrayList<Tuple>());
+        SeqScan scan = new SeqScan(new TransactionId(), table);
+        scan.open();
+        for (int i = 0; scan.hasNext(); i++)
+            owned.get(i % (writers + 1)).add(scan.next());
+        scan.close();
+
+        final BufferPool pool = Database.getBufferPool();
+        final LogFile log = Database.getLogFile();
+        Transaction longRunning = new Transaction();
+        longRunning.start();
+        pool.deleteTuple(longRunning.getId(), owned.get(writers).get(0));
+
+        final long end = System.nanoTime() + SECONDS * 1000000000L;
+        final Throwable[] error = new Throwable[1];
+        final long[][] latencies = new long[writers][];
+        Thread[] threads = new Thread[writers];
+        for (int w = 0; w < writers; w++) {
+            final int me = w;
+            threads[w] = new Thread() {
+                public void run() {
+                    long[] mine = new long[1 << 16];
+                    int n = 0;
+                    List<Tuple> tuples = owned.get(me);
+                    try {
+                        for (int i = 0; System.nanoTime() < end; i++) {
+                            long start = System.nanoTime();
+                            Tuple t = tuples.get((i * 7919) % tuples.size());
+                            Transaction x = new Transaction();
+                            x.start();
+                            pool.deleteTuple(x.getId(), t);
+                            pool.insertTuple(x.getId(), table, t);
+                            x.commit();
+                            if (n == mine.length)
+                                mine = Arrays.copyOf(mine, 2 * n);
+                            mine[n++] = System.nanoTime() - start;
+                        }
+                    } catch (Throwable e) {
+                        error[0] = e;
+                    }
+                    latencies[me] = Arrays.copyOf(mine, n);
+                }
+            };
+            threads[w].start();
+        }
+
+        long longestCheckpoint = 0;
+        int checkpoints = 0;
+        while (interval > 0 && System.nanoTime() < end) {
+            Thread.sleep(interval);
+            long start = System.nanoTime();
+            log.logCheckpoint();
+            longestCheckpoint = Math.max(longestCheckpoint, System.nanoTime() - start);
+            checkpoints++;
+        }
+        for (Thread t : threads)
+            t.join();
+        if (error[0] != null)
+            throw new RuntimeException(error[0]);
+        longRunning.commit();
+
+        int total = 0;
+        for (long[] l : latencies)
+            total += l.length;
+        long[] all = new long[total];
+        int at = 0;
+        for (long[] l : latencies) {
+            System.arraycopy(l, 0, all, at, l.length);
+            at += l.length;
+        }
+        Arrays.sort(all);
+        System.out.println(String.format(
+                "%d writers %8.0f xactions/s  latency us p50 %6d p99 %6d p99.9 %6d max %7d"
+                + "  %d checkpoints, longest %6.1f ms  log %5.1f MB",
+                writers, total / (double) SECONDS, pct(all, 0.5), pct(all, 0.99),
+                pct(all, 0.999), all[all.length - 1] / 1000, checkpoints,
+                longestCheckpoint / 1e6, new File("log").length() / 1e6));
+        f.delete();
+    }
+
+    static long pct(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1000;
+    }
+}
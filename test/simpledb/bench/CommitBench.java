@@ -0,0 +1,124 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Measures group commit in {@link LogFile}: more and more threads begin and
+ * commit empty transactions against one log for a few seconds, with and
+ * without a commit window. Prints commits per second and how many commits
+ * each force of the log covered. Takes the window in microseconds to try,
+ * by default 0 and 500.
+ * <p>
+ * With "-insert" each transaction instead inserts a row into a table through
+ * the buffer pool and commits, as an OLTP write would, on the database's own
+ * log; that also prints the bytes of log written per transaction.
+ */
+public class CommitBench {
+
+    static final int SECONDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        boolean insert = args.length > 0 && args[0].equals("-insert");
+        int first = insert ? 1 : 0;
+        long[] windows = { 0, 500 };
+        if (args.length > first) {
+            windows = new long[args.length - first];
+            for (int i = first; i < args.length; i++)
+                windows[i - first] = Long.parseLong(args[i]);
+        }
+        if (insert) {
+            for (long window : windows) {
+                for (int threads = 1; threads <= 64; threads *= 4)
+                    runInserts(threads, window);
+            }
+            return;
+        }
+        for (long window : windows) {
+            for (int threads = 1; threads <= 64; threads *= 4)
+                run(threads, window);
+        }
+    }
+
+    static void run(int threads, long window) throws Exception {
+        File f = File.createTempFile("commitbench", ".log");
+        f.deleteOnExit();
+        final LogFile log = new LogFile(f);
+        log.setGroupCommitWindow(window, threads);
+        final long end = System.nanoTime() + SECONDS * 1000000000L;
+        final AtomicLong commits = new AtomicLong();
+        final Throwable[] error = new Throwable[1];
+        Thread[] committers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            committers[i] = new Thread() {
+                public void run() {
+                    try {
+                        while (System.nanoTime() < end) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            log.logCommit(tid);
+                            commits.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        error[0] = e;
+                    }
+                }
+            };
+            committers[i].start();
+        }
+        for (Thread t : committers)
+            t.join();
+        if (error[0] != null)
+            throw new RuntimeException(error[0]);
+        long forces = Math.max(1, log.getForceCount());
+        System.out.println(String.format(
+                "window %5d us %3d writers %10.0f commits/s %8.1f commits/force",
+                window, threads, commits.get() / (double) SECONDS,
+                commits.get() / (double) forces));
+        f.delete();
+    }
+
+    static void runInserts(int threads, long window) throws Exception {
+        File f = File.createTempFile("commitbench", ".dat");
+        f.deleteOnExit();
+        final HeapFile table = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        final LogFile log = Database.getLogFile();
+        log.setGroupCommitWindow(window, threads);
+        long startLsn = log.getEndLSN();
+        final long end = System.nanoTime() + SECONDS * 1000000000L;
+        final AtomicLong commits = new AtomicLong();
+        final Throwable[] error = new Throwable[1];
+        Thread[] committers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int me = i;
+            committers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int n = 0; System.nanoTime() < end; n++) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            Database.getBufferPool().insertTuple(t.getId(),
+                                    table.getId(), Utility.getHeapTuple(new int[] { me, n }));
+                            t.commit();
+                            commits.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        error[0] = e;
+                    }
+                }
+            };
+            committers[i].start();
+        }
+        for (Thread t : committers)
+            t.join();
+        if (error[0] != null)
+            throw new RuntimeException(error[0]);
+        System.out.println(String.format(
+                "insert window %5d us %3d writers %10.0f commits/s %8.0f log bytes/commit",
+                window, threads, commits.get() / (double) SECONDS,
+                (log.getEndLSN() - startLsn) / (double) Math.max(1, commits.get())));
+        f.delete();
+    }
+}
@@ -0,0 +1,59 @@
+package simpledb.bench;
+
+import simpledb.*;
+
+/**
+ * Compares Predicate.filter and JoinPredicate.filter against the
+ * specialized evaluators built by PredicateCompiler, over packed tuples.
+ */
+public class PredicateBench {
+
+    static final int ROWS = 1 << 16;
+
+    public static void main(String[] args) throws Exception {
+        TupleDesc td = Utility.getTupleDesc(4);
+        final Tuple[] rows = new Tuple[ROWS];
+        for (int r = 0; r < ROWS; r++) {
+            rows[r] = new CompactTuple(td);
+            for (int c = 0; c < 4; c++)
+                rows[r].setField(c, new IntField((r * 7919 + c) % 1000));
+        }
+        final Predicate p = new Predicate(2, Predicate.Op.LESS_THAN_OR_EQ, new IntField(500));
+        final PredicateCompiler.TupleFilter cp = PredicateCompiler.compile(p, td);
+        final JoinPredicate jp = new JoinPredicate(1, Predicate.Op.GREATER_THAN, 3);
+        final PredicateCompiler.TupleJoinFilter cjp = PredicateCompiler.compile(jp, td, td);
+
+        BenchUtil.measure("interpreted filter", ROWS, 50, 500, new BenchUtil.Body() {
+            public long run() {
+                long n = 0;
+                for (int r = 0; r < ROWS; r++)
+                    if (p.filter(rows[r])) n++;
+                return n;
+            }
+        });
+        BenchUtil.measure("compiled filter", ROWS, 50, 500, new BenchUtil.Body() {
+            public long run() {
+                long n = 0;
+                for (int r = 0; r < ROWS; r++)
+                    if (cp.filter(rows[r])) n++;
+                return n;
+            }
+        });
+        BenchUtil.measure("interpreted join predicate", ROWS, 50, 500, new BenchUtil.Body() {
+            public long run() {
+                long n = 0;
+                for (int r = 1; r < ROWS; r++)
+                    if (jp.filter(rows[r - 1], rows[r])) n++;
+                return n;
+            }
+        });
+        BenchUtil.measure("compiled join predicate", ROWS, 50, 500, new BenchUtil.Body() {
+            public long run() {
+                long n = 0;
+                for (int r = 1; r < ROWS; r++)
+                    if (cjp.filter(rows[r - 1], rows[r])) n++;
+                return n;
+            }
+        });
+    }
+}
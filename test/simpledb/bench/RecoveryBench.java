@@ -0,0 +1,70 @@
+package simpledb.bench;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * Measures how fast {@link LogFile#recover()} scans the log: writes a log of
+ * committed transactions, each inserting and deleting tuples of a small
+ * table and logging one whole page image, then "crashes" and recovers. The
+ * pages fit in the buffer pool, so the time goes to reading and decoding
+ * the log. Prints log records and megabytes per second. Takes the number of
+ * transactions, by default 20000.
+ */
+public class RecoveryBench {
+
+    static final int PAGES = 8;
+
+    public static void main(String[] args) throws Exception {
+        int xactions = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        for (int run = 0; run < 3; run++)
+            run(xactions);
+    }
+
+    static void run(int xactions) throws Exception {
+        Database.reset();
+        File f = File.createTempFile("recoverybench", ".dat");
+        f.deleteOnExit();
+        HeapFile table = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        HeapPage empty = new HeapPage(new HeapPageId(table.getId(), 0),
+                HeapPage.createEmptyPageData());
+        for (int p = 0; p < PAGES; p++)
+            table.writePage(new HeapPage(new HeapPageId(table.getId(), p),
+                    HeapPage.createEmptyPageData()));
+        int slots = empty.getNumEmptySlots();
+
+        LogFile log = Database.getLogFile();
+        long records = 0;
+        for (int x = 0; x < xactions; x++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            for (int i = 0; i < 8; i++) {
+                Tuple t = Utility.getHeapTuple(new int[] { x, i });
+                t.setRecordId(new RecordId(new HeapPageId(table.getId(),
+                        (x + i) % PAGES), (x * 8 + i) % slots));
+                log.logInsert(tid, t);
+                if (i % 2 == 1)
+                    log.logDelete(tid, t);
+            }
+            if (x % 10 == 0) {
+                log.logWrite(tid, empty, empty);
+                records++;
+            }
+            log.logCommit(tid);
+            records += 14;
+        }
+        long bytes = log.getEndLSN();
+
+        // crash and recover
+        Database.reset();
+        Database.getCatalog().addTable(Utility.openHeapFile(2, f), "t");
+        long start = System.nanoTime();
+        Database.getLogFile().recover();
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(
+                "recovered %8d records %7.1f MB in %6.3f s: %10.0f records/s %7.1f MB/s",
+                records, bytes / 1e6, secs, records / secs, bytes / 1e6 / secs));
+        f.delete();
+    }
+}
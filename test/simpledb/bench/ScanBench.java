@@ -0,0 +1,64 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.util.*;
+import simpledb.*;
+
+/**
+ * Scans a filtered heap file serially and with a ParallelSeqScan at several
+ * worker counts. The buffer pool holds the whole file, so after the warmup
+ * this measures the filter pipeline rather than the disk.
+ */
+public class ScanBench {
+
+    static final int ROWS = 1 << 20;
+
+    public static void main(String[] args) throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        Random r = new Random(1);
+        for (int i = 0; i < ROWS; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            t.add(i);
+            t.add(r.nextInt(1000));
+            t.add(r.nextInt());
+            tuples.add(t);
+        }
+        File f = File.createTempFile("scanbench", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.PAGE_SIZE, 3);
+        final HeapFile file = Utility.openHeapFile(3, f);
+        Database.resetBufferPool(file.numPages() + 16);
+        final TransactionId tid = new TransactionId();
+
+        BenchUtil.measure("serial scan + filter", ROWS, 3, 10, new BenchUtil.Body() {
+            public long run() throws Exception {
+                return count(pipeline(tid, file));
+            }
+        });
+        for (int w = 2; w <= 2 * WorkerPool.defaultWorkers(); w *= 2) {
+            final int workers = w;
+            BenchUtil.measure("parallel scan + filter, " + w + " workers", ROWS, 3, 10,
+                    new BenchUtil.Body() {
+                        public long run() throws Exception {
+                            return count(new ParallelSeqScan(pipeline(tid, file), workers));
+                        }
+                    });
+        }
+    }
+
+    static DbIterator pipeline(TransactionId tid, HeapFile file) {
+        return new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(100)),
+                new SeqScan(tid, file.getId(), "t"));
+    }
+
+    static long count(DbIterator it) throws Exception {
+        long n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+}
@@ -0,0 +1,107 @@
+package simpledb.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * A load driver for {@link QueryServer}: starts a server on the IMDB sample
+ * database on localhost, connects more and more clients, and has each run a
+ * mix of queries back to back for a few seconds. Prints the statements and
+ * rows per second and the latency percentiles at each client count. Takes
+ * the schema file, by default the 0.01 sample, and optionally "-compress"
+ * and "-virtual", for a server with a thread per session.
+ */
+public class ServerBench {
+
+    static final String[] QUERIES = {
+            "SELECT g.genre, COUNT(g.mid) FROM Genre g GROUP BY g.genre;",
+            "SELECT m.name FROM Movie m WHERE m.year = 1995;",
+            "SELECT d.fname, d.lname FROM Director d WHERE d.id < 500;",
+            "SELECT m.name, d.lname FROM Movie m, Movie_Director md, Director d "
+                    + "WHERE m.id = md.mid AND md.did = d.id AND m.year = 2000;" };
+
+    static final int SECONDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        boolean compress = Arrays.asList(args).contains("-compress");
+        boolean virtual = Arrays.asList(args).contains("-virtual");
+        String schema = args.length > 0 && !args[0].startsWith("-") ? args[0]
+                : "0.01/imdb.schema";
+        Database.resetBufferPool(1000);
+        Database.getCatalog().loadSchema(schema);
+        TableStats.computeStatistics();
+        QueryServer server = new QueryServer(0);
+        server.setVirtualThreads(virtual);
+        server.start();
+        try {
+            // warm the buffer pool and the JIT
+            run(server.getPort(), 2, 2, compress);
+            for (int clients = 1; clients <= 64; clients *= 4)
+                run(server.getPort(), clients, SECONDS, compress);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Run clients clients for the given time and print what they did.
+     */
+    static void run(final int port, int clients, int seconds,
+            final boolean compress) throws Exception {
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final AtomicLong statements = new AtomicLong(), rows = new AtomicLong();
+        final long[][] latencies = new long[clients][];
+        final Throwable[] error = new Throwable[1];
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            final int me = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    long[] lat = new long[1024];
+                    int n = 0;
+                    try {
+                        QueryClient c = new QueryClient("localhost", port, compress);
+                        for (int q = me; System.nanoTime() < end; q++) {
+                            long start = System.nanoTime();
+                            rows.addAndGet(c.execute(QUERIES[q % QUERIES.length], false)
+                                    .getCount());
+                            if (n == lat.length)
+                                lat = Arrays.copyOf(lat, 2 * n);
+                            lat[n++] = System.nanoTime() - start;
+                        }
+                        c.close();
+                    } catch (Throwable e) {
+                        error[0] = e;
+                    }
+                    statements.addAndGet(n);
+                    latencies[me] = Arrays.copyOf(lat, n);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        if (error[0] != null)
+            throw new RuntimeException(error[0]);
+
+        long[] all = new long[(int) statements.get()];
+        int k = 0;
+        for (long[] lat : latencies) {
+            System.arraycopy(lat, 0, all, k, lat.length);
+            k += lat.length;
+        }
+        Arrays.sort(all);
+        System.out.println(String.format(
+                "%3d clients%s %10.0f stmts/s %12.0f rows/s  p50 %7.2f ms  p99 %7.2f ms",
+                clients, compress ? " (zlib)" : "", statements.get() / (double) seconds,
+                rows.get() / (double) seconds, percentile(all, 0.5), percentile(all, 0.99)));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[(int) Math.min(sorted.length - 1, p * sorted.length)] / 1e6;
+    }
+}
@@ -0,0 +1,56 @@
+package simpledb.bench;
+
+import java.util.*;
+import simpledb.*;
+
+/**
+ * Compares sorting with Collections.sort and a per-field comparator against
+ * TupleSorter's normalized keys, on one int key and on a mixed two-field key.
+ */
+public class SortBench {
+
+    static final int ROWS = 1 << 18;
+
+    public static void main(String[] args) throws Exception {
+        final TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        final Tuple[] rows = new Tuple[ROWS];
+        Random r = new Random(1);
+        for (int i = 0; i < ROWS; i++) {
+            rows[i] = new CompactTuple(td);
+            rows[i].setField(0, new IntField(r.nextInt()));
+            rows[i].setField(1, new StringField("k" + r.nextInt(1000), Type.STRING_LEN));
+        }
+        final TupleSorter intSorter = new TupleSorter(td, 0, true);
+        final TupleSorter mixedSorter = new TupleSorter(td, new int[] { 1, 0 },
+                new boolean[] { true, false });
+
+        BenchUtil.measure("comparator sort, int key", ROWS, 3, 10, new BenchUtil.Body() {
+            public long run() {
+                Tuple[] a = rows.clone();
+                Arrays.sort(a, intSorter.comparator());
+                return a[0].getInt(0);
+            }
+        });
+        BenchUtil.measure("normalized key sort, int key", ROWS, 3, 10, new BenchUtil.Body() {
+            public long run() {
+                Tuple[] a = rows.clone();
+                intSorter.sort(a);
+                return a[0].getInt(0);
+            }
+        });
+        BenchUtil.measure("comparator sort, string asc + int desc", ROWS, 3, 10, new BenchUtil.Body() {
+            public long run() {
+                Tuple[] a = rows.clone();
+                Arrays.sort(a, mixedSorter.comparator());
+                return a[0].getInt(0);
+            }
+        });
+        BenchUtil.measure("normalized key sort, string asc + int desc", ROWS, 3, 10, new BenchUtil.Body() {
+            public long run() {
+                Tuple[] a = rows.clone();
+                mixedSorter.sort(a);
+                return a[0].getInt(0);
+            }
+        });
+    }
+}
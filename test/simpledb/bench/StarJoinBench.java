@@ -0,0 +1,53 @@
+package simpledb.bench;
+
+import java.util.*;
+import simpledb.*;
+
+/**
+ * Runs the Movie - Movie_Director - Director star join of the IMDB sample
+ * database with one worker and with ParallelHashJoins on more workers. The
+ * buffer pool holds the tables, so after the warmup this measures the joins
+ * rather than the disk. Takes the schema file as its argument, by default
+ * the 0.01 sample.
+ */
+public class StarJoinBench {
+
+    static final String QUERY = "SELECT m.name, d.fname, d.lname "
+            + "FROM Movie m, Movie_Director md, Director d "
+            + "WHERE m.id = md.mid AND md.did = d.id;";
+
+    public static void main(String[] args) throws Exception {
+        Database.resetBufferPool(1000);
+        Database.getCatalog().loadSchema(args.length > 0 ? args[0] : "0.01/imdb.schema");
+        TableStats.computeStatistics();
+        final Map<String, TableStats> stats = TableStats.getStatsMap();
+        final long rows = rows(1, stats);
+
+        for (int w = 1; w <= 2 * WorkerPool.defaultWorkers(); w *= 2) {
+            final int workers = w;
+            BenchUtil.measure("star join, " + w + " workers", rows, 3, 10,
+                    new BenchUtil.Body() {
+                        public long run() throws Exception {
+                            return rows(workers, stats);
+                        }
+                    });
+        }
+    }
+
+    /** Run the query once; returns the number of result rows */
+    static long rows(int workers, Map<String, TableStats> stats) throws Exception {
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, QUERY);
+        lp.setWorkers(workers);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        long n = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            plan.next();
+            n++;
+        }
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+}
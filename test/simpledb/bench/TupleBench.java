@@ -0,0 +1,57 @@
+package simpledb.bench;
+
+import java.io.*;
+
+import simpledb.*;
+
+/**
+ * Compares the boxed Tuple representation (one Field object per column)
+ * against CompactTuple on a scan/filter/aggregate loop over an int-only
+ * table held in memory in HeapPage format.
+ */
+public class TupleBench {
+
+    static final int COLUMNS = 4;
+    static final int ROWS = 200000;
+
+    public static void main(String[] args) throws Exception {
+        final TupleDesc td = Utility.getTupleDesc(COLUMNS);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize() * ROWS);
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int r = 0; r < ROWS; r++)
+            for (int c = 0; c < COLUMNS; c++)
+                dos.writeInt(r * 31 + c);
+        final byte[] rows = baos.toByteArray();
+        final Predicate pred = new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(ROWS * 15));
+
+        BenchUtil.measure("boxed scan+filter+sum", ROWS, 10, 30, new BenchUtil.Body() {
+            public long run() throws Exception {
+                DataInputStream dis = new DataInputStream(new ByteArrayInputStream(rows));
+                long sum = 0;
+                for (int r = 0; r < ROWS; r++) {
+                    Tuple t = new Tuple(td);
+                    for (int c = 0; c < COLUMNS; c++)
+                        t.setField(c, td.getFieldType(c).parse(dis));
+                    if (pred.filter(t))
+                        sum += ((IntField) t.getField(3)).getValue();
+                }
+                return sum;
+            }
+        });
+
+        BenchUtil.measure("compact scan+filter+sum", ROWS, 10, 30, new BenchUtil.Body() {
+            public long run() throws Exception {
+                int size = td.getSize();
+                long sum = 0;
+                for (int r = 0; r < ROWS; r++) {
+                    byte[] b = new byte[size];
+                    System.arraycopy(rows, r * size, b, 0, size);
+                    Tuple t = new CompactTuple(td, b);
+                    if (pred.filter(t))
+                        sum += t.getInt(3);
+                }
+                return sum;
+            }
+        });
+    }
+}
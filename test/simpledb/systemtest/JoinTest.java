@@ -1,5 +1,6 @@
 package simpledb.systemtest;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -69,6 +70,75 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /**
+     * Join a small table to an indexed one with an IndexNestedLoopJoin, with
+     * a filter on the indexed side, and check that tuples inserted after the
+     * index was built are found.
+     */
+    public void validateIndexJoin(Predicate.Op op)
+            throws IOException, DbException, TransactionAbortedException {
+        final int KEYS = 50;
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 20, KEYS, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(
+                COLUMNS, 2000, KEYS, null, t2Tuples);
+        IndexedHeapFile table2 = new IndexedHeapFile(f,
+                Utility.getTupleDesc(COLUMNS), 0);
+        Database.getCatalog().addTable(table2, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
+        SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
+        Filter filter = new Filter(new Predicate(1, Predicate.Op.LESS_THAN,
+                new IntField(KEYS / 2)), ss2);
+        JoinPredicate p = new JoinPredicate(0, op, 0);
+        IndexNestedLoopJoin joinOp = new IndexNestedLoopJoin(p, ss1, filter);
+        SystemTestUtil.matchTuples(joinOp, expectedIndexJoin(op, KEYS / 2, t1Tuples, t2Tuples));
+
+        // a new tuple matching every left tuple must show up
+        ArrayList<Integer> added = new ArrayList<Integer>();
+        added.add(op == Predicate.Op.EQUALS ? t1Tuples.get(0).get(0) : -1);
+        added.add(0);
+        t2Tuples.add(added);
+        Database.getBufferPool().insertTuple(tid, table2.getId(),
+                Utility.getHeapTuple(new int[] { added.get(0), added.get(1) }));
+        joinOp.rewind();
+        SystemTestUtil.matchTuples(joinOp, expectedIndexJoin(op, KEYS / 2, t1Tuples, t2Tuples));
+
+        joinOp.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static ArrayList<ArrayList<Integer>> expectedIndexJoin(Predicate.Op op,
+            int filterBound, ArrayList<ArrayList<Integer>> t1Tuples,
+            ArrayList<ArrayList<Integer>> t2Tuples) {
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            for (ArrayList<Integer> t2 : t2Tuples) {
+                if (t2.get(1) >= filterBound)
+                    continue;
+                if (new IntField(t1.get(0)).compare(op, new IntField(t2.get(0)))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+        return expectedResults;
+    }
+
+    @Test public void testIndexJoinEquals()
+            throws IOException, DbException, TransactionAbortedException {
+        validateIndexJoin(Predicate.Op.EQUALS);
+    }
+
+    @Test public void testIndexJoinRange()
+            throws IOException, DbException, TransactionAbortedException {
+        validateIndexJoin(Predicate.Op.GREATER_THAN);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(JoinTest.class);